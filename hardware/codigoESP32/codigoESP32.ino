@@ -47,6 +47,10 @@ bool rfidActive = false;
 unsigned long rfidStartTime = 0;
 const unsigned long rfidTimeout = 30000; // 30 segundos
 
+// Senal de vida para el backend (mqtt.broker.presence-timeout, 90 s): una por habitacion
+const unsigned long HEARTBEAT_INTERVAL = 30000;
+unsigned long lastHeartbeatTime = 0;
+
 WiFiClient espClient;
 PubSubClient client(espClient);
 
@@ -55,6 +59,11 @@ const char* mqtt_rfid_command_topic = "rfid/command";
 const char* mqtt_rfid_result_topic = "rfid/register"; 
 const char* mqtt_rfid_event_topic = "rfid/event";    
 
+// Formato de los mensajes que publica la placa: true = MessagePack (topic + "/msgpack"), false = JSON.
+// Los comandos se aceptan en los dos formatos; el backend contesta en el que usemos.
+const bool USE_MSGPACK = false;
+const char* MSGPACK_SUFFIX = "/msgpack";
+
 WiFiManager wm;
 WiFiManagerParameter custom_mqtt_server("server", "MQTT Broker", mqtt_server, 40);
 WiFiManagerParameter custom_mqtt_port("port", "MQTT Port", mqtt_port, 6);
@@ -133,19 +142,72 @@ void startWifiAndMqttSetup() {
   }
 }
 
+void subscribeCommand(String topic) {
+  client.subscribe(topic.c_str());
+  client.subscribe((topic + MSGPACK_SUFFIX).c_str());
+}
+
+// estado completo de una habitacion en un solo mensaje (al conectar, tras un reinicio)
+void publishRoomState(String room, bool lightOn, bool alarmOn) {
+  StaticJsonDocument<128> doc;
+  doc["light"] = lightOn ? "ON" : "OFF";
+  doc["alarm"] = alarmOn ? "ON" : "OFF";
+  publishDoc(room + "/state", doc);
+}
+
+void publishState() {
+  publishRoomState(String(habitacion1), hab1LightState, hab1AlarmState);
+  publishRoomState(String(habitacion2), hab2LightState, hab2AlarmState);
+}
+
+void subscribeCommands() {
+  subscribeCommand(String(habitacion1) + "/lig/command");
+  subscribeCommand(String(habitacion1) + "/mov/command");
+  subscribeCommand(String(habitacion2) + "/lig/command");
+  subscribeCommand(String(habitacion2) + "/mov/command");
+  subscribeCommand(String(habitacion2) + "/sou/command");
+  client.subscribe("REMOVE");
+  subscribeCommand(mqtt_rfid_command_topic);
+  // ordenes para toda la casa (mqtt.broker.broadcast-commands), siempre en JSON
+  client.subscribe("all/mov/command");
+}
+
+// id unico por mensaje para que el backend descarte copias (MessageDeduplicator):
+// prefijo aleatorio en cada arranque + contador
+uint32_t bootId = 0;
+uint32_t msgCounter = 0;
+
+String nextMsgId() {
+  if (bootId == 0) {
+    bootId = esp_random() | 1;
+  }
+  return String(bootId, HEX) + "-" + String(++msgCounter);
+}
+
+// publica el documento en el formato configurado
+// PubSubClient solo publica con QoS 0: si no hay conexion el mensaje se pierde
+void publishDoc(String topic, JsonDocument& doc) {
+  doc["msgId"] = nextMsgId();
+  if (USE_MSGPACK) {
+    uint8_t buffer[128];
+    size_t length = serializeMsgPack(doc, buffer, sizeof(buffer));
+    topic += MSGPACK_SUFFIX;
+    client.publish(topic.c_str(), buffer, length);
+  } else {
+    char buffer[200];
+    serializeJson(doc, buffer, sizeof(buffer));
+    client.publish(topic.c_str(), buffer);
+  }
+}
+
 bool reconnectMqttWithTimeout(unsigned long timeoutMs) {
   unsigned long startAttempt = millis();
   while (!client.connected() && (millis() - startAttempt < timeoutMs)) {
     Serial.print("Conectando a MQTT...");
     if (client.connect(mqtt_client_id)) {
       Serial.println("conectado");
-      client.subscribe((String(habitacion1) + "/lig/command").c_str());
-      client.subscribe((String(habitacion1) + "/mov/command").c_str());
-      client.subscribe((String(habitacion2) + "/lig/command").c_str());
-      client.subscribe((String(habitacion2) + "/mov/command").c_str());
-      client.subscribe((String(habitacion2) + "/sou/command").c_str());
-      client.subscribe("REMOVE");
-      client.subscribe(mqtt_rfid_command_topic);
+      subscribeCommands();
+      publishState();
       Serial.println("Suscrito a tópicos MQTT");
       return true;
     } else {
@@ -175,18 +237,26 @@ void loop() {
   // RFID
   handleRfidLogic();
 
+  if (millis() - lastHeartbeatTime > HEARTBEAT_INTERVAL) {
+    sendHeartbeat();
+  }
+
   delay(100);
 }
 
+void sendHeartbeat() {
+  client.publish((String(habitacion1) + "/heartbeat").c_str(), "");
+  client.publish((String(habitacion2) + "/heartbeat").c_str(), "");
+  lastHeartbeatTime = millis();
+}
+
 void handleRfidLogic() {
   if (rfidActive) {
     if (millis() - rfidStartTime > rfidTimeout) {
       // timeout
       StaticJsonDocument<128> doc;
       doc["event"] = "RFID_REGISTER_CANCEL";
-      char buffer[128];
-      serializeJson(doc, buffer);
-      client.publish(mqtt_rfid_result_topic, buffer);
+      publishDoc(mqtt_rfid_result_topic, doc);
       rfidActive = false;
       Serial.println("Timeout RFID registro");
     } else if (mfrc522.PICC_IsNewCardPresent() && mfrc522.PICC_ReadCardSerial()) {
@@ -199,9 +269,7 @@ void handleRfidLogic() {
       StaticJsonDocument<128> doc;
       doc["event"] = "RFID_REGISTER";
       doc["cardId"] = uid;
-      char buffer[128];
-      serializeJson(doc, buffer);
-      client.publish(mqtt_rfid_result_topic, buffer);
+      publishDoc(mqtt_rfid_result_topic, doc);
       Serial.print("Tarjeta registrada: "); Serial.println(uid);
       rfidActive = false;
       mfrc522.PICC_HaltA();
@@ -219,9 +287,7 @@ void handleRfidLogic() {
       StaticJsonDocument<128> doc;
       doc["event"] = "RFID_DETECTED";
       doc["cardId"] = uid;
-      char buffer[128];
-      serializeJson(doc, buffer);
-      client.publish(mqtt_rfid_event_topic, buffer);
+      publishDoc(mqtt_rfid_event_topic, doc);
       Serial.print("Tarjeta detectada (normal): "); Serial.println(uid);
       mfrc522.PICC_HaltA();
     }
@@ -233,13 +299,8 @@ void reconnectMqtt() {
     Serial.print("Conectando a MQTT...");
     if (client.connect(mqtt_client_id)) {
       Serial.println("conectado");
-      client.subscribe((String(habitacion1) + "/lig/command").c_str());
-      client.subscribe((String(habitacion1) + "/mov/command").c_str());
-      client.subscribe((String(habitacion2) + "/lig/command").c_str());
-      client.subscribe((String(habitacion2) + "/mov/command").c_str());
-      client.subscribe((String(habitacion2) + "/sou/command").c_str());
-      client.subscribe("REMOVE");
-      client.subscribe(mqtt_rfid_command_topic);
+      subscribeCommands();
+      publishState();
       Serial.println("Suscrito a tópicos MQTT");
     } else {
       Serial.print("falló, rc=");
@@ -251,45 +312,60 @@ void reconnectMqtt() {
 }
 
 void onMqttMessage(char* topic, byte* payload, unsigned int length) {
-  String message = "";
-  for (unsigned int i = 0; i < length; i++) message += (char)payload[i];
+  String topicStr = String(topic);
 
   Serial.print("Mensaje recibido [");
   Serial.print(topic);
   Serial.print("]: ");
-  Serial.println(message);
-
-  String topicStr = String(topic);
+  Serial.print(length);
+  Serial.println(" bytes");
 
   if (topicStr == "REMOVE") {
+    String message = "";
+    for (unsigned int i = 0; i < length; i++) message += (char)payload[i];
     handleRoomRemoval(message);
-  } else if (topicStr.endsWith("/lig/command")) {
-    handleLightCommand(topicStr, message);
+    return;
+  }
+
+  // el sufijo indica el formato del comando
+  DynamicJsonDocument doc(200);
+  DeserializationError error;
+  if (topicStr.endsWith(MSGPACK_SUFFIX)) {
+    topicStr = topicStr.substring(0, topicStr.length() - strlen(MSGPACK_SUFFIX));
+    error = deserializeMsgPack(doc, payload, length);
+  } else {
+    error = deserializeJson(doc, payload, length);
+  }
+  if (error) {
+    Serial.print("Comando no valido: ");
+    Serial.println(error.c_str());
+    return;
+  }
+
+  if (topicStr.endsWith("/lig/command")) {
+    handleLightCommand(topicStr, doc);
   } else if (topicStr.endsWith("/mov/command")) {
-    handleAlarmCommand(topicStr, message);
+    handleAlarmCommand(topicStr, doc);
   } else if (topicStr.endsWith("/sou/command")) {
-    handleSoundCommand(topicStr, message);
+    handleSoundCommand(topicStr, doc);
   } else if (topicStr == mqtt_rfid_command_topic) {
-    if (message.indexOf("START") != -1) {
+    String command = doc["command"];
+    if (command == "START") {
       rfidActive = true;
       rfidStartTime = millis();
       Serial.println("Lector RFID ACTIVADO (registro)");
-    } else if (message.indexOf("CANCEL") != -1) {
+    } else if (command == "CANCEL") {
       rfidActive = false;
       Serial.println("Lector RFID CANCELADO");
-      StaticJsonDocument<128> doc;
-      doc["event"] = "RFID_REGISTER_CANCEL";
-      char buffer[128];
-      serializeJson(doc, buffer);
-      client.publish(mqtt_rfid_result_topic, buffer);
+      StaticJsonDocument<128> result;
+      result["event"] = "RFID_REGISTER_CANCEL";
+      publishDoc(mqtt_rfid_result_topic, result);
     }
   }
 }
 
-void handleLightCommand(String topic, String payload) {
+void handleLightCommand(String topic, JsonDocument& doc) {
   String room = topic.substring(0, topic.indexOf("/"));
-  DynamicJsonDocument doc(200);
-  deserializeJson(doc, payload);
 
   String command = doc["command"];
   String state = doc["state"];
@@ -308,7 +384,7 @@ void handleLightCommand(String topic, String payload) {
       success = true;
     }
 
-    sendLightConfirmation(room, newState, success);
+    sendLightConfirmation(room, newState, success, doc["cid"] | "");
 
     Serial.print("Luz ");
     Serial.print(room);
@@ -317,10 +393,8 @@ void handleLightCommand(String topic, String payload) {
   }
 }
 
-void handleAlarmCommand(String topic, String payload) {
+void handleAlarmCommand(String topic, JsonDocument& doc) {
   String room = topic.substring(0, topic.indexOf("/"));
-  DynamicJsonDocument doc(200);
-  deserializeJson(doc, payload);
 
   String command = doc["command"];
   String state = doc["state"];
@@ -329,6 +403,16 @@ void handleAlarmCommand(String topic, String payload) {
     bool newState = (state == "ON");
     bool success = false;
 
+    if (room == "all") {
+      hab1AlarmState = newState;
+      hab2AlarmState = newState;
+      sendAlarmConfirmation(String(habitacion1), newState, true, "");
+      sendAlarmConfirmation(String(habitacion2), newState, true, "");
+      Serial.print("Alarmas de todas las habitaciones cambiadas a: ");
+      Serial.println(newState ? "ON" : "OFF");
+      return;
+    }
+
     if (room == String(habitacion1)) {
       hab1AlarmState = newState;
       success = true;
@@ -337,7 +421,7 @@ void handleAlarmCommand(String topic, String payload) {
       success = true;
     }
 
-    sendAlarmConfirmation(room, newState, success);
+    sendAlarmConfirmation(room, newState, success, doc["cid"] | "");
 
     Serial.print("Alarma ");
     Serial.print(room);
@@ -346,13 +430,10 @@ void handleAlarmCommand(String topic, String payload) {
   }
 }
 
-void handleSoundCommand(String topic, String payload) {
+void handleSoundCommand(String topic, JsonDocument& doc) {
   String room = topic.substring(0, topic.indexOf("/"));
   if (room != String(habitacion2)) return;
 
-  DynamicJsonDocument doc(200);
-  deserializeJson(doc, payload);
-
   String command = doc["command"];
   if (command == "PLAY_SOUND") {
     String sound = doc["sound"];
@@ -408,8 +489,12 @@ void checkMovementSensors() {
   lastPirhab2State = currentPirhab2;
 }
 
-void sendLightConfirmation(String room, bool state, bool success) {
+// cid: identificador del comando que se confirma, se devuelve tal cual al backend
+void sendLightConfirmation(String room, bool state, bool success, const char* cid) {
   DynamicJsonDocument doc(200);
+  if (cid[0] != '\0') {
+    doc["cid"] = cid;
+  }
   if (success) {
     doc["status"] = "SUCCESS";
     doc["state"] = state ? "ON" : "OFF";
@@ -417,14 +502,14 @@ void sendLightConfirmation(String room, bool state, bool success) {
     doc["status"] = "ERROR";
     doc["error"] = "DEVICE_OFFLINE";
   }
-  String payload;
-  serializeJson(doc, payload);
-  String topic = room + "/lig/confirmation";
-  client.publish(topic.c_str(), payload.c_str());
+  publishDoc(room + "/lig/confirmation", doc);
 }
 
-void sendAlarmConfirmation(String room, bool state, bool success) {
+void sendAlarmConfirmation(String room, bool state, bool success, const char* cid) {
   DynamicJsonDocument doc(200);
+  if (cid[0] != '\0') {
+    doc["cid"] = cid;
+  }
   if (success) {
     doc["status"] = "SUCCESS";
     doc["state"] = state ? "ON" : "OFF";
@@ -432,10 +517,7 @@ void sendAlarmConfirmation(String room, bool state, bool success) {
     doc["status"] = "ERROR";
     doc["error"] = "SENSOR_MALFUNCTION";
   }
-  String payload;
-  serializeJson(doc, payload);
-  String topic = room + "/mov/confirmation";
-  client.publish(topic.c_str(), payload.c_str());
+  publishDoc(room + "/mov/confirmation", doc);
 }
 
 void sendSoundConfirmation(String room, bool success) {
@@ -447,20 +529,14 @@ void sendSoundConfirmation(String room, bool success) {
     doc["status"] = "ERROR";
     doc["error"] = "BUZZER_MALFUNCTION";
   }
-  String payload;
-  serializeJson(doc, payload);
-  String topic = room + "/sou/confirmation";
-  client.publish(topic.c_str(), payload.c_str());
+  publishDoc(room + "/sou/confirmation", doc);
 }
 
 void sendMovementDetected(String room) {
   DynamicJsonDocument doc(200);
   doc["event"] = "MOVEMENT_DETECTED";
   doc["timestamp"] = "2024-01-20T15:30:00";
-  String payload;
-  serializeJson(doc, payload);
-  String topic = room + "/mov/event";
-  client.publish(topic.c_str(), payload.c_str());
+  publishDoc(room + "/mov/event", doc);
   Serial.print("Movimiento detectado en: ");
   Serial.println(room);
 }
\ No newline at end of file
@@ -2,26 +2,81 @@ package com.casa.iot.backend.config;
 
 import java.util.concurrent.Executor;
 
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.scheduling.annotation.AsyncConfigurer;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
 @Configuration
 @EnableAsync
 @EnableScheduling
 public class AsyncConfig implements AsyncConfigurer {
-    
+
+    // @Async(MOVEMENT_EXECUTOR): escrituras de movimiento, las unicas que se pueden perder con carga alta
+    public static final String MOVEMENT_EXECUTOR = "movementEventExecutor";
+
+    private final Environment environment;
+    private final BlockingCallLimiter blockingCallLimiter;
+    private final Counter rejected;
+
+    public AsyncConfig(Environment environment, BlockingCallLimiter blockingCallLimiter, MeterRegistry meterRegistry) {
+        this.environment = environment;
+        this.blockingCallLimiter = blockingCallLimiter;
+        this.rejected = Counter.builder("async.rejected")
+            .description("Escrituras de movimiento en el registro de eventos descartadas con la cola llena")
+            .register(meterRegistry);
+    }
+
+    // resto de eventos (confirmaciones, RFID, acciones de usuario): cola sin limite, no se descartan
+    // ni se ejecutan en el hilo que llama (suele ser un hilo de particion MQTT)
     @Override
     public Executor getAsyncExecutor() {
+        if (Threading.VIRTUAL.isActive(environment)) {
+            return virtualExecutor("EventLog-");
+        }
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
         executor.setCorePoolSize(3);
-        executor.setMaxPoolSize(8);
-        executor.setQueueCapacity(200);
         executor.setThreadNamePrefix("EventLog-");
-        executor.setRejectedExecutionHandler(new java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy());
+        // al parar se escribe lo que quede en la cola
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(10);
+        executor.initialize();
+        return executor;
+    }
+
+    // con cola llena se descarta al momento, sin esperar ni frenar al que llama (ver IngestBackpressure).
+    // Al haber este Executor Spring Boot no crea applicationTaskExecutor; aqui no se usa
+    @Bean(name = MOVEMENT_EXECUTOR)
+    public Executor movementEventExecutor() {
+        if (Threading.VIRTUAL.isActive(environment)) {
+            return virtualExecutor("EventLog-mov-");
+        }
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(2);
+        executor.setMaxPoolSize(4);
+        executor.setQueueCapacity(200);
+        executor.setThreadNamePrefix("EventLog-mov-");
+        executor.setRejectedExecutionHandler((task, pool) -> {
+            rejected.increment();
+            System.err.println("Cola de EventLog de movimientos llena: evento descartado");
+        });
         executor.initialize();
         return executor;
     }
-}
\ No newline at end of file
+
+    // spring.threads.virtual.enabled=true: un hilo virtual por tarea, limitadas por el pool de BD
+    private Executor virtualExecutor(String prefix) {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(prefix);
+        executor.setVirtualThreads(true);
+        executor.setTaskDecorator(blockingCallLimiter::decorate);
+        return executor;
+    }
+}
@@ -0,0 +1,47 @@
+package com.casa.iot.backend.config;
+
+import java.util.concurrent.Semaphore;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Limita cuantas tareas hacen I/O bloqueante (JDBC, Firebase) a la vez. Con
+ * hilos virtuales ya no hay un pool que lo limite: sin esto miles de hilos
+ * esperarian a la vez una conexion de Hikari y acabarian con timeout. Por
+ * defecto deja pasar tantas tareas como conexiones tiene el pool.
+ */
+@Component
+public class BlockingCallLimiter {
+
+    private final Semaphore permits;
+
+    public BlockingCallLimiter(@Value("${spring.datasource.hikari.maximum-pool-size:10}") int permits) {
+        this.permits = new Semaphore(permits, true);
+    }
+
+    public void run(Runnable task) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            // la tarea (p.ej. un registro de evento @Async) no llega a ejecutarse: que quede constancia
+            Thread.currentThread().interrupt();
+            System.err.println("Tarea descartada: hilo interrumpido esperando turno de BD (" + Thread.currentThread().getName() + ")");
+            return;
+        }
+        try {
+            task.run();
+        } finally {
+            permits.release();
+        }
+    }
+
+    // para el TaskDecorator del executor de @Async
+    public Runnable decorate(Runnable task) {
+        return () -> run(task);
+    }
+
+    public int available() {
+        return permits.availablePermits();
+    }
+}
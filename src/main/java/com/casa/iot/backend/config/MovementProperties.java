@@ -0,0 +1,38 @@
+package com.casa.iot.backend.config;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties(prefix = "movement")
+public class MovementProperties {
+
+    // detecciones separadas menos de esto se agrupan en el mismo episodio
+    private Duration coalesceWindow = Duration.ofSeconds(30);
+    // ventana propia para habitaciones concretas (movement.room-windows.salon=60s)
+    private Map<String, Duration> roomWindows = new HashMap<>();
+
+    public Duration getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    public void setCoalesceWindow(Duration coalesceWindow) {
+        this.coalesceWindow = coalesceWindow;
+    }
+
+    public Map<String, Duration> getRoomWindows() {
+        return roomWindows;
+    }
+
+    public void setRoomWindows(Map<String, Duration> roomWindows) {
+        this.roomWindows = roomWindows;
+    }
+
+    public Duration windowFor(String room) {
+        return roomWindows.getOrDefault(room, coalesceWindow);
+    }
+}
@@ -0,0 +1,63 @@
+package com.casa.iot.backend.config;
+
+import java.time.Duration;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Avisa cuando un hilo virtual se queda bloqueado sin soltar su hilo
+ * portador (pinning), p.ej. en codigo nativo o en codigo de librerias como
+ * Paho. Escucha el evento de JFR jdk.VirtualThreadPinned y lo cuenta en
+ * jvm.threads.virtual.pinned. Solo se activa con hilos virtuales.
+ */
+@Component
+@ConditionalOnThreading(Threading.VIRTUAL)
+public class PinningMonitor {
+
+    private static final Duration THRESHOLD = Duration.ofMillis(20);
+
+    private final Counter pinned;
+    private RecordingStream stream;
+
+    public PinningMonitor(MeterRegistry meterRegistry) {
+        this.pinned = Counter.builder("jvm.threads.virtual.pinned")
+            .description("Veces que un hilo virtual bloqueo su hilo portador mas de 20ms")
+            .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        stream = new RecordingStream();
+        stream.enable("jdk.VirtualThreadPinned").withThreshold(THRESHOLD).withStackTrace();
+        stream.onEvent("jdk.VirtualThreadPinned", this::onPinned);
+        stream.startAsync();
+        System.out.println("Monitor de pinning de hilos virtuales activo (umbral " + THRESHOLD.toMillis() + "ms)");
+    }
+
+    private void onPinned(RecordedEvent event) {
+        pinned.increment();
+        String where = "desconocido";
+        if (event.getStackTrace() != null && !event.getStackTrace().getFrames().isEmpty()) {
+            RecordedFrame top = event.getStackTrace().getFrames().get(0);
+            where = top.getMethod().getType().getName() + "." + top.getMethod().getName();
+        }
+        System.err.println("Hilo virtual bloqueado " + event.getDuration().toMillis() + "ms sin soltar el portador en " + where);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (stream != null) {
+            stream.close();
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package com.casa.iot.backend.controller;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -10,8 +14,10 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import com.casa.iot.backend.model.Room;
+import com.casa.iot.backend.mqtt.PendingCommand;
 import com.casa.iot.backend.service.AuthService;
 import com.casa.iot.backend.service.EventLogService;
 import com.casa.iot.backend.service.LightService;
@@ -22,6 +28,9 @@ import com.casa.iot.backend.service.RoomService;
 @RequestMapping("/rooms")
 public class RoomController {
     
+    // espera maxima con ?await
+    private static final Duration MAX_AWAIT = Duration.ofSeconds(30);
+
     private final RoomService roomService;
     private final LightService lightService;
     private final MovementService movementService;
@@ -46,15 +55,10 @@ public class RoomController {
     ) {
         try {
             // mqtt
-            lightService.sendLightCommand(roomName, state);
+            PendingCommand command = lightService.sendLightCommand(roomName, state);
             
             // respuesta inmediata (lazy)
-            return ResponseEntity.ok(Map.of(
-                "message", "Comando enviado al dispositivo",
-                "roomName", roomName,
-                "requestedState", state ? "ON" : "OFF",
-                "status", "PENDING"
-            ));
+            return ResponseEntity.ok(commandResponse("Comando enviado al dispositivo", roomName, state, command.id(), "PENDING"));
             
         } catch (Exception e) {
             return ResponseEntity.status(500)
@@ -65,6 +69,18 @@ public class RoomController {
         }
     }
 
+    // ?await=2s: la peticion queda aparcada (sin ocupar hilo) hasta la confirmacion del dispositivo
+    @PostMapping(value = "/{roomName}/light", params = "await")
+    public DeferredResult<ResponseEntity<?>> updateLightAndWait(
+            @PathVariable String roomName,
+            @RequestParam boolean state,
+            @RequestParam("await") String await,
+            @RequestParam(required = false, defaultValue = "unknown") String userId
+    ) {
+        return awaitCommand(await, "Comando enviado al dispositivo", roomName, state,
+            () -> lightService.sendLightCommand(roomName, state));
+    }
+
     @PostMapping("/{roomName}/alarm")
     public ResponseEntity<?> updateAlarm(
             @PathVariable String roomName,
@@ -73,21 +89,10 @@ public class RoomController {
     ) {
         try {
             // mqtt
-            movementService.sendAlarmCommand(roomName, state);
-            
-            // logging
-            String action = state ? "SENSOR_ON" : "SENSOR_OFF";
-            String details = String.format("{\"requestedState\":\"%s\",\"method\":\"API\",\"timestamp\":\"%s\"}", 
-                                         state ? "ON" : "OFF", java.time.LocalDateTime.now());
-            eventLogService.logUserAction(action, roomName, userId, details);
+            PendingCommand command = sendAlarmCommand(roomName, state, userId);
             
             // respuesta inmediata (lazy)
-            return ResponseEntity.ok(Map.of(
-                "message", "Comando enviado al sensor",
-                "roomName", roomName,
-                "requestedState", state ? "ON" : "OFF",
-                "status", "PENDING"
-            ));
+            return ResponseEntity.ok(commandResponse("Comando enviado al sensor", roomName, state, command.id(), "PENDING"));
             
         } catch (Exception e) {
             return ResponseEntity.status(500)
@@ -98,6 +103,95 @@ public class RoomController {
         }
     }
 
+    @PostMapping(value = "/{roomName}/alarm", params = "await")
+    public DeferredResult<ResponseEntity<?>> updateAlarmAndWait(
+            @PathVariable String roomName,
+            @RequestParam boolean state,
+            @RequestParam("await") String await,
+            @RequestParam(required = false, defaultValue = "unknown") String userId
+    ) {
+        return awaitCommand(await, "Comando enviado al sensor", roomName, state,
+            () -> sendAlarmCommand(roomName, state, userId));
+    }
+
+    private PendingCommand sendAlarmCommand(String roomName, boolean state, String userId) {
+        PendingCommand command = movementService.sendAlarmCommand(roomName, state);
+        
+        // logging
+        String action = state ? "SENSOR_ON" : "SENSOR_OFF";
+        String details = String.format("{\"requestedState\":\"%s\",\"method\":\"API\",\"timestamp\":\"%s\"}", 
+                                     state ? "ON" : "OFF", java.time.LocalDateTime.now());
+        eventLogService.logUserAction(action, roomName, userId, details);
+        return command;
+    }
+
+    // el resultado se fija desde el hilo que procesa la confirmacion MQTT, o al vencer la espera
+    private DeferredResult<ResponseEntity<?>> awaitCommand(String await, String message, String roomName,
+                                                           boolean state, Supplier<PendingCommand> send) {
+        Duration timeout;
+        try {
+            timeout = DurationStyle.detectAndParse(await);
+            if (timeout.toMillis() <= 0) {
+                // DeferredResult toma 0 como "sin limite"
+                throw new IllegalArgumentException("await debe ser de al menos 1ms");
+            }
+        } catch (IllegalArgumentException e) {
+            DeferredResult<ResponseEntity<?>> invalid = new DeferredResult<>();
+            invalid.setResult(ResponseEntity.badRequest().body(Map.of("error", "Valor de await no valido: " + await)));
+            return invalid;
+        }
+        if (timeout.compareTo(MAX_AWAIT) > 0) {
+            timeout = MAX_AWAIT;
+        }
+
+        PendingCommand command;
+        try {
+            command = send.get();
+        } catch (Exception e) {
+            DeferredResult<ResponseEntity<?>> failed = new DeferredResult<>();
+            failed.setResult(ResponseEntity.status(500).body(Map.of(
+                "error", "Error al enviar comando",
+                "message", String.valueOf(e.getMessage()))));
+            return failed;
+        }
+
+        // sin confirmacion a tiempo se contesta como sin await: el comando sigue pendiente
+        DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(timeout.toMillis(),
+            ResponseEntity.status(HttpStatus.ACCEPTED).body(commandResponse(message, roomName, state, command.id(), "PENDING")));
+        command.outcome().whenComplete((outcome, error) -> {
+            PendingCommand.Outcome finalOutcome = error == null ? outcome : PendingCommand.Outcome.FAILED;
+            result.setResult(ResponseEntity.status(statusFor(finalOutcome))
+                .body(commandResponse(message, roomName, state, command.id(), statusName(finalOutcome))));
+        });
+        return result;
+    }
+
+    // deviceOnline=false: la placa lleva un rato sin dar senales, el comando probablemente no llegue
+    private Map<String, Object> commandResponse(String message, String roomName, boolean state,
+                                                String commandId, String status) {
+        return Map.of(
+            "message", message,
+            "roomName", roomName,
+            "requestedState", state ? "ON" : "OFF",
+            "status", status,
+            "commandId", commandId,
+            "deviceOnline", roomService.isDeviceOnline(roomName)
+        );
+    }
+
+    private static HttpStatus statusFor(PendingCommand.Outcome outcome) {
+        return switch (outcome) {
+            case CONFIRMED -> HttpStatus.OK;
+            case FAILED -> HttpStatus.BAD_GATEWAY;
+            case SUPERSEDED -> HttpStatus.CONFLICT;
+            case EXPIRED -> HttpStatus.GATEWAY_TIMEOUT;
+        };
+    }
+
+    private static String statusName(PendingCommand.Outcome outcome) {
+        return outcome == PendingCommand.Outcome.FAILED ? "ERROR" : outcome.name();
+    }
+
     @GetMapping
     public List<Room> getAllRooms() {
         return roomService.getAllRooms();
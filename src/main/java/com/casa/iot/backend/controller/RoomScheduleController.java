@@ -42,7 +42,7 @@ public class RoomScheduleController {
             @RequestParam(required = false) String endTime,    // formato "HH:mm", para intervalo
             @RequestParam(required = false, defaultValue = "unknown") String userId
     ) {
-        Room room = roomService.getRoomByName(roomName);
+        Room room = roomService.getStoredRoom(roomName); // el horario enlaza la fila de BD
         if (room == null) throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Room not found");
 
         RoomSchedule schedule;
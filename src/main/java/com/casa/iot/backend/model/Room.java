@@ -1,9 +1,20 @@
 package com.casa.iot.backend.model;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.DynamicUpdate;
+
+import jakarta.persistence.Cacheable;
+import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
+import jakarta.persistence.Transient;
+import jakarta.persistence.Version;
 
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "room") // ver ehcache.xml
+@DynamicUpdate // el UPDATE solo lleva las columnas que han cambiado
 public class Room {
 
     @Id 
@@ -12,6 +23,15 @@ public class Room {
     private boolean lightOn;
     private boolean detectOn;
 
+    // la sube cada escritura (JPA y los lotes de RoomStateStore): un save con una Room vieja falla en vez de pisar el estado
+    @Version
+    @Column(nullable = false)
+    private Long version;
+
+    // no se guarda: lo rellena RoomService con DevicePresence
+    @Transient
+    private boolean online;
+
     public Room() {}
 
     public Room(String name) {
@@ -28,4 +48,7 @@ public class Room {
 
     public boolean isDetectOn() { return detectOn; }
     public void setDetectOn(boolean detectOn) { this.detectOn = detectOn; }
+
+    public boolean isOnline() { return online; }
+    public void setOnline(boolean online) { this.online = online; }
 }
@@ -0,0 +1,24 @@
+package com.casa.iot.backend.model;
+
+// estado de una habitacion en memoria (RoomStateStore); la fila de Room se escribe despues, por lotes
+public record RoomState(String name, boolean lightOn, boolean detectOn) {
+
+    public static RoomState of(Room room) {
+        return new RoomState(room.getName(), room.isLightOn(), room.isDetectOn());
+    }
+
+    public RoomState withLight(boolean on) {
+        return new RoomState(name, on, detectOn);
+    }
+
+    public RoomState withAlarm(boolean on) {
+        return new RoomState(name, lightOn, on);
+    }
+
+    public Room toRoom() {
+        Room room = new Room(name);
+        room.setLightOn(lightOn);
+        room.setDetectOn(detectOn);
+        return room;
+    }
+}
@@ -0,0 +1,135 @@
+package com.casa.iot.backend.mqtt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.Lifecycle;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.integration.core.MessageProducer;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Espera a que el broker acepte conexiones TCP antes de arrancar el
+ * adaptador MQTT de entrada (que tiene autoStartup a false). Los intentos
+ * se hacen en un hilo propio, sin bloquear el arranque de Spring, con una
+ * espera que empieza en readiness-initial-backoff y se dobla hasta
+ * readiness-max-backoff. Si el broker ya esta escuchando, el adaptador
+ * arranca en el primer intento.
+ *
+ * mqtt.broker.readiness mide cuanto se tardo en ver el broker y
+ * mqtt.broker.ready vale 1 desde ese momento. Al terminar se publica el
+ * evento BrokerReady para lo que tenga que enviar algo al arrancar.
+ */
+@Component
+public class BrokerReadiness implements SmartLifecycle {
+
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+
+    private final MqttProperties mqttProperties;
+    private final Lifecycle inbound;
+    private final ApplicationEventPublisher events;
+    private final Timer readinessTimer;
+    private volatile boolean ready;
+    private volatile Thread prober;
+
+    public BrokerReadiness(MqttProperties mqttProperties, @Qualifier("inbound") MessageProducer inbound,
+                           ApplicationEventPublisher events, MeterRegistry meterRegistry) {
+        this.mqttProperties = mqttProperties;
+        this.inbound = (Lifecycle) inbound;
+        this.events = events;
+        this.readinessTimer = Timer.builder("mqtt.broker.readiness")
+            .description("Tiempo desde el arranque hasta que el broker acepta conexiones")
+            .register(meterRegistry);
+        Gauge.builder("mqtt.broker.ready", this, readiness -> readiness.isReady() ? 1 : 0)
+            .description("1 cuando el broker ha respondido y el adaptador de entrada esta arrancado")
+            .register(meterRegistry);
+    }
+
+    @Override
+    public void start() {
+        // se lee al arrancar: es la misma direccion con la que se creo la factoria de clientes
+        InetSocketAddress address = new InetSocketAddress(mqttProperties.getBrokerHost(), mqttProperties.getPort());
+        // se asigna antes de arrancarlo: awaitBroker mira prober para saber si se ha parado
+        Thread thread = Thread.ofPlatform().daemon().name("mqtt-readiness").unstarted(() -> awaitBroker(address));
+        prober = thread;
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread current = prober;
+        prober = null;
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return prober != null;
+    }
+
+    // despues del broker embebido y antes que el resto de componentes
+    @Override
+    public int getPhase() {
+        return Integer.MIN_VALUE + 2000;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    private void awaitBroker(InetSocketAddress address) {
+        long started = System.nanoTime();
+        Duration backoff = mqttProperties.getReadinessInitialBackoff();
+        int attempts = 1;
+        while (!isReachable(address)) {
+            if (attempts == 1) {
+                System.out.println("Esperando al broker MQTT en " + address.getHostString() + ":" + address.getPort() + "...");
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return; // parada del contexto antes de ver el broker
+            }
+            backoff = backoff.multipliedBy(2);
+            if (backoff.compareTo(mqttProperties.getReadinessMaxBackoff()) > 0) {
+                backoff = mqttProperties.getReadinessMaxBackoff();
+            }
+            attempts++;
+        }
+        if (prober == null) {
+            return;
+        }
+
+        long elapsed = System.nanoTime() - started;
+        readinessTimer.record(elapsed, TimeUnit.NANOSECONDS);
+        // antes de start(): quien ve el adaptador arrancado ve ya el broker como listo
+        ready = true;
+        inbound.start();
+        System.out.println("Broker MQTT disponible tras " + TimeUnit.NANOSECONDS.toMillis(elapsed)
+                           + " ms (" + attempts + " intentos), adaptador de entrada arrancado");
+        if (mqttProperties.isClustered()) {
+            System.out.println("MQTT en cluster: nodo " + mqttProperties.getNodeId() + " del grupo " + mqttProperties.getSharedGroup());
+        }
+        events.publishEvent(new BrokerReady(Duration.ofNanos(elapsed)));
+    }
+
+    public static boolean isReachable(InetSocketAddress address) {
+        try (Socket socket = new Socket()) {
+            socket.connect(address, CONNECT_TIMEOUT_MS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.casa.iot.backend.mqtt;
+
+import java.time.Duration;
+
+// evento de Spring: el broker acepta conexiones y el adaptador de entrada esta arrancado
+public record BrokerReady(Duration waited) {
+}
@@ -0,0 +1,339 @@
+package com.casa.iot.backend.mqtt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Diario en disco de los mensajes que salen por MqttGateway, para no perder
+ * comandos (horarios, RFID, luz y alarma) si el broker esta caido. Cada
+ * mensaje se anota en un fichero mapeado en memoria antes de publicarlo
+ * (QoS 1) y se marca como entregado cuando Paho recibe el PUBACK; no hay
+ * una escritura en BD ni un fsync por comando.
+ *
+ * Los que siguen pendientes se reenvian en orden cada journal-retry-interval
+ * y, al arrancar, se recuperan del fichero. Un comando con mas de
+ * journal-expiry ya no se envia (mqtt.journal.expired): encender una luz
+ * diez minutos tarde es peor que no hacerlo.
+ *
+ * Por topic solo queda pendiente el ultimo mensaje: al anotar uno nuevo los
+ * anteriores del mismo topic se descartan (mqtt.journal.superseded), asi el
+ * reenvio no publica un estado viejo detras del nuevo, y los reenvios de
+ * CommandSlots no se acumulan como copias del mismo comando.
+ *
+ * El fichero solo crece por el final; cuando se llena se compacta copiando
+ * los pendientes al principio. Sin mqtt.broker.journal-path se publica
+ * directamente, como antes (QoS 0).
+ *
+ * Formato: cabecera (magic, version) y registros [longitud, estado,
+ * secuencia, creado, longitud del topic, topic, payload]. La longitud se
+ * escribe la ultima, asi un registro a medias no se lee al recuperar.
+ */
+@Component
+public class CommandJournal {
+
+    private static final int MAGIC = 0x434A4E4C; // "CJNL"
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    // longitud(4) estado(1) secuencia(8) creado(8) longitud del topic(2)
+    private static final int RECORD_HEADER = 23;
+    private static final byte PENDING = 1;
+    private static final byte ACKED = 2;
+    private static final byte EXPIRED = 3;
+    private static final byte SUPERSEDED = 4;
+    private static final byte[] ZEROS = new byte[4096];
+
+    private final MqttOutboundPool outboundPool;
+    private final MqttProperties mqttProperties;
+    private final Clock clock;
+    private final Counter replayed;
+    private final Counter expired;
+    private final Counter full;
+    private final Counter superseded;
+    // pendientes por secuencia: el mismo orden que en el fichero
+    private final TreeMap<Long, Entry> pending = new TreeMap<>();
+    private FileChannel channel;
+    private volatile MappedByteBuffer buffer;
+    private int writePosition = HEADER;
+    private long nextSequence = 1;
+
+    @Autowired
+    public CommandJournal(MqttOutboundPool outboundPool, MqttProperties mqttProperties, MeterRegistry meterRegistry) {
+        this(outboundPool, mqttProperties, meterRegistry, Clock.systemDefaultZone());
+    }
+
+    public CommandJournal(MqttOutboundPool outboundPool, MqttProperties mqttProperties, MeterRegistry meterRegistry,
+                          Clock clock) {
+        this.outboundPool = outboundPool;
+        this.mqttProperties = mqttProperties;
+        this.clock = clock;
+        this.replayed = Counter.builder("mqtt.journal.replayed")
+            .description("Mensajes reenviados desde el diario de salida")
+            .register(meterRegistry);
+        this.expired = Counter.builder("mqtt.journal.expired")
+            .description("Mensajes del diario descartados por antiguos sin haberse entregado")
+            .register(meterRegistry);
+        this.full = Counter.builder("mqtt.journal.full")
+            .description("Mensajes enviados sin anotar porque el diario estaba lleno")
+            .register(meterRegistry);
+        this.superseded = Counter.builder("mqtt.journal.superseded")
+            .description("Mensajes pendientes del diario sustituidos por uno mas nuevo del mismo topic")
+            .register(meterRegistry);
+        Gauge.builder("mqtt.journal.pending", this, CommandJournal::getPending)
+            .description("Mensajes anotados en el diario y aun no entregados al broker")
+            .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public synchronized void open() {
+        String path = mqttProperties.getJournalPath();
+        if (path == null || path.isBlank()) {
+            return;
+        }
+        try {
+            Path file = Path.of(path).toAbsolutePath();
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mqttProperties.getJournalSize());
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo abrir el diario MQTT " + path, e);
+        }
+        if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION) {
+            recover();
+        } else {
+            zero(0, buffer.capacity());
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+        }
+        System.out.println("Diario MQTT en " + path + ": " + pending.size() + " mensajes pendientes");
+    }
+
+    public boolean isEnabled() {
+        return buffer != null;
+    }
+
+    /**
+     * Anota el mensaje y lo publica. Si ya esta en el diario un fallo no es un
+     * error para quien publica: queda pendiente para el siguiente reenvio. Sin
+     * diario (o con el diario lleno) el futuro falla como el de MqttOutboundPool.
+     */
+    public CompletableFuture<Void> publish(String topic, byte[] payload) {
+        if (!isEnabled()) {
+            return outboundPool.publish(topic, payload, 0);
+        }
+        Entry entry = append(topic, payload);
+        if (entry == null) {
+            return outboundPool.publish(topic, payload, 1);
+        }
+        return send(entry).exceptionally(error -> {
+            System.out.println("Sin entregar, queda en el diario: " + topic + " (" + error.getMessage() + ")");
+            return null;
+        });
+    }
+
+    @Scheduled(fixedDelay = 1000)
+    public void replay() {
+        if (!isEnabled()) {
+            return;
+        }
+        long now = clock.millis();
+        long expiry = mqttProperties.getJournalExpiry().toMillis();
+        long retryInterval = mqttProperties.getJournalRetryInterval().toMillis();
+        List<Entry> due = new ArrayList<>();
+        synchronized (this) {
+            if (buffer == null) {
+                return; // cerrado mientras tanto
+            }
+            Iterator<Entry> entries = pending.values().iterator();
+            while (entries.hasNext()) {
+                Entry entry = entries.next();
+                if (now - entry.createdAt > expiry) {
+                    entries.remove();
+                    buffer.put(entry.position + 4, EXPIRED);
+                    expired.increment();
+                    System.out.println("Descartado del diario por antiguo: " + entry.topic);
+                } else if (now - entry.lastAttempt >= retryInterval) {
+                    due.add(entry);
+                }
+            }
+        }
+        for (Entry entry : due) {
+            replayed.increment();
+            send(entry);
+        }
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (buffer == null) {
+            return;
+        }
+        buffer.force();
+        buffer = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error cerrando el diario MQTT: " + e.getMessage());
+        }
+    }
+
+    private CompletableFuture<Void> send(Entry entry) {
+        synchronized (this) {
+            if (pending.get(entry.sequence) != entry) {
+                return CompletableFuture.completedFuture(null); // entregado o sustituido mientras esperaba
+            }
+            entry.lastAttempt = clock.millis();
+        }
+        return outboundPool.publish(entry.topic, entry.payload, 1).whenComplete((ok, error) -> {
+            if (error == null) {
+                acknowledge(entry.sequence);
+            }
+        });
+    }
+
+    private synchronized Entry append(String topic, byte[] payload) {
+        if (buffer == null) {
+            return null;
+        }
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER + topicBytes.length + payload.length;
+        if (writePosition + length > buffer.capacity()) {
+            compact();
+            if (writePosition + length > buffer.capacity()) {
+                full.increment();
+                return null;
+            }
+        }
+        int position = writePosition;
+        long now = clock.millis();
+        long sequence = nextSequence++;
+        buffer.put(position + 4, PENDING);
+        buffer.putLong(position + 5, sequence);
+        buffer.putLong(position + 13, now);
+        buffer.putShort(position + 21, (short) topicBytes.length);
+        buffer.put(position + RECORD_HEADER, topicBytes);
+        buffer.put(position + RECORD_HEADER + topicBytes.length, payload);
+        buffer.putInt(position, length);
+        writePosition += length;
+
+        Entry entry = new Entry(sequence, position, topic, payload, now);
+        supersede(topic);
+        pending.put(sequence, entry);
+        return entry;
+    }
+
+    private synchronized void acknowledge(long sequence) {
+        Entry entry = pending.remove(sequence);
+        if (entry != null && buffer != null) {
+            buffer.put(entry.position + 4, ACKED);
+        }
+    }
+
+    // el mensaje nuevo sustituye a los pendientes del mismo topic
+    private void supersede(String topic) {
+        Iterator<Entry> entries = pending.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.topic.equals(topic)) {
+                entries.remove();
+                buffer.put(entry.position + 4, SUPERSEDED);
+                superseded.increment();
+            }
+        }
+    }
+
+    // lee los registros hasta el primero incompleto; los pendientes vuelven a la cola
+    private void recover() {
+        int position = HEADER;
+        while (position + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < RECORD_HEADER || position + length > buffer.capacity()) {
+                break;
+            }
+            byte state = buffer.get(position + 4);
+            long sequence = buffer.getLong(position + 5);
+            long createdAt = buffer.getLong(position + 13);
+            int topicLength = buffer.getShort(position + 21) & 0xFFFF;
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            if (state == PENDING && RECORD_HEADER + topicLength <= length) {
+                byte[] topic = new byte[topicLength];
+                byte[] payload = new byte[length - RECORD_HEADER - topicLength];
+                buffer.get(position + RECORD_HEADER, topic);
+                buffer.get(position + RECORD_HEADER + topicLength, payload);
+                Entry entry = new Entry(sequence, position, new String(topic, StandardCharsets.UTF_8), payload, createdAt);
+                entry.lastAttempt = 0; // se reenvia en el primer replay
+                supersede(entry.topic); // diarios de antes de descartar por topic
+                pending.put(sequence, entry);
+            }
+            position += length;
+        }
+        writePosition = position;
+        zero(writePosition, buffer.capacity());
+    }
+
+    // copia los pendientes al principio, en orden, y limpia el resto
+    private void compact() {
+        int target = HEADER;
+        for (Entry entry : pending.values()) {
+            int length = buffer.getInt(entry.position);
+            if (entry.position != target) {
+                byte[] record = new byte[length];
+                buffer.get(entry.position, record);
+                buffer.put(target, record);
+                entry.position = target;
+            }
+            target += length;
+        }
+        zero(target, writePosition);
+        writePosition = target;
+    }
+
+    private void zero(int from, int to) {
+        for (int position = from; position < to; position += ZEROS.length) {
+            buffer.put(position, ZEROS, 0, Math.min(ZEROS.length, to - position));
+        }
+    }
+
+    private static final class Entry {
+        private final long sequence;
+        private final String topic;
+        private final byte[] payload;
+        private final long createdAt;
+        private int position;
+        private long lastAttempt;
+
+        private Entry(long sequence, int position, String topic, byte[] payload, long createdAt) {
+            this.sequence = sequence;
+            this.position = position;
+            this.topic = topic;
+            this.payload = payload;
+            this.createdAt = createdAt;
+            this.lastAttempt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.casa.iot.backend.mqtt;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tabla de comandos pendientes de confirmacion, con un hueco por topic de
+ * comando ("salon/lig/command"). Cada comando lleva un id de correlacion
+ * ("cid") que la placa devuelve en la confirmacion.
+ *
+ * Mientras el comando enviado no se ha confirmado, los siguientes no se
+ * publican y solo se guarda el mas reciente; los intermedios se descartan
+ * (mqtt.command.superseded). Sin confirmacion en command-inflight-timeout
+ * el comando se reenvia con el mismo cid, doblando la espera cada vez,
+ * hasta command-max-retries reenvios (mqtt.command.retries); despues se da
+ * por perdido (mqtt.command.expired) y se libera el hueco.
+ *
+ * mqtt.command.rtt mide desde el primer envio hasta la confirmacion, por
+ * subsistema y habitacion. Cada comando tiene un futuro que se completa con
+ * su PendingCommand.Outcome (lo usa la API con ?await).
+ *
+ * Las ordenes para varias habitaciones (sendAll) no esperan turno:
+ * sustituyen al comando en vuelo y al pendiente de cada hueco
+ * (supersede) y quedan ellas en vuelo, asi ni un reenvio ni un pendiente
+ * anterior sale detras y una confirmacion sin cid se refiere a ellas. Un
+ * broadcast sin cid vacia los huecos de su subsistema (clear).
+ *
+ * El monitor del hueco solo protege la contabilidad: los envios se dejan en
+ * una cola del hueco y se publican fuera del lock, de uno en uno y en orden,
+ * para no parar los hilos MQTT ni el scheduler mientras MqttGateway espera
+ * a conectar.
+ */
+@Component
+public class CommandSlots {
+
+    private final long inflightTimeoutMillis;
+    private final int maxRetries;
+    private final DeviceMetrics metrics;
+    private final Clock clock;
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+
+    @Autowired
+    public CommandSlots(MqttProperties mqttProperties, DeviceMetrics metrics) {
+        this(mqttProperties, metrics, Clock.systemDefaultZone());
+    }
+
+    public CommandSlots(MqttProperties mqttProperties, DeviceMetrics metrics, Clock clock) {
+        this.inflightTimeoutMillis = mqttProperties.getCommandInflightTimeout().toMillis();
+        this.maxRetries = mqttProperties.getCommandMaxRetries();
+        this.metrics = metrics;
+        this.clock = clock;
+    }
+
+    // envia ya si el hueco esta libre; si no, el comando queda pendiente en lugar del anterior
+    public CompletableFuture<PendingCommand.Outcome> offer(String topic, String commandId, Runnable send) {
+        Command command = new Command(commandId, send);
+        Slot slot = slots.computeIfAbsent(topic, key -> new Slot());
+        synchronized (slot) {
+            if (slot.inFlight != null) {
+                if (slot.pending != null) {
+                    metrics.count("mqtt.command.superseded", "subsystem", DeviceMetrics.subsystem(topic));
+                    slot.pending.outcome.complete(PendingCommand.Outcome.SUPERSEDED);
+                }
+                slot.pending = command;
+                return command.outcome;
+            }
+            slot.send(command, clock.millis());
+        }
+        publish(slot, command);
+        return command.outcome;
+    }
+
+    /**
+     * Comando de un lote: pasa a ser el comando en vuelo del topic y los
+     * anteriores (en vuelo y pendiente) terminan como SUPERSEDED. Si otro hilo
+     * esta publicando en ese hueco el comando se deja en su cola, para que no
+     * salga antes que lo que ese hilo ya esta enviando.
+     *
+     * @return true si quien llama debe publicarlo (en su lote); false si ya lo publica el hueco
+     */
+    public boolean supersede(String topic, String commandId, Runnable send) {
+        Command command = new Command(commandId, send);
+        Slot slot = slots.computeIfAbsent(topic, key -> new Slot());
+        synchronized (slot) {
+            slot.discard(topic, metrics);
+            slot.send(command, clock.millis());
+            if (slot.publishing) {
+                return false;
+            }
+            slot.outbox.remove(command);
+            command.sent = true;
+            return true;
+        }
+    }
+
+    // broadcast a todas las placas: ya no hay nada que esperar ni reenviar en los huecos del subsistema
+    public void clear(String subsystem) {
+        String suffix = "/" + subsystem + "/command";
+        slots.forEach((topic, slot) -> {
+            if (topic.endsWith(suffix)) {
+                synchronized (slot) {
+                    slot.discard(topic, metrics);
+                }
+            }
+        });
+    }
+
+    /**
+     * Confirmacion del dispositivo para ese topic de comando. Si trae cid y no
+     * es el del comando en vuelo (confirmacion tardia de uno anterior) se
+     * ignora; las placas sin cid confirman siempre el comando en vuelo.
+     *
+     * @param success false si el dispositivo contesto con error
+     * @return false si no habia comando en vuelo que confirmar
+     */
+    public boolean release(String topic, String commandId, boolean success) {
+        Slot slot = slots.get(topic);
+        if (slot == null) {
+            return false;
+        }
+        synchronized (slot) {
+            Command inFlight = slot.inFlight;
+            if (inFlight == null || (commandId != null && !commandId.equals(inFlight.id))) {
+                return false;
+            }
+            long now = clock.millis();
+            metrics.record("mqtt.command.rtt", Duration.ofMillis(now - inFlight.firstSentAt),
+                "subsystem", DeviceMetrics.subsystem(topic),
+                "room", metrics.room(DeviceMetrics.roomOf(topic)),
+                "retried", inFlight.attempts > 1 ? "true" : "false");
+            inFlight.outcome.complete(success ? PendingCommand.Outcome.CONFIRMED : PendingCommand.Outcome.FAILED);
+            slot.next(now);
+        }
+        publish(slot, null);
+        return true;
+    }
+
+    @Scheduled(fixedDelay = 500)
+    public void retryExpired() {
+        long now = clock.millis();
+        for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+            String topic = entry.getKey();
+            Slot slot = entry.getValue();
+            synchronized (slot) {
+                Command inFlight = slot.inFlight;
+                if (inFlight == null || now - inFlight.lastSentAt < inFlight.waitMillis(inflightTimeoutMillis)) {
+                    continue;
+                }
+                String subsystem = DeviceMetrics.subsystem(topic);
+                if (slot.pending == null && inFlight.attempts <= maxRetries) {
+                    System.out.println("Sin confirmacion para " + topic + " (cid " + inFlight.id + "), reenviando");
+                    metrics.count("mqtt.command.retries", "subsystem", subsystem);
+                    slot.resend(now);
+                } else {
+                    // perdido, o ya hay uno mas nuevo que lo sustituye
+                    System.out.println("Sin confirmacion para " + topic + " (cid " + inFlight.id + "), se libera el comando");
+                    metrics.count("mqtt.command.expired", "subsystem", subsystem);
+                    inFlight.outcome.complete(slot.pending != null
+                        ? PendingCommand.Outcome.SUPERSEDED : PendingCommand.Outcome.EXPIRED);
+                    slot.next(now);
+                }
+            }
+            publish(slot, null);
+        }
+    }
+
+    /**
+     * Publica lo que haya en la cola del hueco, ya fuera del monitor. Solo un
+     * hilo publica a la vez por hueco (los demas dejan su envio en la cola y
+     * siguen), asi un reenvio no puede salir detras del comando que lo sustituye.
+     * Si falla el primer envio de own, la excepcion llega al que llamo a offer().
+     */
+    private void publish(Slot slot, Command own) {
+        synchronized (slot) {
+            if (slot.publishing) {
+                return;
+            }
+            slot.publishing = true;
+        }
+        RuntimeException ownError = null;
+        while (true) {
+            Command command;
+            synchronized (slot) {
+                command = slot.outbox.poll();
+                if (command == null) {
+                    slot.publishing = false;
+                    break;
+                }
+                if (command != slot.inFlight) {
+                    continue; // confirmado o sustituido mientras esperaba en la cola
+                }
+            }
+            try {
+                command.send.run();
+                command.sent = true;
+            } catch (RuntimeException e) {
+                if (command.sent) {
+                    System.err.println("Error reenviando comando " + command.id + ": " + e.getMessage());
+                    continue;
+                }
+                // no ha salido, no hay confirmacion que esperar
+                synchronized (slot) {
+                    if (slot.inFlight == command) {
+                        slot.next(clock.millis());
+                    }
+                }
+                command.outcome.completeExceptionally(e);
+                if (command == own) {
+                    ownError = e;
+                } else {
+                    System.err.println("Error enviando comando " + command.id + ": " + e.getMessage());
+                }
+            }
+        }
+        if (ownError != null) {
+            throw ownError;
+        }
+    }
+
+    // id del comando en vuelo en ese topic, o null
+    public String inFlight(String topic) {
+        Slot slot = slots.get(topic);
+        if (slot == null) {
+            return null;
+        }
+        synchronized (slot) {
+            return slot.inFlight != null ? slot.inFlight.id : null;
+        }
+    }
+
+    public boolean hasPending(String topic) {
+        Slot slot = slots.get(topic);
+        if (slot == null) {
+            return false;
+        }
+        synchronized (slot) {
+            return slot.pending != null;
+        }
+    }
+
+    private static final class Command {
+        private final String id;
+        private final Runnable send;
+        private final CompletableFuture<PendingCommand.Outcome> outcome = new CompletableFuture<>();
+        private long firstSentAt;
+        private long lastSentAt;
+        private int attempts;
+        private boolean sent; // solo lo toca el hilo que publica
+
+        private Command(String id, Runnable send) {
+            this.id = id;
+            this.send = send;
+        }
+
+        // espera antes del siguiente reenvio: timeout, 2 x timeout, 4 x timeout...
+        private long waitMillis(long timeoutMillis) {
+            return timeoutMillis << Math.min(attempts - 1, 16);
+        }
+    }
+
+    // los metodos del hueco se llaman con su monitor tomado y solo encolan el envio
+    private static final class Slot {
+        private Command inFlight;
+        private Command pending;
+        private final ArrayDeque<Command> outbox = new ArrayDeque<>();
+        private boolean publishing;
+
+        private void send(Command command, long now) {
+            command.firstSentAt = now;
+            inFlight = command;
+            resend(now);
+        }
+
+        private void resend(long now) {
+            inFlight.lastSentAt = now;
+            inFlight.attempts++;
+            outbox.add(inFlight);
+        }
+
+        // el en vuelo y el pendiente se sustituyen sin enviarse mas
+        private void discard(String topic, DeviceMetrics metrics) {
+            for (Command command : new Command[] {inFlight, pending}) {
+                if (command != null) {
+                    metrics.count("mqtt.command.superseded", "subsystem", DeviceMetrics.subsystem(topic));
+                    command.outcome.complete(PendingCommand.Outcome.SUPERSEDED);
+                }
+            }
+            inFlight = null;
+            pending = null;
+            outbox.clear();
+        }
+
+        private void next(long now) {
+            Command command = pending;
+            pending = null;
+            inFlight = null;
+            if (command != null) {
+                send(command, now);
+            }
+        }
+    }
+}
@@ -0,0 +1,4 @@
+package com.casa.iot.backend.mqtt;
+
+// comando para un dispositivo: topic sin sufijo de formato y campos en pares nombre/valor
+public record DeviceCommand(String topic, String... fields) {}
@@ -0,0 +1,181 @@
+package com.casa.iot.backend.mqtt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+import org.springframework.stereotype.Component;
+
+import com.casa.iot.backend.mqtt.message.DeviceMessageCodec;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Envia comandos a los dispositivos en el formato que usa cada uno: JSON en
+ * "{room}/lig/command" o MessagePack en "{room}/lig/command/msgpack". Los
+ * campos se pasan como pares nombre/valor: ("command", "SET_LIGHT", "state", "ON").
+ *
+ * send() publica un comando por MqttGateway y sendLatest() lo mismo pero
+ * pasando por CommandSlots (solo el ultimo comando pendiente por topic se
+ * envia). sendAll() y broadcast() salen
+ * por MqttCommandPublisher en un solo lote con un futuro para todo el lote;
+ * los comandos de sendAll llevan cid y sustituyen a los de CommandSlots de
+ * cada topic. broadcast() solo se usa con mqtt.broker.broadcast-commands
+ * activo: un unico mensaje JSON en "all/{subsistema}/command" para todas
+ * las placas, que vacia los huecos de ese subsistema.
+ */
+@Component
+public class DeviceCommandSender {
+
+    private final MqttGateway mqttGateway;
+    private final PayloadFormats payloadFormats;
+    private final MqttCommandPublisher commandPublisher;
+    private final CommandSlots commandSlots;
+    private final boolean broadcastEnabled;
+    private final String idPrefix = Long.toString(System.currentTimeMillis() % 1_000_000, 36) + "-";
+    private final AtomicLong commandSequence = new AtomicLong();
+    private final JsonFactory json = new JsonFactory();
+    private final MessagePackFactory msgpack = new MessagePackFactory();
+
+    public DeviceCommandSender(MqttGateway mqttGateway, PayloadFormats payloadFormats,
+                               MqttCommandPublisher commandPublisher, CommandSlots commandSlots,
+                               MqttProperties mqttProperties) {
+        this.mqttGateway = mqttGateway;
+        this.payloadFormats = payloadFormats;
+        this.commandPublisher = commandPublisher;
+        this.commandSlots = commandSlots;
+        this.broadcastEnabled = mqttProperties.isBroadcastCommands();
+    }
+
+    public void send(String topic, String... fields) {
+        checkFields(fields);
+        int slash = topic.indexOf('/');
+        String device = slash < 0 ? topic : topic.substring(0, slash);
+        try {
+            if (payloadFormats.isMsgPack(device)) {
+                mqttGateway.sendToMqtt(msgpack(fields), topic + DeviceMessageCodec.MSGPACK_SUFFIX);
+            } else {
+                mqttGateway.sendToMqtt(json(fields), topic);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Comandos de estado (luz, alarma): se anade un "cid" que la placa devuelve
+     * en la confirmacion y, mientras haya uno sin confirmar, solo cuenta el
+     * ultimo (ver CommandSlots).
+     *
+     * @return id de correlacion del comando y futuro con su resultado
+     */
+    public PendingCommand sendLatest(String topic, String... fields) {
+        checkFields(fields);
+        String commandId = nextCommandId();
+        String[] withId = withCommandId(fields, commandId);
+        return new PendingCommand(commandId, commandSlots.offer(topic, commandId, () -> send(topic, withId)));
+    }
+
+    private static String[] withCommandId(String[] fields, String commandId) {
+        String[] withId = Arrays.copyOf(fields, fields.length + 2);
+        withId[fields.length] = "cid";
+        withId[fields.length + 1] = commandId;
+        return withId;
+    }
+
+    // llamado al recibir la confirmacion del dispositivo para ese topic de comando
+    public boolean confirmed(String topic, String commandId, boolean success) {
+        return commandSlots.release(topic, commandId, success);
+    }
+
+    // corto para no engordar el payload; el prefijo evita repetir ids tras un reinicio
+    private String nextCommandId() {
+        return idPrefix + Long.toString(commandSequence.incrementAndGet(), 36);
+    }
+
+    // todos los comandos en un lote; cada uno en el formato de su dispositivo
+    public CompletableFuture<Void> sendAll(List<DeviceCommand> commands) {
+        List<MqttCommandPublisher.Outgoing> encoded = new ArrayList<>(commands.size());
+        List<String[]> withIds = new ArrayList<>(commands.size());
+        try {
+            for (DeviceCommand command : commands) {
+                checkFields(command.fields());
+                String topic = command.topic();
+                String[] withId = withCommandId(command.fields(), nextCommandId());
+                int slash = topic.indexOf('/');
+                String device = slash < 0 ? topic : topic.substring(0, slash);
+                encoded.add(payloadFormats.isMsgPack(device)
+                    ? new MqttCommandPublisher.Outgoing(topic + DeviceMessageCodec.MSGPACK_SUFFIX, msgpack(withId))
+                    : new MqttCommandPublisher.Outgoing(topic, json(withId).getBytes(StandardCharsets.UTF_8)));
+                withIds.add(withId);
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        // ya codificados todos: ahora sustituyen a lo que hubiera en cada hueco
+        List<MqttCommandPublisher.Outgoing> batch = new ArrayList<>(commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            String topic = commands.get(i).topic();
+            String[] withId = withIds.get(i);
+            // los reenvios salen sueltos, como los de sendLatest
+            if (commandSlots.supersede(topic, withId[withId.length - 1], () -> send(topic, withId))) {
+                batch.add(encoded.get(i));
+            }
+        }
+        return commandPublisher.publishAll(batch);
+    }
+
+    public boolean isBroadcastEnabled() {
+        return broadcastEnabled;
+    }
+
+    // las placas aceptan comandos JSON aunque publiquen en MessagePack
+    public CompletableFuture<Void> broadcast(String subsystem, String... fields) {
+        checkFields(fields);
+        commandSlots.clear(subsystem);
+        try {
+            return commandPublisher.publishAll(List.of(new MqttCommandPublisher.Outgoing(
+                "all/" + subsystem + "/command", json(fields).getBytes(StandardCharsets.UTF_8))));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private String json(String[] fields) throws IOException {
+        StringWriter out = new StringWriter(64);
+        try (JsonGenerator generator = json.createGenerator(out)) {
+            write(generator, fields);
+        }
+        return out.toString();
+    }
+
+    private byte[] msgpack(String[] fields) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        try (JsonGenerator generator = msgpack.createGenerator(out)) {
+            write(generator, fields);
+        }
+        return out.toByteArray();
+    }
+
+    private static void checkFields(String[] fields) {
+        if (fields.length % 2 != 0) {
+            throw new IllegalArgumentException("Los campos van en pares nombre/valor");
+        }
+    }
+
+    private static void write(JsonGenerator generator, String[] fields) throws IOException {
+        generator.writeStartObject();
+        for (int i = 0; i < fields.length; i += 2) {
+            generator.writeStringField(fields[i], fields[i + 1]);
+        }
+        generator.writeEndObject();
+    }
+}
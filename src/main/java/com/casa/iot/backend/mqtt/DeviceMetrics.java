@@ -0,0 +1,105 @@
+package com.casa.iot.backend.mqtt;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.casa.iot.backend.mqtt.message.DeviceMessageCodec;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Metricas de la cadena de mensajes de los dispositivos:
+ *   mqtt.handle      mensaje entrante completo (MqttEventHandler)
+ *   device.service   llamada al servicio con el mensaje ya decodificado
+ *   mqtt.publish     comando enviado por MqttGateway
+ *   eventlog.write   escritura de un evento en BD
+ *   mqtt.command.rtt comando enviado hasta su confirmacion (CommandSlots)
+ *
+ * Los timers publican histograma para sacar p99 desde Prometheus. Todas las
+ * etiquetas tienen valores acotados: la habitacion solo se etiqueta para
+ * las primeras device.metrics.max-room-tags habitaciones, el resto va como
+ * "other".
+ */
+@Component
+public class DeviceMetrics {
+
+    public static final String OTHER = "other";
+
+    private static final Set<String> MESSAGE_TYPES = Set.of("confirmation", "event", "register", "command", "state");
+
+    private final MeterRegistry meterRegistry;
+    private final int maxRoomTags;
+    private final Set<String> taggedRooms = ConcurrentHashMap.newKeySet();
+
+    public DeviceMetrics(MeterRegistry meterRegistry, @Value("${device.metrics.max-room-tags:20}") int maxRoomTags) {
+        this.meterRegistry = meterRegistry;
+        this.maxRoomTags = maxRoomTags;
+    }
+
+    public Timer.Sample start() {
+        return Timer.start(meterRegistry);
+    }
+
+    public void stop(Timer.Sample sample, String name, String... tags) {
+        sample.stop(Timer.builder(name)
+            .tags(tags)
+            .publishPercentileHistogram()
+            .register(meterRegistry));
+    }
+
+    public void record(String name, Duration duration, String... tags) {
+        Timer.builder(name)
+            .tags(tags)
+            .publishPercentileHistogram()
+            .register(meterRegistry)
+            .record(duration);
+    }
+
+    public void count(String name, String... tags) {
+        Counter.builder(name).tags(tags).register(meterRegistry).increment();
+    }
+
+    // etiqueta de habitacion con cardinalidad limitada
+    public String room(String room) {
+        if (room == null) {
+            return "none";
+        }
+        if (taggedRooms.contains(room)) {
+            return room;
+        }
+        synchronized (taggedRooms) {
+            if (taggedRooms.size() < maxRoomTags) {
+                taggedRooms.add(room);
+                return room;
+            }
+        }
+        return OTHER;
+    }
+
+    // "salon/lig/confirmation" -> "confirmation", "rfid/event/msgpack" -> "event"
+    public static String messageType(String topic) {
+        topic = DeviceMessageCodec.baseTopic(topic);
+        int slash = topic.lastIndexOf('/');
+        String last = slash < 0 ? topic : topic.substring(slash + 1);
+        return MESSAGE_TYPES.contains(last) ? last : OTHER;
+    }
+
+    public static String subsystem(String topic) {
+        return IngestOwnership.subsystem(topic);
+    }
+
+    // null para los topics sin habitacion (rfid)
+    public static String roomOf(String topic) {
+        if (topic.startsWith("rfid/")) {
+            return null;
+        }
+        int slash = topic.indexOf('/');
+        return slash < 0 ? null : topic.substring(0, slash);
+    }
+}
@@ -0,0 +1,215 @@
+package com.casa.iot.backend.mqtt;
+
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Sabe que dispositivos estan conectados: cualquier mensaje que publique
+ * una placa (o su "{room}/heartbeat") la marca como online, y pasa a
+ * offline si no se oye nada de ella en mqtt.broker.presence-timeout.
+ *
+ * Las caducidades van en una rueda de tiempo (hashed timing wheel) con una
+ * casilla por segundo, no en una tarea programada por dispositivo. Un
+ * mensaje de un dispositivo que ya esta online solo actualiza su hora,
+ * O(1) y sin bloqueo; la rueda avanza cada segundo y revisa solo la
+ * casilla que vence: los que han hablado desde entonces se vuelven a
+ * poner en su nueva casilla y el resto pasa a offline. La rueda solo se
+ * toca con el monitor; seen() escribe la hora antes de mirar si esta
+ * online y advance() marca offline antes de volver a mirar la hora, asi un
+ * mensaje que llega mientras caduca nunca deja al dispositivo offline.
+ *
+ * Un dispositivo que lleva presence-evict-after offline se olvida, con su
+ * metrica: el mapa no crece sin limite con topics de placas que ya no
+ * existen. Los que pasan a offline van a una cola por orden de hora.
+ *
+ * Metricas: device.presence{state=online|offline} con el total,
+ * device.online{room} (1/0) para las habitaciones etiquetadas y
+ * device.presence.changes{state} con las transiciones.
+ */
+@Component
+public class DevicePresence {
+
+    private static final long TICK_MS = 1000;
+
+    private final long timeoutMillis;
+    private final long evictMillis;
+    private final Clock clock;
+    private final DeviceMetrics metrics;
+    private final MeterRegistry meterRegistry;
+    private final ConcurrentHashMap<String, Device> devices = new ConcurrentHashMap<>();
+    private final ArrayDeque<Device>[] wheel;
+    private final int mask;
+    private final AtomicInteger online = new AtomicInteger();
+    // por hora de paso a offline; un dispositivo que vuelve y cae otra vez puede estar dos veces
+    private final ArrayDeque<Device> offline = new ArrayDeque<>();
+    private long currentTick;
+
+    @Autowired
+    public DevicePresence(MqttProperties mqttProperties, DeviceMetrics metrics, MeterRegistry meterRegistry) {
+        this(mqttProperties, metrics, meterRegistry, Clock.systemDefaultZone());
+    }
+
+    @SuppressWarnings("unchecked")
+    public DevicePresence(MqttProperties mqttProperties, DeviceMetrics metrics, MeterRegistry meterRegistry, Clock clock) {
+        this.timeoutMillis = mqttProperties.getPresenceTimeout().toMillis();
+        this.evictMillis = mqttProperties.getPresenceEvictAfter().toMillis();
+        this.clock = clock;
+        this.metrics = metrics;
+        this.meterRegistry = meterRegistry;
+        // una vuelta de la rueda cubre el timeout: no hace falta contar vueltas
+        long timeoutTicks = Math.max(1, (timeoutMillis + TICK_MS - 1) / TICK_MS);
+        int size = Integer.highestOneBit((int) Math.min(timeoutTicks + 1, 1 << 20)) << 1;
+        this.wheel = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.currentTick = clock.millis() / TICK_MS;
+        Gauge.builder("device.presence", online, AtomicInteger::get)
+            .description("Dispositivos que han dado senales de vida dentro del timeout")
+            .tag("state", "online")
+            .register(meterRegistry);
+        Gauge.builder("device.presence", this, presence -> presence.devices.size() - presence.online.get())
+            .description("Dispositivos conocidos que llevan mas del timeout sin publicar")
+            .tag("state", "offline")
+            .register(meterRegistry);
+    }
+
+    // llamado por cada mensaje entrante del dispositivo
+    public void seen(String device) {
+        if (device == null) {
+            return;
+        }
+        long now = clock.millis();
+        Device entry = devices.get(device);
+        if (entry == null) {
+            entry = devices.computeIfAbsent(device, this::register);
+        }
+        entry.lastSeen = now;
+        if (!entry.online) {
+            synchronized (this) {
+                if (entry.evicted) { // olvidado justo ahora por advance()
+                    entry = devices.computeIfAbsent(device, this::register);
+                    entry.lastSeen = now;
+                }
+                if (!entry.online) {
+                    entry.online = true;
+                    online.incrementAndGet();
+                    schedule(entry, now);
+                    metrics.count("device.presence.changes", "state", "online");
+                    System.out.println("Dispositivo online: " + device);
+                }
+            }
+        }
+    }
+
+    // dispositivo que publico el mensaje ("salon/mov/event" -> "salon"); null si lo publicamos nosotros
+    public static String deviceOf(String topic) {
+        if ("command".equals(DeviceMetrics.messageType(topic)) || topic.endsWith(RoomStatePublisher.TOPIC_SUFFIX)) {
+            return null;
+        }
+        int slash = topic.indexOf('/');
+        String device = slash < 0 ? topic : topic.substring(0, slash);
+        return device.isEmpty() || "all".equals(device) ? null : device;
+    }
+
+    public boolean isOnline(String device) {
+        Device entry = device == null ? null : devices.get(device);
+        return entry != null && entry.online;
+    }
+
+    public int getOnlineCount() {
+        return online.get();
+    }
+
+    // gira la rueda hasta el segundo actual y caduca a los que no han hablado
+    @Scheduled(fixedDelay = TICK_MS)
+    public synchronized void advance() {
+        long now = clock.millis();
+        long nowTick = now / TICK_MS;
+        if (nowTick - currentTick > wheel.length) {
+            currentTick = nowTick - wheel.length; // tras una pausa larga basta una vuelta
+        }
+        while (currentTick < nowTick) {
+            currentTick++;
+            ArrayDeque<Device> bucket = wheel[(int) (currentTick & mask)];
+            for (int i = bucket.size(); i > 0; i--) {
+                Device entry = bucket.poll();
+                long lastSeen = entry.lastSeen;
+                if (now - lastSeen < timeoutMillis) {
+                    schedule(entry, lastSeen);
+                    continue;
+                }
+                entry.online = false;
+                if (entry.lastSeen != lastSeen) {
+                    // ha hablado mientras tanto y seen() aun lo veia online
+                    entry.online = true;
+                    schedule(entry, entry.lastSeen);
+                    continue;
+                }
+                entry.offlineSince = now;
+                offline.add(entry);
+                online.decrementAndGet();
+                metrics.count("device.presence.changes", "state", "offline");
+                System.out.println("Dispositivo offline (sin mensajes en " + timeoutMillis / 1000 + " s): " + entry.name);
+            }
+        }
+        evict(now);
+    }
+
+    private void evict(long now) {
+        while (!offline.isEmpty() && now - offline.peek().offlineSince >= evictMillis) {
+            Device entry = offline.poll();
+            // si volvio a estar online (o cayo otra vez despues) no se olvida
+            if (entry.online || now - entry.offlineSince < evictMillis || entry.evicted) {
+                continue;
+            }
+            entry.evicted = true;
+            devices.remove(entry.name, entry);
+            if (entry.gauge != null) {
+                meterRegistry.remove(entry.gauge);
+            }
+            System.out.println("Dispositivo olvidado (offline desde hace " + evictMillis / 1000 + " s): " + entry.name);
+        }
+    }
+
+    private void schedule(Device entry, long lastSeen) {
+        long deadline = Math.max((lastSeen + timeoutMillis + TICK_MS - 1) / TICK_MS, currentTick + 1);
+        wheel[(int) (deadline & mask)].add(entry);
+    }
+
+    private Device register(String name) {
+        Device entry = new Device(name);
+        String tag = metrics.room(name);
+        if (!DeviceMetrics.OTHER.equals(tag)) {
+            entry.gauge = Gauge.builder("device.online", entry, device -> device.online ? 1 : 0)
+                .description("1 si el dispositivo de la habitacion esta online")
+                .tag("room", tag)
+                .register(meterRegistry);
+        }
+        return entry;
+    }
+
+    private static final class Device {
+        private final String name;
+        private volatile long lastSeen;
+        private volatile boolean online;
+        // solo con el monitor de DevicePresence
+        private long offlineSince;
+        private boolean evicted;
+        private Gauge gauge;
+
+        private Device(String name) {
+            this.name = name;
+        }
+    }
+}
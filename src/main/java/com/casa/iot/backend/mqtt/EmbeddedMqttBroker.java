@@ -0,0 +1,163 @@
+package com.casa.iot.backend.mqtt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+import io.moquette.broker.security.IAuthorizatorPolicy;
+import io.moquette.broker.subscriptions.Topic;
+import io.moquette.interception.AbstractInterceptHandler;
+import io.moquette.interception.messages.InterceptConnectionLostMessage;
+import io.moquette.interception.messages.InterceptDisconnectMessage;
+
+/**
+ * Broker MQTT dentro del backend (Moquette), para no depender de un
+ * Mosquitto instalado. Arranca antes que los adaptadores de Spring
+ * Integration, que se conectan a el por loopback, y para despues de ellos.
+ *
+ * Configuracion en mqtt.broker.embedded.*: interfaz, carpeta de
+ * persistencia (sin ella todo queda en memoria), tamano maximo de mensaje y
+ * maximo de clientes. Moquette no puede rechazar un CONNECT anonimo (no
+ * pasa por el IAuthenticator), asi que los clientes por encima del limite
+ * se quedan conectados pero sin poder publicar ni suscribirse.
+ *
+ * El hueco se ocupa en el autorizador, en el primer SUBSCRIBE o PUBLISH del
+ * cliente, que Moquette llama en linea. Los interceptores de conexion son
+ * asincronos: si el alta se hiciera ahi, el primer mensaje de un cliente
+ * podria llegar antes y ser rechazado. Solo se usan para liberar huecos.
+ */
+@Component
+@ConditionalOnProperty(prefix = "mqtt.broker", name = "mode", havingValue = "embedded")
+public class EmbeddedMqttBroker implements SmartLifecycle {
+
+    private final MqttProperties mqttProperties;
+    private final Set<String> admitted = ConcurrentHashMap.newKeySet();
+    private Server server;
+    private volatile boolean running;
+
+    public EmbeddedMqttBroker(MqttProperties mqttProperties) {
+        this.mqttProperties = mqttProperties;
+    }
+
+    @Override
+    public void start() {
+        MqttProperties.Embedded embedded = mqttProperties.getEmbedded();
+        Properties config = new Properties();
+        config.setProperty("host", embedded.getBindHost());
+        config.setProperty("port", String.valueOf(mqttProperties.getPort()));
+        config.setProperty("allow_anonymous", "true");
+        config.setProperty("netty.mqtt.message_size", String.valueOf(embedded.getMaxMessageSize()));
+        config.setProperty("telemetry_enabled", "false");
+        String persistencePath = embedded.getPersistencePath();
+        boolean persistent = persistencePath != null && !persistencePath.isBlank();
+        config.setProperty("persistence_enabled", String.valueOf(persistent));
+        if (persistent) {
+            config.setProperty("data_path", persistencePath);
+        }
+
+        server = new Server();
+        try {
+            server.startServer(new MemoryConfig(config), List.of(new ConnectionTracker()), null, null, new ConnectionLimitPolicy());
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo iniciar el broker MQTT embebido", e);
+        }
+        running = true;
+        System.out.println("Broker MQTT embebido en " + embedded.getBindHost() + ":" + mqttProperties.getPort()
+                           + (persistent ? " (persistencia en " + persistencePath + ")" : " (en memoria)")
+                           + ", max " + embedded.getMaxConnections() + " clientes");
+    }
+
+    @Override
+    public void stop() {
+        if (server != null) {
+            server.stopServer();
+        }
+        admitted.clear();
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    // antes que los adaptadores MQTT (fase por defecto Integer.MAX_VALUE / 2)
+    @Override
+    public int getPhase() {
+        return Integer.MIN_VALUE + 1000;
+    }
+
+    // clientes que ocupan hueco (han publicado o se han suscrito)
+    public int getConnectedClients() {
+        return admitted.size();
+    }
+
+    private boolean admit(String client) {
+        if (admitted.contains(client)) {
+            return true;
+        }
+        synchronized (admitted) {
+            if (admitted.contains(client)) {
+                return true;
+            }
+            if (admitted.size() < mqttProperties.getEmbedded().getMaxConnections()) {
+                admitted.add(client);
+                return true;
+            }
+        }
+        System.err.println("Broker MQTT: limite de conexiones alcanzado, " + client + " no puede publicar ni suscribirse");
+        return false;
+    }
+
+    private final class ConnectionTracker extends AbstractInterceptHandler {
+
+        @Override
+        public String getID() {
+            return "connection-limit";
+        }
+
+        // solo desconexiones; si llega tarde, tras una reconexion con el mismo id, el
+        // cliente vuelve a ocupar hueco en su siguiente mensaje
+        @Override
+        public Class<?>[] getInterceptedMessageTypes() {
+            return new Class<?>[] {InterceptDisconnectMessage.class, InterceptConnectionLostMessage.class};
+        }
+
+        @Override
+        public void onDisconnect(InterceptDisconnectMessage msg) {
+            admitted.remove(msg.getClientID());
+        }
+
+        @Override
+        public void onConnectionLost(InterceptConnectionLostMessage msg) {
+            admitted.remove(msg.getClientID());
+        }
+
+        @Override
+        public void onSessionLoopError(Throwable error) {
+            System.err.println("Error en el broker MQTT embebido: " + error.getMessage());
+        }
+    }
+
+    private final class ConnectionLimitPolicy implements IAuthorizatorPolicy {
+
+        @Override
+        public boolean canWrite(Topic topic, String user, String client) {
+            return admit(client);
+        }
+
+        @Override
+        public boolean canRead(Topic topic, String user, String client) {
+            return admit(client);
+        }
+    }
+}
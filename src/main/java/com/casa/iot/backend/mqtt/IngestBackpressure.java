@@ -0,0 +1,120 @@
+package com.casa.iot.backend.mqtt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.integration.mqtt.support.MqttHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+
+import com.casa.iot.backend.mqtt.message.DeviceMessageCodec;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Limita los mensajes pendientes en las colas de mqttInputChannel. Los
+ * mensajes pasan por admit() antes de encolarse y liberan su hueco en
+ * afterMessageHandled, cuando el hilo de la particion termina con ellos.
+ *
+ * Confirmaciones, cambios de alarma y RFID se aceptan siempre. Los
+ * MOVEMENT_DETECTED solo entran mientras haya hueco: con la cola llena se
+ * descartan, y se cuentan como "coalesced" si esa habitacion ya tiene otro
+ * movimiento en cola (no se pierde informacion) o como "dropped" si no.
+ * Asi un PIR que oscila no puede llenar la memoria ni retrasar sin limite
+ * al resto de habitaciones. El contador de una habitacion solo existe
+ * mientras tiene movimientos en cola: los topics con nombres de habitacion
+ * inventados no dejan entradas para siempre.
+ */
+@Component
+public class IngestBackpressure implements ExecutorChannelInterceptor {
+
+    // marca los movimientos aceptados para liberar su hueco al terminar
+    static final String MOVEMENT_ROOM_HEADER = "ingest_movementRoom";
+
+    private final int capacity;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicInteger> pendingMovements = new ConcurrentHashMap<>();
+    private final Counter accepted;
+    private final Counter coalesced;
+    private final Counter dropped;
+
+    public IngestBackpressure(MqttProperties mqttProperties, MeterRegistry meterRegistry) {
+        this.capacity = mqttProperties.getIngestCapacity();
+        this.accepted = Counter.builder("mqtt.ingest.accepted")
+            .description("Mensajes MQTT aceptados para procesar")
+            .register(meterRegistry);
+        this.coalesced = Counter.builder("mqtt.ingest.coalesced")
+            .description("Movimientos descartados porque la habitacion ya tenia otro en cola")
+            .register(meterRegistry);
+        this.dropped = Counter.builder("mqtt.ingest.dropped")
+            .description("Movimientos descartados por cola llena")
+            .register(meterRegistry);
+        Gauge.builder("mqtt.ingest.pending", pending, AtomicInteger::get)
+            .description("Mensajes MQTT en cola o en proceso")
+            .register(meterRegistry);
+    }
+
+    // devuelve el mensaje a encolar o null si se descarta
+    public Message<?> admit(Message<?> message) {
+        if (!isMovement(message)) {
+            accept();
+            return message;
+        }
+
+        String room = MqttConfig.roomKey(message);
+        if (pending.get() >= capacity) {
+            if (pendingMovements.containsKey(room)) {
+                coalesced.increment();
+            } else {
+                dropped.increment();
+            }
+            return null;
+        }
+        pendingMovements.compute(room, (key, count) -> {
+            AtomicInteger roomPending = count != null ? count : new AtomicInteger();
+            roomPending.incrementAndGet();
+            return roomPending;
+        });
+        accept();
+        return MessageBuilder.fromMessage(message).setHeader(MOVEMENT_ROOM_HEADER, room).build();
+    }
+
+    @Override
+    public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler, Exception ex) {
+        pending.decrementAndGet();
+        String room = message.getHeaders().get(MOVEMENT_ROOM_HEADER, String.class);
+        if (room != null) {
+            // el ultimo movimiento de la habitacion borra su contador
+            pendingMovements.computeIfPresent(room, (key, count) -> count.decrementAndGet() > 0 ? count : null);
+        }
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    // habitaciones con algun movimiento en cola
+    public int getTrackedRooms() {
+        return pendingMovements.size();
+    }
+
+    private void accept() {
+        pending.incrementAndGet();
+        accepted.increment();
+    }
+
+    private boolean isMovement(Message<?> message) {
+        Object topic = message.getHeaders().get(MqttHeaders.RECEIVED_TOPIC);
+        if (topic == null || !DeviceMessageCodec.baseTopic(topic.toString()).endsWith("/mov/event")) {
+            return false;
+        }
+        DeviceMessageCodec.Fields fields = MqttConfig.fields(message);
+        return fields != null && fields.isMovementDetected();
+    }
+}
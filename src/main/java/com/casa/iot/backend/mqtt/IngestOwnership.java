@@ -0,0 +1,61 @@
+package com.casa.iot.backend.mqtt;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Cuenta los mensajes que procesa este nodo, por subsistema. Con
+ * suscripciones compartidas el broker reparte los mensajes entre los nodos
+ * del grupo, y la suma de mqtt.ingest.owned por la etiqueta node muestra
+ * que parte del trafico se queda cada uno.
+ */
+@Component
+public class IngestOwnership {
+
+    // etiquetas acotadas: los nombres de habitacion no van en la metrica
+    private static final Set<String> SUBSYSTEMS = Set.of("lig", "mov", "sou", "rfid", "state");
+
+    private final MeterRegistry meterRegistry;
+    private final String nodeId;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    public IngestOwnership(MqttProperties mqttProperties, MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.nodeId = mqttProperties.getNodeId();
+        Gauge.builder("mqtt.cluster.shared", mqttProperties, properties -> properties.isClustered() ? 1 : 0)
+            .description("1 si el nodo consume con suscripciones compartidas")
+            .tag("node", nodeId)
+            .tag("group", mqttProperties.isClustered() ? mqttProperties.getSharedGroup() : "none")
+            .register(meterRegistry);
+    }
+
+    public void record(String topic) {
+        counters.computeIfAbsent(subsystem(topic), subsystem -> Counter.builder("mqtt.ingest.owned")
+            .description("Mensajes MQTT procesados por este nodo")
+            .tag("node", nodeId)
+            .tag("subsystem", subsystem)
+            .register(meterRegistry))
+            .increment();
+    }
+
+    // "salon/lig/confirmation" -> "lig", "rfid/event" -> "rfid"
+    static String subsystem(String topic) {
+        int first = topic.indexOf('/');
+        if (first < 0) {
+            return "other";
+        }
+        if (topic.startsWith("rfid/")) {
+            return "rfid";
+        }
+        int second = topic.indexOf('/', first + 1);
+        String segment = topic.substring(first + 1, second < 0 ? topic.length() : second);
+        return SUBSYSTEMS.contains(segment) ? segment : "other";
+    }
+}
@@ -0,0 +1,114 @@
+package com.casa.iot.backend.mqtt;
+
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.integration.mqtt.support.MqttHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+
+import com.casa.iot.backend.mqtt.message.DeviceMessageCodec;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Filtra los mensajes repetidos que entrega el broker al reconectar con
+ * sesion persistente. Se recuerda cada mensaje procesado durante
+ * dedup-ttl (como mucho dedup-max-entries), con el msgId del dispositivo si
+ * lo trae o con un hash del topic y el payload si no.
+ *
+ * Un mensaje con msgId ya visto se descarta siempre. Sin msgId solo se
+ * descarta si el broker lo marca como reenvio (DUP): los dispositivos
+ * mandan payloads identicos de forma legitima (dos confirmaciones "ON",
+ * dos pasadas de la misma tarjeta) y esos no se pueden perder.
+ *
+ * Solo hay reenvios de mensajes publicados con QoS 1/2 y que no se
+ * confirmaron (el ack se manda al terminar de procesarlos, ver MqttConfig).
+ * El ESP32 publica con QoS 0 y el broker no le guarda nada: para sus
+ * mensajes el msgId solo filtra copias que el mismo dispositivo reenvie.
+ */
+@Component
+public class MessageDeduplicator {
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final Clock clock;
+    private final Counter duplicates;
+    // orden de insercion: los mas antiguos caducan antes
+    private final LinkedHashMap<Object, Long> seen = new LinkedHashMap<>();
+
+    @Autowired
+    public MessageDeduplicator(MqttProperties mqttProperties, MeterRegistry meterRegistry) {
+        this(mqttProperties, meterRegistry, Clock.systemUTC());
+    }
+
+    public MessageDeduplicator(MqttProperties mqttProperties, MeterRegistry meterRegistry, Clock clock) {
+        this.ttlMillis = mqttProperties.getDedupTtl().toMillis();
+        this.maxEntries = mqttProperties.getDedupMaxEntries();
+        this.clock = clock;
+        this.duplicates = Counter.builder("mqtt.ingest.duplicates")
+            .description("Mensajes MQTT descartados por estar ya procesados")
+            .register(meterRegistry);
+    }
+
+    // true si el mensaje ya se proceso; si no, lo recuerda
+    public boolean isDuplicate(Message<?> message) {
+        Object topic = message.getHeaders().get(MqttHeaders.RECEIVED_TOPIC);
+        if (topic == null || !(message.getPayload() instanceof byte[] payload)) {
+            return false;
+        }
+        boolean redelivered = Boolean.TRUE.equals(message.getHeaders().get(MqttHeaders.DUPLICATE, Boolean.class));
+        DeviceMessageCodec.Fields fields = MqttConfig.fields(message);
+        String messageId = fields != null ? fields.messageId() : null;
+        Object key = messageId != null ? topic + "#" + messageId : hash(topic.toString(), payload);
+
+        if (remember(key) && (messageId != null || redelivered)) {
+            duplicates.increment();
+            System.out.println("Mensaje MQTT duplicado descartado: " + topic);
+            return true;
+        }
+        return false;
+    }
+
+    // true si la clave seguia en la cache
+    private synchronized boolean remember(Object key) {
+        long now = clock.millis();
+        expire(now);
+        Long previous = seen.remove(key); // al final de la cola con la nueva caducidad
+        seen.put(key, now + ttlMillis);
+        if (seen.size() > maxEntries) {
+            Iterator<Object> eldest = seen.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        return previous != null && previous > now;
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<Object, Long>> entries = seen.entrySet().iterator();
+        while (entries.hasNext() && entries.next().getValue() <= now) {
+            entries.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return seen.size();
+    }
+
+    // FNV-1a de 64 bits sobre topic y payload
+    static long hash(String topic, byte[] payload) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < topic.length(); i++) {
+            h = (h ^ topic.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ '\n') * 0x100000001b3L;
+        for (byte b : payload) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return h;
+    }
+}
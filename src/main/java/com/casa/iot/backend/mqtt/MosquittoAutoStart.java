@@ -4,15 +4,19 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
 @Component
+@ConditionalOnProperty(prefix = "mqtt.broker", name = "mode", havingValue = "external", matchIfMissing = true)
 public class MosquittoAutoStart {
     
     @Autowired
@@ -36,13 +40,8 @@ public class MosquittoAutoStart {
                 System.out.println("Iniciando Mosquitto automáticamente...");
                 try {
                     startMosquittoProcess();
-                    Thread.sleep(3000); 
-                    
-                    if (isMosquittoRunning()) {
-                        System.out.println("Mosquitto iniciado correctamente en " + mqttProperties.getBrokerUrl());
-                    } else {
-                        System.err.println("Error: Mosquitto no pudo iniciarse");
-                    }
+                    // sin esperas fijas: BrokerReadiness arranca los adaptadores cuando responda
+                    System.out.println("Mosquitto lanzado, esperando a que acepte conexiones en " + mqttProperties.getBrokerUrl());
                 } catch (Exception e) {
                     System.err.println("Error iniciando Mosquitto: " + e.getMessage());
                     System.err.println("Solución: Ejecuta manualmente 'net start mosquitto'");
@@ -51,7 +50,7 @@ public class MosquittoAutoStart {
                 System.out.println("Auto-inicio deshabilitado. Mosquitto debe ejecutarse manualmente");
             }
         } else {
-            System.out.println("Mosquitto ya está ejecutándose en puerto 1883");
+            System.out.println("Mosquitto ya está ejecutándose en puerto " + mqttProperties.getPort());
         }
         
         System.out.println("Configuración MQTT:");
@@ -90,33 +89,9 @@ public class MosquittoAutoStart {
         return null;
     }
     
+    // Mosquitto local: basta con ver si el puerto acepta conexiones
     private boolean isMosquittoRunning() {
-        try {
-            String os = System.getProperty("os.name").toLowerCase();
-            Process process;
-            
-            if (os.contains("windows")) {
-                process = Runtime.getRuntime().exec("netstat -an");
-            } else {
-                process = Runtime.getRuntime().exec("netstat -tuln");
-            }
-            
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            
-            while ((line = reader.readLine()) != null) {
-                if (line.contains(":1883") && line.contains("LISTENING")) {
-                    return true;
-                }
-            }
-            
-            process.waitFor();
-            return false;
-            
-        } catch (Exception e) {
-            System.err.println("Error verificando estado de Mosquitto: " + e.getMessage());
-            return false;
-        }
+        return BrokerReadiness.isReachable(new InetSocketAddress("127.0.0.1", mqttProperties.getPort()));
     }
     
     private void startMosquittoProcess() throws IOException, InterruptedException {
@@ -159,9 +134,10 @@ public class MosquittoAutoStart {
             try {
                 ProcessBuilder pb = new ProcessBuilder("mosquitto", "-d");
                 mosquittoProcess = pb.start();
-                Thread.sleep(1000);
                 
-                if (mosquittoProcess.isAlive() || isMosquittoRunning()) {
+                // con -d el proceso lanzado termina en cuanto el demonio queda en marcha
+                boolean exited = mosquittoProcess.waitFor(1, TimeUnit.SECONDS);
+                if (!exited || mosquittoProcess.exitValue() == 0) {
                     System.out.println("Mosquitto iniciado en Linux/Mac");
                     mosquittoStarted = true;
                 } else {
@@ -181,7 +157,7 @@ public class MosquittoAutoStart {
             mosquittoProcess.destroy();
             
             try {
-                if (mosquittoProcess.waitFor(5, java.util.concurrent.TimeUnit.SECONDS)) {
+                if (mosquittoProcess.waitFor(5, TimeUnit.SECONDS)) {
                     System.out.println("Mosquitto terminado correctamente");
                 } else {
                     mosquittoProcess.destroyForcibly();
@@ -0,0 +1,52 @@
+package com.casa.iot.backend.mqtt;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Publica varios comandos de golpe: todos los PUBLISH salen seguidos sin
+ * esperar al PUBACK de cada uno, y el futuro devuelto se completa cuando el
+ * broker ha confirmado todos o falla con el primer error. Para las
+ * operaciones de toda la casa (desarmar por RFID, modo vacaciones) en lugar
+ * de una llamada a MqttGateway por habitacion.
+ *
+ * Cada comando pasa por CommandJournal como los de MqttGateway, con su
+ * propia entrada por topic: con el broker caido se reenvian despues y un
+ * desarmado por RFID no se pierde.
+ */
+@Component
+public class MqttCommandPublisher {
+
+    public record Outgoing(String topic, byte[] payload) {}
+
+    private final CommandJournal commandJournal;
+    private final DeviceMetrics metrics;
+
+    public MqttCommandPublisher(CommandJournal commandJournal, DeviceMetrics metrics) {
+        this.commandJournal = commandJournal;
+        this.metrics = metrics;
+    }
+
+    public CompletableFuture<Void> publishAll(List<Outgoing> messages) {
+        if (messages.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Timer.Sample sample = metrics.start();
+        CompletableFuture<?>[] acks = new CompletableFuture<?>[messages.size()];
+        for (int i = 0; i < messages.size(); i++) {
+            Outgoing message = messages.get(i);
+            acks[i] = commandJournal.publish(message.topic(), message.payload());
+        }
+        return CompletableFuture.allOf(acks).whenComplete((ignored, error) -> {
+            metrics.stop(sample, "mqtt.publish.batch",
+                "outcome", error == null ? "sent" : "error");
+            if (error != null) {
+                System.err.println("Error enviando " + messages.size() + " comandos MQTT: " + error.getMessage());
+            }
+        });
+    }
+}
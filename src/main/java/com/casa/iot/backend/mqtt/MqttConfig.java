@@ -1,20 +1,39 @@
 package com.casa.iot.backend.mqtt;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.thread.Threading;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.integration.acks.SimpleAcknowledgment;
 import org.springframework.integration.annotation.ServiceActivator;
 import org.springframework.integration.channel.DirectChannel;
+import org.springframework.integration.channel.PartitionedChannel;
 import org.springframework.integration.core.MessageProducer;
 import org.springframework.integration.mqtt.core.DefaultMqttPahoClientFactory;
 import org.springframework.integration.mqtt.core.MqttPahoClientFactory;
 import org.springframework.integration.mqtt.inbound.MqttPahoMessageDrivenChannelAdapter;
-import org.springframework.integration.mqtt.outbound.MqttPahoMessageHandler;
 import org.springframework.integration.mqtt.support.DefaultPahoMessageConverter;
 import org.springframework.integration.mqtt.support.MqttHeaders;
+import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.MessageHandlingException;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.casa.iot.backend.config.BlockingCallLimiter;
+import com.casa.iot.backend.mqtt.message.DeviceMessageCodec;
+
+import io.micrometer.core.instrument.Timer;
 
 
 @Configuration
@@ -22,6 +41,24 @@ public class MqttConfig {
     
     @Autowired
     private MqttProperties mqttProperties;
+
+    @Autowired
+    private IngestBackpressure ingestBackpressure;
+
+    @Autowired
+    private IngestOwnership ingestOwnership;
+
+    @Autowired
+    private MessageDeduplicator messageDeduplicator;
+
+    @Autowired
+    private BlockingCallLimiter blockingCallLimiter;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private DeviceMetrics deviceMetrics;
     
     @Bean
     public MqttPahoClientFactory mqttClientFactory(){
@@ -29,7 +66,8 @@ public class MqttConfig {
         MqttConnectOptions options = new MqttConnectOptions();
 
         options.setServerURIs(new String[] {mqttProperties.getBrokerUrl()});
-        options.setCleanSession(true);
+        // con sesion persistente el broker reenvia lo pendiente al reconectar (ver MessageDeduplicator)
+        options.setCleanSession(mqttProperties.isCleanSession());
         options.setConnectionTimeout(30);
         options.setKeepAliveInterval(30);
         
@@ -39,47 +77,194 @@ public class MqttConfig {
 
     @Bean
     public MessageChannel mqttInputChannel() {
+        int partitions = mqttProperties.getIngestPartitions();
+        if (partitions <= 1) {
+            return new DirectChannel();
+        }
+        // cada habitacion va siempre a la misma particion (mismo hilo), asi se mantiene
+        // el orden por habitacion y habitaciones distintas se procesan en paralelo
+        PartitionedChannel channel = new PartitionedChannel(partitions, MqttConfig::roomKey);
+        // con hilos virtuales una llamada bloqueante (JDBC, Firebase) no ocupa un hilo del sistema
+        channel.setThreadFactory(Threading.VIRTUAL.isActive(environment)
+            ? Thread.ofVirtual().name("mqtt-in-", 1).factory()
+            : new CustomizableThreadFactory("mqtt-in-"));
+        channel.addInterceptor(ingestBackpressure);
+        return channel;
+    }
+
+    // entrada del adaptador: en el hilo de Paho se lee el payload y se decide si el mensaje entra en las colas
+    @Bean
+    public MessageChannel mqttIngestChannel() {
         return new DirectChannel();
     }
 
+    @Bean
+    @ServiceActivator(inputChannel = "mqttIngestChannel")
+    public MessageHandler ingestGate() {
+        // con una sola particion no hay colas que limitar
+        boolean partitioned = mqttProperties.getIngestPartitions() > 1;
+        return message -> {
+            Message<?> decoded = withFields(message);
+            Message<?> admitted = partitioned ? ingestBackpressure.admit(decoded) : decoded;
+            if (admitted != null) {
+                mqttInputChannel().send(admitted);
+            } else {
+                acknowledge(message); // descartado: el broker no debe volver a entregarlo
+            }
+        };
+    }
+
+    // confirma al broker un mensaje QoS 1/2 (con manual-acks) una vez tratado; hasta entonces lo reenvia al reconectar
+    static void acknowledge(Message<?> message) {
+        SimpleAcknowledgment ack = message.getHeaders()
+            .get(IntegrationMessageHeaderAccessor.ACKNOWLEDGMENT_CALLBACK, SimpleAcknowledgment.class);
+        if (ack != null) {
+            ack.acknowledge();
+        }
+    }
+
+    // el payload se lee una sola vez al entrar; IngestBackpressure, MessageDeduplicator y las rutas usan estos campos
+    static final String FIELDS_HEADER = "ingest_deviceFields";
+
+    public static Message<?> withFields(Message<?> message) {
+        DeviceMessageCodec.Fields fields = parse(message);
+        return fields == null ? message : MessageBuilder.fromMessage(message).setHeader(FIELDS_HEADER, fields).build();
+    }
+
+    // campos del payload, o null si no es un objeto valido (se rechaza al llegar a su ruta)
+    static DeviceMessageCodec.Fields fields(Message<?> message) {
+        DeviceMessageCodec.Fields fields = message.getHeaders().get(FIELDS_HEADER, DeviceMessageCodec.Fields.class);
+        return fields != null ? fields : parse(message);
+    }
+
+    private static DeviceMessageCodec.Fields parse(Message<?> message) {
+        Object topic = message.getHeaders().get(MqttHeaders.RECEIVED_TOPIC);
+        if (topic == null || !(message.getPayload() instanceof byte[] payload) || payload.length == 0) {
+            return null;
+        }
+        try {
+            return DeviceMessageCodec.forTopic(topic.toString()).parse(payload);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // primer segmento del topic: "salon/mov/event" -> "salon", "rfid/event" -> "rfid"
+    public static String roomKey(Message<?> message) {
+        Object topic = message.getHeaders().get(MqttHeaders.RECEIVED_TOPIC);
+        if (topic == null) {
+            return "";
+        }
+        String value = topic.toString();
+        int slash = value.indexOf('/');
+        return slash < 0 ? value : value.substring(0, slash);
+    }
+
     @Bean
     public MessageProducer inbound() {
+        List<MqttProperties.Subscription> subscriptions = mqttProperties.getSubscriptions();
+        String[] topics = new String[subscriptions.size()];
+        int[] qos = new int[subscriptions.size()];
+        for (int i = 0; i < subscriptions.size(); i++) {
+            topics[i] = mqttProperties.subscriptionFilter(subscriptions.get(i));
+            qos[i] = subscriptions.get(i).getQos();
+        }
+
         MqttPahoMessageDrivenChannelAdapter adapter = new MqttPahoMessageDrivenChannelAdapter(
-            mqttProperties.getClientId() + "-in", 
+            mqttProperties.getInboundClientId(),
             mqttClientFactory(), 
-            "#"
+            topics
         );
         adapter.setCompletionTimeout(5000);
-        adapter.setConverter(new DefaultPahoMessageConverter()); 
-        adapter.setQos(2); 
-        adapter.setOutputChannel(mqttInputChannel());
+        // lo arranca BrokerReadiness cuando el broker acepta conexiones
+        adapter.setAutoStartup(false);
+        DefaultPahoMessageConverter converter = new DefaultPahoMessageConverter();
+        converter.setPayloadAsBytes(true); // los bytes se decodifican directamente en MqttEventHandler
+        adapter.setConverter(converter);
+        adapter.setQos(qos); // un QoS por suscripcion, en el mismo orden
+        // el ack se manda despues de procesar el mensaje (handler), no al dejarlo en la cola de su particion:
+        // si el backend cae con mensajes encolados, el broker los reenvia (sesion persistente)
+        adapter.setManualAcks(true);
+        adapter.setOutputChannel(mqttIngestChannel());
         return adapter;
     }    
 
     @Bean
     @ServiceActivator(inputChannel = "mqttInputChannel")
     public MessageHandler handler(MqttEventHandler mqttEventHandler) {
+        boolean virtualThreads = Threading.VIRTUAL.isActive(environment);
         return message -> {
             String topic = message.getHeaders().get(MqttHeaders.RECEIVED_TOPIC).toString();
-            String payload = message.getPayload().toString();
-            mqttEventHandler.handleMessage(topic, payload);
+            byte[] payload = (byte[]) message.getPayload();
+            try {
+                if (messageDeduplicator.isDuplicate(message)) {
+                    return;
+                }
+                ingestOwnership.record(topic);
+                DeviceMessageCodec.Fields fields = fields(message);
+                if (virtualThreads) {
+                    blockingCallLimiter.run(() -> mqttEventHandler.handleMessage(topic, payload, fields));
+                } else {
+                    mqttEventHandler.handleMessage(topic, payload, fields);
+                }
+            } finally {
+                // tambien si falla: reenviarlo repetiria el mismo error en cada reconexion
+                acknowledge(message);
+            }
         };
     }
 
     @Bean
     public MessageChannel mqttOutboundChannel(){
-        return new DirectChannel();
+        DirectChannel channel = new DirectChannel();
+        // el envio es sincrono en el hilo que llama a MqttGateway
+        ThreadLocal<Timer.Sample> started = new ThreadLocal<>();
+        channel.addInterceptor(new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(Message<?> message, MessageChannel channel) {
+                started.set(deviceMetrics.start());
+                return message;
+            }
+
+            @Override
+            public void afterSendCompletion(Message<?> message, MessageChannel channel, boolean sent, Exception ex) {
+                Timer.Sample sample = started.get();
+                started.remove();
+                if (sample == null) {
+                    return;
+                }
+                String topic = message.getHeaders().get(MqttHeaders.TOPIC, String.class);
+                deviceMetrics.stop(sample, "mqtt.publish",
+                    "subsystem", topic != null ? DeviceMetrics.subsystem(topic) : DeviceMetrics.OTHER,
+                    "room", deviceMetrics.room(topic != null ? DeviceMetrics.roomOf(topic) : null),
+                    "outcome", sent && ex == null ? "sent" : "error");
+            }
+        });
+        return channel;
     }
 
+    // los mensajes de MqttGateway se anotan en el diario y salen por el pool de conexiones, sin esperar al envio
     @Bean
     @ServiceActivator(inputChannel="mqttOutboundChannel")
-    public MessageHandler mqttOutbound(){
-        MqttPahoMessageHandler messageHandler = new MqttPahoMessageHandler(
-            mqttProperties.getClientId() + "-out",
-            mqttClientFactory()
-        );
-        messageHandler.setAsync(true);
-        messageHandler.setDefaultTopic("#");
-        return messageHandler;
+    public MessageHandler mqttOutbound(CommandJournal commandJournal){
+        return message -> {
+            String topic = message.getHeaders().get(MqttHeaders.TOPIC, String.class);
+            if (topic == null) {
+                throw new MessageHandlingException(message, "Mensaje MQTT sin topic");
+            }
+            byte[] payload = message.getPayload() instanceof byte[] bytes
+                ? bytes
+                : message.getPayload().toString().getBytes(StandardCharsets.UTF_8);
+            CompletableFuture<Void> sent = commandJournal.publish(topic, payload);
+            // sin conexion o con la ventana llena falla ya aqui: se avisa al que llama, como MqttPahoMessageHandler
+            if (sent.isCompletedExceptionally()) {
+                throw new MessageHandlingException(message, "Error publicando en " + topic, sent.exceptionNow());
+            }
+            sent.whenComplete((ignored, error) -> {
+                if (error != null) {
+                    System.err.println("Error publicando en " + topic + ": " + error.getMessage());
+                }
+            });
+        };
     }
 }
\ No newline at end of file
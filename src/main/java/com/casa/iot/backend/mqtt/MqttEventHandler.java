@@ -1,85 +1,140 @@
 package com.casa.iot.backend.mqtt;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
 import org.springframework.stereotype.Component;
 
+import com.casa.iot.backend.mqtt.message.DeviceMessageCodec;
 import com.casa.iot.backend.service.LightService;
 import com.casa.iot.backend.service.MovementService;
 import com.casa.iot.backend.service.RFIDService;
+import com.casa.iot.backend.service.RoomStateService;
 import com.casa.iot.backend.service.SoundService;
 
+import io.micrometer.core.instrument.Timer;
+
 @Component
 public class MqttEventHandler {
     private final LightService lightService;
     private final MovementService movementService;
     // private final SoundService soundService;
     private final RFIDService rfidService;
+    private final RoomStateService roomStateService;
+    private final DeviceMetrics metrics;
+    private final PayloadFormats payloadFormats;
+    private final DevicePresence presence;
+    private final TopicRouter<Inbound> router = new TopicRouter<>();
 
-    public MqttEventHandler(LightService lightService, MovementService movementService, 
-                           SoundService soundService, RFIDService rfidService) {
+    public MqttEventHandler(LightService lightService, MovementService movementService,
+                           SoundService soundService, RFIDService rfidService, RoomStateService roomStateService,
+                           DeviceMetrics metrics, PayloadFormats payloadFormats, DevicePresence presence) {
         this.lightService = lightService;
         this.movementService = movementService;
         // this.soundService = soundService;
         this.rfidService = rfidService;
+        this.roomStateService = roomStateService;
+        this.metrics = metrics;
+        this.payloadFormats = payloadFormats;
+        this.presence = presence;
+        registerRoutes(new DeviceMessageCodec(), "");
+        registerRoutes(DeviceMessageCodec.msgpack(), DeviceMessageCodec.MSGPACK_SUFFIX);
+        registerOtherRoutes();
     }
 
+    // usado por la simulacion y los tests
     public void handleMessage(String topic, String payload) {
-        System.out.println("MQTT recibido - Topic: " + topic + ", Payload: " + payload);
-        
-        String[] parts = topic.split("/");
-        String room = parts[0];
-        if (room.equals("rfid")){
-            handleRFID(parts, payload);
-            return;
-        }
+        handleMessage(topic, payload.getBytes(StandardCharsets.UTF_8));
+    }
 
-        if (parts.length < 3) {
-            if (parts.length >= 2) 
-                movementService.handle(room, payload);
-            return;
+    public void handleMessage(String topic, byte[] payload) {
+        DeviceMessageCodec.Fields fields;
+        try {
+            fields = payload.length == 0 ? null : DeviceMessageCodec.forTopic(topic).parse(payload);
+        } catch (IOException e) {
+            fields = null; // lo rechaza la ruta, si la hay
         }
-        
-        String subsystem = parts[1]; // lig, mov, sou
-        String messageType = parts[2]; // event, confirmation, command
-        
-        // IGNORAR comandos que nosotros mismos enviamos
-        if ("command".equals(messageType)) {
-            System.out.println("Ignorando comando saliente: " + topic);
-            return;
+        handleMessage(topic, payload, fields);
+    }
+
+    // fields: el payload ya leido al recibirlo (MqttConfig), o null si no es un objeto valido
+    public void handleMessage(String topic, byte[] payload, DeviceMessageCodec.Fields fields) {
+        System.out.println("MQTT recibido - Topic: " + topic + " (" + payload.length + " bytes)");
+
+        Timer.Sample sample = metrics.start();
+        payloadFormats.observe(topic);
+        presence.seen(DevicePresence.deviceOf(topic));
+        boolean routed = router.dispatch(topic, new Inbound(payload, fields));
+        if (!routed) {
+            System.out.println("Topic no reconocido: " + topic);
         }
-        
-        switch (subsystem) {
-            case "lig":
-                if ("confirmation".equals(messageType)) {
-                    lightService.handleConfirmation(room, payload);
-                } 
-                break;
-            case "mov":
-                if ("confirmation".equals(messageType)) {
-                    movementService.handleConfirmation(room, payload);
-                } else if ("event".equals(messageType)) {
-                    movementService.handle(room, payload);
+        metrics.stop(sample, "mqtt.handle",
+            "subsystem", DeviceMetrics.subsystem(topic),
+            "type", DeviceMetrics.messageType(topic),
+            "room", metrics.room(DeviceMetrics.roomOf(topic)),
+            "outcome", routed ? "routed" : "unrouted");
+    }
+
+    // tabla de rutas: un unico punto de entrada para todos los subsistemas.
+    // Cada formato (JSON, MessagePack) tiene sus topics y decodifica a los mismos mensajes
+    private void registerRoutes(DeviceMessageCodec codec, String suffix) {
+        router.register("+/lig/confirmation" + suffix, decoded("lig", codec, codec::lightConfirmation, lightService::handleConfirmation));
+        router.register("+/mov/confirmation" + suffix, decoded("mov", codec, codec::alarmConfirmation, movementService::handleConfirmation));
+        router.register("+/mov/event" + suffix, decoded("mov", codec, codec::sensorEvent, movementService::handle));
+        router.register("+/state" + suffix, decoded("state", codec, codec::stateSnapshot, roomStateService::applySnapshot));
+
+        router.register("rfid/event" + suffix, decoded("rfid", codec, codec::rfidDetected, (room, detected) -> rfidService.handle(detected)));
+        router.register("rfid/register" + suffix, decoded("rfid", codec, codec::rfidRegister, (room, register) -> {
+            System.out.println("Mensaje de registro RFID recibido: " + (register.cancelled() ? "cancelado" : register.cardId()));
+            rfidService.handleRegister(register);
+        }));
+    }
+
+    private void registerOtherRoutes() {
+        DeviceMessageCodec json = new DeviceMessageCodec();
+        router.register("+/mov", decoded("mov", json, json::sensorEvent, movementService::handle)); // formato antiguo sin tipo de mensaje
+        router.register("+/sou/#", (room, payload) -> { });
+        // solo senal de vida: la presencia ya se apunta en handleMessage
+        router.register("+/heartbeat/#", (room, payload) -> { });
+
+        // IGNORAR comandos que nosotros mismos enviamos (solo llegan si se configura una suscripcion amplia como "#")
+        router.register("+/+/command/#", (room, payload) -> System.out.println("Ignorando comando saliente de " + room));
+        router.register("rfid/command/#", (room, payload) -> System.out.println("Ignorando comando saliente de rfid"));
+    }
+
+    // convierte los campos ya leidos al tipo de mensaje del topic antes de llamar al servicio
+    private <M> TopicRouter.Route<Inbound> decoded(String subsystem, DeviceMessageCodec codec,
+                                                   DeviceMessageCodec.Decoder<M> decoder, BiConsumer<String, M> handler) {
+        return (room, inbound) -> {
+            DeviceMessageCodec.Fields fields = inbound.fields();
+            if (fields == null) {
+                try {
+                    fields = codec.parse(inbound.payload()); // solo para saber por que no vale
+                } catch (IOException e) {
+                    System.err.println("Payload no valido de " + room + ": " + e.getMessage());
+                    metrics.count("mqtt.rejected", "subsystem", subsystem, "reason", "invalid");
+                    return;
                 }
-                break;
-            case "sou":
-                break;
-            default:
-                System.out.println("Subsistema no reconocido: " + subsystem);
-        }
+            }
+            M message = decoder.decode(fields);
+            if (message == null) {
+                System.out.println("Mensaje ignorado, faltan campos o evento desconocido");
+                metrics.count("mqtt.rejected", "subsystem", subsystem, "reason", "incomplete");
+                return;
+            }
+            Timer.Sample sample = metrics.start();
+            try {
+                handler.accept(room, message);
+            } finally {
+                metrics.stop(sample, "device.service",
+                    "subsystem", subsystem,
+                    "type", message.getClass().getSimpleName(),
+                    "room", metrics.room(room));
+            }
+        };
     }
-    
-    private void handleRFID(String[] parts, String payload) {
-        String subsystem = parts[1];
-        switch (subsystem) {
-            case "event":
-                rfidService.handle(payload);
-                break;
-            case "register":
-                System.out.println("Iniciando registro RFID para usuario: " + payload);
-                rfidService.handleRegister(payload);
-                break;
-            case "command":
-                System.out.println("Ignorando comando saliente de rfid");
-                break;
-        }
+
+    // payload recibido y sus campos (null si no se pudo leer)
+    private record Inbound(byte[] payload, DeviceMessageCodec.Fields fields) {
     }
 }
-
@@ -7,4 +7,7 @@ import org.springframework.messaging.handler.annotation.Header;
 @MessagingGateway(defaultRequestChannel = "mqttOutboundChannel")
 public interface MqttGateway {
     void sendToMqtt(String payload, @Header(MqttHeaders.TOPIC) String topic);
+
+    // payloads binarios (MessagePack)
+    void sendToMqtt(byte[] payload, @Header(MqttHeaders.TOPIC) String topic);
 }
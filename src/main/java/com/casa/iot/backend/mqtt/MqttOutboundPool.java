@@ -0,0 +1,273 @@
+package com.casa.iot.backend.mqtt;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.springframework.context.event.EventListener;
+import org.springframework.integration.mqtt.core.MqttPahoClientFactory;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Conexiones MQTT de salida: mqtt.broker.outbound-connections clientes
+ * Paho asincronos, cada uno con una ventana de outbound-inflight mensajes
+ * sin confirmar. Con outbound-routing=room cada habitacion usa siempre la
+ * misma conexion (sus comandos no se adelantan unos a otros); con
+ * round-robin se reparten por turno.
+ *
+ * Si la conexion elegida tiene la ventana llena se cuenta en
+ * mqtt.outbound.saturated. Con round-robin se prueba con la siguiente y solo
+ * falla si todas estan llenas; con room el envio falla sin cambiar de
+ * conexion, para no adelantar a los mensajes de esa habitacion que siguen en
+ * vuelo. Los mensajes retenidos van siempre por la conexion de su
+ * habitacion, tambien con round-robin: el broker se queda con el ultimo que
+ * le llega y dos estados por conexiones distintas podrian llegar al reves.
+ * mqtt.outbound.inflight da los mensajes en vuelo por conexion.
+ *
+ * Las conexiones se abren en segundo plano al estar listo el broker (o en
+ * el primer envio); una vez conectadas, Paho se encarga de reconectar. Un
+ * envio nunca espera a la conexion: sin conexion falla en el momento.
+ *
+ * Los fallos al enviar (sin conexion, ventana llena) devuelven el futuro ya
+ * completado con error; los del broker llegan despues por el futuro.
+ */
+@Component
+public class MqttOutboundPool {
+
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+
+    private final MqttPahoClientFactory clientFactory;
+    private final MqttProperties mqttProperties;
+    private final Connection[] connections;
+    private final boolean roundRobin;
+    private final AtomicInteger turn = new AtomicInteger();
+    private final List<Runnable> connectListeners = new CopyOnWriteArrayList<>();
+
+    public MqttOutboundPool(MqttPahoClientFactory clientFactory, MqttProperties mqttProperties, MeterRegistry meterRegistry) {
+        this.clientFactory = clientFactory;
+        this.mqttProperties = mqttProperties;
+        this.roundRobin = "round-robin".equalsIgnoreCase(mqttProperties.getOutboundRouting());
+        int size = Math.max(1, mqttProperties.getOutboundConnections());
+        this.connections = new Connection[size];
+        for (int i = 0; i < size; i++) {
+            // con una sola conexion se mantiene el client id de siempre
+            String clientId = size == 1 ? mqttProperties.getOutboundClientId() : mqttProperties.getOutboundClientId() + "-" + i;
+            connections[i] = new Connection(clientId, String.valueOf(i), meterRegistry);
+        }
+        Gauge.builder("mqtt.outbound.window", mqttProperties, MqttProperties::getOutboundInflight)
+            .description("Mensajes sin confirmar que admite cada conexion de salida")
+            .register(meterRegistry);
+    }
+
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos) {
+        return publish(topic, payload, qos, false);
+    }
+
+    // retained: el broker guarda el mensaje y se lo da a cada nuevo suscriptor
+    public CompletableFuture<Void> publish(String topic, byte[] payload, int qos, boolean retained) {
+        int window = mqttProperties.getOutboundInflight();
+        int first = retained ? roomConnection(topic) : select(topic);
+        // con room (o retenido) solo vale la conexion de la habitacion
+        int candidates = roundRobin && !retained ? connections.length : 1;
+        for (int i = 0; i < candidates; i++) {
+            Connection connection = connections[(first + i) % connections.length];
+            if (connection.inflight.incrementAndGet() > window) {
+                connection.inflight.decrementAndGet();
+                connection.saturated.increment();
+                continue;
+            }
+            return connection.publish(topic, payload, qos, retained);
+        }
+        return CompletableFuture.failedFuture(new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT));
+    }
+
+    public int size() {
+        return connections.length;
+    }
+
+    // se llama cada vez que una conexion se abre o Paho la recupera, en el hilo de Paho
+    public void onConnected(Runnable listener) {
+        connectListeners.add(listener);
+    }
+
+    // conexion preferida para el topic
+    int select(String topic) {
+        if (roundRobin && connections.length > 1) {
+            return Math.floorMod(turn.getAndIncrement(), connections.length);
+        }
+        return roomConnection(topic);
+    }
+
+    private int roomConnection(String topic) {
+        if (connections.length == 1) {
+            return 0;
+        }
+        String room = DeviceMetrics.roomOf(topic);
+        return Math.floorMod((room != null ? room : topic).hashCode(), connections.length);
+    }
+
+    @EventListener(BrokerReady.class)
+    public void connect() {
+        for (Connection connection : connections) {
+            try {
+                connection.connectInBackground();
+            } catch (MqttException e) {
+                System.err.println("Error abriendo la conexion MQTT " + connection.clientId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void disconnect() {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private final class Connection {
+        private final String clientId;
+        private final AtomicInteger inflight = new AtomicInteger();
+        private final Counter saturated;
+        private IMqttAsyncClient client;
+        // primera conexion en curso; tras la primera con exito reconecta Paho (automaticReconnect)
+        private boolean connecting;
+        private boolean established;
+
+        private Connection(String clientId, String index, MeterRegistry meterRegistry) {
+            this.clientId = clientId;
+            Gauge.builder("mqtt.outbound.inflight", inflight, AtomicInteger::get)
+                .description("Mensajes MQTT de salida enviados y sin confirmar")
+                .tag("connection", index)
+                .register(meterRegistry);
+            this.saturated = Counter.builder("mqtt.outbound.saturated")
+                .description("Envios desviados o rechazados por tener la ventana de la conexion llena")
+                .tag("connection", index)
+                .register(meterRegistry);
+        }
+
+        // el hueco en la ventana ya esta reservado; se libera al confirmar o fallar
+        private CompletableFuture<Void> publish(String topic, byte[] payload, int qos, boolean retained) {
+            CompletableFuture<Void> ack = new CompletableFuture<>();
+            try {
+                connected().publish(topic, payload, qos, retained, null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                        inflight.decrementAndGet();
+                        ack.complete(null);
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable error) {
+                        inflight.decrementAndGet();
+                        ack.completeExceptionally(error);
+                    }
+                });
+            } catch (MqttException e) {
+                inflight.decrementAndGet();
+                ack.completeExceptionally(e);
+            }
+            return ack;
+        }
+
+        // no espera: sin conexion falla y, si hace falta, deja abriendola en segundo plano
+        private synchronized IMqttAsyncClient connected() throws MqttException {
+            connectInBackground();
+            if (!client.isConnected()) {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+            }
+            return client;
+        }
+
+        private synchronized void connectInBackground() throws MqttException {
+            if (client == null) {
+                client = clientFactory.getAsyncClientInstance(mqttProperties.getBrokerUrl(), clientId);
+                client.setCallback(new MqttCallbackExtended() {
+                    @Override
+                    public void connectComplete(boolean reconnect, String serverURI) {
+                        connectListeners.forEach(Runnable::run);
+                    }
+
+                    @Override
+                    public void connectionLost(Throwable cause) {
+                        System.err.println("Conexion MQTT " + clientId + " perdida: " + cause.getMessage());
+                    }
+
+                    @Override
+                    public void messageArrived(String topic, MqttMessage message) {
+                        // solo publica
+                    }
+
+                    @Override
+                    public void deliveryComplete(IMqttDeliveryToken token) {
+                        // se trata en el listener de cada envio
+                    }
+                });
+            }
+            // mientras Paho reconecta, un connect() propio fallaria
+            if (established || connecting || client.isConnected()) {
+                return;
+            }
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setServerURIs(new String[] {mqttProperties.getBrokerUrl()});
+            options.setCleanSession(true); // solo publica, no necesita sesion
+            options.setMaxInflight(mqttProperties.getOutboundInflight());
+            options.setAutomaticReconnect(true);
+            options.setConnectionTimeout((int) (CONNECT_TIMEOUT_MS / 1000));
+            connecting = true;
+            try {
+                client.connect(options, null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                        connectDone(true);
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable error) {
+                        System.err.println("No se pudo conectar " + clientId + ": " + error.getMessage());
+                        connectDone(false);
+                    }
+                });
+            } catch (MqttException e) {
+                connecting = false;
+                throw e;
+            }
+        }
+
+        // si la primera conexion falla, el siguiente envio lo vuelve a intentar
+        private synchronized void connectDone(boolean ok) {
+            connecting = false;
+            established = ok;
+        }
+
+        private synchronized void close() {
+            if (client == null) {
+                return;
+            }
+            try {
+                if (client.isConnected()) {
+                    client.disconnect().waitForCompletion(CONNECT_TIMEOUT_MS);
+                }
+                client.close();
+            } catch (MqttException e) {
+                System.err.println("Error cerrando la conexion MQTT " + clientId + ": " + e.getMessage());
+            }
+            client = null;
+            connecting = false;
+            established = false;
+        }
+    }
+}
@@ -1,9 +1,17 @@
 
 package com.casa.iot.backend.mqtt;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import com.casa.iot.backend.mqtt.message.DeviceMessageCodec;
+
+import jakarta.annotation.PostConstruct;
+
 @Component
 @ConfigurationProperties(prefix = "mqtt.broker")
 public class MqttProperties {
@@ -12,6 +20,64 @@ public class MqttProperties {
     private int port = 1883;
     private String clientId = "spring-backend";
     private boolean autoStart = true;
+    // external: Mosquitto aparte (MosquittoAutoStart); embedded: broker dentro del backend
+    private String mode = "external";
+    private Embedded embedded = new Embedded();
+    private int ingestPartitions = 4;
+    private int ingestCapacity = 1000;
+    // false: el broker guarda los mensajes mientras el backend esta desconectado
+    private boolean cleanSession = true;
+    private Duration dedupTtl = Duration.ofMinutes(5);
+    private int dedupMaxEntries = 10000;
+    // espera entre intentos de conexion al broker al arrancar (se dobla hasta el maximo)
+    private Duration readinessInitialBackoff = Duration.ofMillis(50);
+    private Duration readinessMaxBackoff = Duration.ofSeconds(5);
+    // grupo de suscripcion compartida ($share/<grupo>/...); vacio = un solo nodo
+    private String sharedGroup;
+    // identifica a esta instancia dentro del grupo (client id y metricas); obligatorio con shared-group.
+    // Tiene que ser fijo: con clean-session=false cada client id nuevo deja una sesion huerfana
+    // en el grupo a la que el broker sigue repartiendo mensajes que nadie recibe
+    private String nodeId;
+    // dispositivos que hablan MessagePack desde el arranque (el resto se aprende al recibir)
+    private List<String> msgpackDevices = new ArrayList<>();
+    // true: las ordenes para toda la casa van en un solo mensaje a "all/{subsistema}/command"
+    private boolean broadcastCommands = false;
+    // espera a la confirmacion de un comando antes de reenviarlo (se dobla en cada reenvio)
+    private Duration commandInflightTimeout = Duration.ofSeconds(3);
+    private int commandMaxRetries = 2;
+    // conexiones de salida: numero, mensajes sin confirmar por conexion y reparto (room o round-robin)
+    private int outboundConnections = 2;
+    private int outboundInflight = 64;
+    private String outboundRouting = "room";
+    // diario en disco de los mensajes salientes; vacio = sin diario (se pierden con el broker caido)
+    private String journalPath;
+    private int journalSize = 1024 * 1024;
+    private Duration journalRetryInterval = Duration.ofSeconds(5);
+    // los pendientes mas antiguos ya no se envian
+    private Duration journalExpiry = Duration.ofMinutes(2);
+    // sin ningun mensaje (ni heartbeat) en este tiempo el dispositivo pasa a offline
+    private Duration presenceTimeout = Duration.ofSeconds(90);
+    // offline durante este tiempo se olvida (cualquier topic crea un dispositivo)
+    private Duration presenceEvictAfter = Duration.ofHours(24);
+    // solo lo que publican los dispositivos; los */command que enviamos nosotros no vuelven.
+    // "/#" recoge el topic y su variante MessagePack ("salon/mov/event" y "salon/mov/event/msgpack")
+    private List<Subscription> subscriptions = new ArrayList<>(List.of(
+        // los comandos en vuelo (CommandSlots) y las peticiones con ?await son de cada nodo:
+        // todos reciben las confirmaciones y cada uno atiende las de sus comandos
+        new Subscription("+/lig/confirmation/#", 2, false),
+        new Subscription("+/mov/confirmation/#", 2, false),
+        new Subscription("+/mov/event/#", 0),
+        // formato antiguo de los sensores, sin tipo de mensaje en el topic
+        new Subscription("+/mov", 0),
+        // estado completo; sin "/#" para no recibir otros subtopics de state
+        new Subscription("+/state", 1),
+        new Subscription("+/state" + DeviceMessageCodec.MSGPACK_SUFFIX, 1),
+        new Subscription("rfid/event/#", 1),
+        // senal de vida de las placas (DevicePresence); cada nodo lleva su propia cuenta
+        new Subscription("+/heartbeat/#", 0, false),
+        // el usuario pendiente de registro solo lo conoce el nodo que inicio el registro
+        new Subscription("rfid/register/#", 1, false)
+    ));
     
     public String getHost() {
         return host;
@@ -45,7 +111,331 @@ public class MqttProperties {
         this.autoStart = autoStart;
     }
     
+    public String getMode() {
+        return mode;
+    }
+    
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+    
+    public boolean isEmbedded() {
+        return "embedded".equalsIgnoreCase(mode);
+    }
+    
+    public Embedded getEmbedded() {
+        return embedded;
+    }
+    
+    public void setEmbedded(Embedded embedded) {
+        this.embedded = embedded;
+    }
+    
+    public int getIngestPartitions() {
+        return ingestPartitions;
+    }
+    
+    public void setIngestPartitions(int ingestPartitions) {
+        this.ingestPartitions = ingestPartitions;
+    }
+    
+    public int getIngestCapacity() {
+        return ingestCapacity;
+    }
+    
+    public void setIngestCapacity(int ingestCapacity) {
+        this.ingestCapacity = ingestCapacity;
+    }
+    
+    public boolean isCleanSession() {
+        return cleanSession;
+    }
+    
+    public void setCleanSession(boolean cleanSession) {
+        this.cleanSession = cleanSession;
+    }
+    
+    public Duration getDedupTtl() {
+        return dedupTtl;
+    }
+    
+    public void setDedupTtl(Duration dedupTtl) {
+        this.dedupTtl = dedupTtl;
+    }
+    
+    public int getDedupMaxEntries() {
+        return dedupMaxEntries;
+    }
+    
+    public void setDedupMaxEntries(int dedupMaxEntries) {
+        this.dedupMaxEntries = dedupMaxEntries;
+    }
+    
+    public Duration getReadinessInitialBackoff() {
+        return readinessInitialBackoff;
+    }
+    
+    public void setReadinessInitialBackoff(Duration readinessInitialBackoff) {
+        this.readinessInitialBackoff = readinessInitialBackoff;
+    }
+    
+    public Duration getReadinessMaxBackoff() {
+        return readinessMaxBackoff;
+    }
+    
+    public void setReadinessMaxBackoff(Duration readinessMaxBackoff) {
+        this.readinessMaxBackoff = readinessMaxBackoff;
+    }
+    
+    public String getSharedGroup() {
+        return sharedGroup;
+    }
+    
+    public void setSharedGroup(String sharedGroup) {
+        this.sharedGroup = sharedGroup;
+    }
+    
+    public String getNodeId() {
+        return nodeId != null && !nodeId.isBlank() ? nodeId : "local";
+    }
+    
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+    
+    @PostConstruct
+    public void validate() {
+        if (isClustered() && (nodeId == null || nodeId.isBlank())) {
+            throw new IllegalStateException("mqtt.broker.shared-group=" + sharedGroup
+                + " necesita un mqtt.broker.node-id fijo y distinto en cada nodo");
+        }
+    }
+
+    public boolean isClustered() {
+        return sharedGroup != null && !sharedGroup.isBlank();
+    }
+    
+    // en cluster cada nodo necesita su propio client id o el broker desconecta al anterior
+    public String getInboundClientId() {
+        return isClustered() ? clientId + "-" + nodeId + "-in" : clientId + "-in";
+    }
+    
+    public String getOutboundClientId() {
+        return isClustered() ? clientId + "-" + nodeId + "-out" : clientId + "-out";
+    }
+    
+    // filtro que se envia al broker: las suscripciones compartidas se reparten entre los nodos
+    public String subscriptionFilter(Subscription subscription) {
+        if (isClustered() && subscription.isShared()) {
+            return "$share/" + sharedGroup + "/" + subscription.getTopic();
+        }
+        return subscription.getTopic();
+    }
+    
+    public List<String> getMsgpackDevices() {
+        return msgpackDevices;
+    }
+    
+    public void setMsgpackDevices(List<String> msgpackDevices) {
+        this.msgpackDevices = msgpackDevices;
+    }
+    
+    public boolean isBroadcastCommands() {
+        return broadcastCommands;
+    }
+    
+    public void setBroadcastCommands(boolean broadcastCommands) {
+        this.broadcastCommands = broadcastCommands;
+    }
+    
+    public Duration getCommandInflightTimeout() {
+        return commandInflightTimeout;
+    }
+    
+    public void setCommandInflightTimeout(Duration commandInflightTimeout) {
+        this.commandInflightTimeout = commandInflightTimeout;
+    }
+    
+    public int getCommandMaxRetries() {
+        return commandMaxRetries;
+    }
+    
+    public void setCommandMaxRetries(int commandMaxRetries) {
+        this.commandMaxRetries = commandMaxRetries;
+    }
+    
+    public int getOutboundConnections() {
+        return outboundConnections;
+    }
+    
+    public void setOutboundConnections(int outboundConnections) {
+        this.outboundConnections = outboundConnections;
+    }
+    
+    public int getOutboundInflight() {
+        return outboundInflight;
+    }
+    
+    public void setOutboundInflight(int outboundInflight) {
+        this.outboundInflight = outboundInflight;
+    }
+    
+    public String getOutboundRouting() {
+        return outboundRouting;
+    }
+    
+    public void setOutboundRouting(String outboundRouting) {
+        this.outboundRouting = outboundRouting;
+    }
+    
+    public String getJournalPath() {
+        return journalPath;
+    }
+    
+    public void setJournalPath(String journalPath) {
+        this.journalPath = journalPath;
+    }
+    
+    public int getJournalSize() {
+        return journalSize;
+    }
+    
+    public void setJournalSize(int journalSize) {
+        this.journalSize = journalSize;
+    }
+    
+    public Duration getJournalRetryInterval() {
+        return journalRetryInterval;
+    }
+    
+    public void setJournalRetryInterval(Duration journalRetryInterval) {
+        this.journalRetryInterval = journalRetryInterval;
+    }
+    
+    public Duration getJournalExpiry() {
+        return journalExpiry;
+    }
+    
+    public void setJournalExpiry(Duration journalExpiry) {
+        this.journalExpiry = journalExpiry;
+    }
+    
+    public Duration getPresenceTimeout() {
+        return presenceTimeout;
+    }
+    
+    public void setPresenceTimeout(Duration presenceTimeout) {
+        this.presenceTimeout = presenceTimeout;
+    }
+
+    public Duration getPresenceEvictAfter() {
+        return presenceEvictAfter;
+    }
+
+    public void setPresenceEvictAfter(Duration presenceEvictAfter) {
+        this.presenceEvictAfter = presenceEvictAfter;
+    }
+    
+    public List<Subscription> getSubscriptions() {
+        return subscriptions;
+    }
+    
+    public void setSubscriptions(List<Subscription> subscriptions) {
+        this.subscriptions = subscriptions;
+    }
+    
     public String getBrokerUrl() {
-        return "tcp://" + host + ":" + port;
+        return "tcp://" + getBrokerHost() + ":" + port;
+    }
+
+    // con broker embebido los adaptadores se conectan por loopback
+    public String getBrokerHost() {
+        return isEmbedded() ? "127.0.0.1" : host;
+    }
+
+    public static class Embedded {
+        
+        // interfaz donde escucha el broker; 0.0.0.0 para que lleguen los ESP32
+        private String bindHost = "0.0.0.0";
+        // carpeta para guardar sesiones y mensajes pendientes; vacio = solo memoria
+        private String persistencePath;
+        private int maxConnections = 50;
+        private int maxMessageSize = 8192;
+        
+        public String getBindHost() {
+            return bindHost;
+        }
+        
+        public void setBindHost(String bindHost) {
+            this.bindHost = bindHost;
+        }
+        
+        public String getPersistencePath() {
+            return persistencePath;
+        }
+        
+        public void setPersistencePath(String persistencePath) {
+            this.persistencePath = persistencePath;
+        }
+        
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+        
+        public void setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+        
+        public int getMaxMessageSize() {
+            return maxMessageSize;
+        }
+        
+        public void setMaxMessageSize(int maxMessageSize) {
+            this.maxMessageSize = maxMessageSize;
+        }
+    }
+
+    public static class Subscription {
+        
+        private String topic;
+        private int qos = 1;
+        // false: todos los nodos reciben el mensaje aunque haya grupo compartido
+        private boolean shared = true;
+        
+        public Subscription() {}
+        
+        public Subscription(String topic, int qos) {
+            this(topic, qos, true);
+        }
+        
+        public Subscription(String topic, int qos, boolean shared) {
+            this.topic = topic;
+            this.qos = qos;
+            this.shared = shared;
+        }
+        
+        public String getTopic() {
+            return topic;
+        }
+        
+        public void setTopic(String topic) {
+            this.topic = topic;
+        }
+        
+        public int getQos() {
+            return qos;
+        }
+        
+        public void setQos(int qos) {
+            this.qos = qos;
+        }
+        
+        public boolean isShared() {
+            return shared;
+        }
+        
+        public void setShared(boolean shared) {
+            this.shared = shared;
+        }
     }
-}
\ No newline at end of file
+}
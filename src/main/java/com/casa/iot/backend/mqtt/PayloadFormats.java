@@ -0,0 +1,44 @@
+package com.casa.iot.backend.mqtt;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.stereotype.Component;
+
+import com.casa.iot.backend.mqtt.message.DeviceMessageCodec;
+
+/**
+ * Formato de payload de cada dispositivo (primer segmento del topic:
+ * habitacion o "rfid"). Un dispositivo elige formato al publicar: si manda
+ * sus mensajes en MessagePack, los comandos que le enviamos tambien van en
+ * MessagePack. Hasta que se sabe algo de el se usa lo configurado en
+ * mqtt.broker.msgpack-devices, y si no, JSON.
+ */
+@Component
+public class PayloadFormats {
+
+    private final ConcurrentHashMap<String, Boolean> msgpack = new ConcurrentHashMap<>();
+
+    public PayloadFormats(MqttProperties mqttProperties) {
+        for (String device : mqttProperties.getMsgpackDevices()) {
+            msgpack.put(device, true);
+        }
+    }
+
+    // aprende el formato del dispositivo a partir de un mensaje suyo
+    public void observe(String topic) {
+        int slash = topic.indexOf('/');
+        if (slash <= 0) {
+            return;
+        }
+        boolean binary = DeviceMessageCodec.isMsgPack(topic);
+        String device = topic.substring(0, slash);
+        if (msgpack.getOrDefault(device, false) != binary) {
+            msgpack.put(device, binary);
+            System.out.println("Formato de " + device + ": " + (binary ? "MessagePack" : "JSON"));
+        }
+    }
+
+    public boolean isMsgPack(String device) {
+        return msgpack.getOrDefault(device, false);
+    }
+}
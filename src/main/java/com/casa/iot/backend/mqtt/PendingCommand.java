@@ -0,0 +1,14 @@
+package com.casa.iot.backend.mqtt;
+
+import java.util.concurrent.CompletableFuture;
+
+// comando enviado a un dispositivo: id de correlacion y como termino (ver CommandSlots)
+public record PendingCommand(String id, CompletableFuture<Outcome> outcome) {
+
+    public enum Outcome {
+        CONFIRMED,   // el dispositivo confirma el cambio
+        FAILED,      // el dispositivo contesta con error
+        SUPERSEDED,  // llego otro comando mas nuevo antes de confirmarse
+        EXPIRED      // sin confirmacion tras todos los reintentos
+    }
+}
@@ -0,0 +1,112 @@
+package com.casa.iot.backend.mqtt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.casa.iot.backend.model.RoomState;
+
+/**
+ * Publica el estado confirmado de cada habitacion como mensaje retenido
+ * en "{room}/state/current", con el mismo formato que los snapshots de
+ * los dispositivos: {"light":"ON","alarm":"OFF"}. Un cliente que se
+ * suscribe a "+/state/current" recibe el estado de toda la casa al
+ * conectarse, sin consultar GET /rooms.
+ *
+ * Lo llama RoomStateStore en cada cambio de estado, sin esperar a que
+ * se escriba en BD. Al borrar la habitacion se limpia el retenido con un
+ * payload vacio.
+ *
+ * Se recuerda el ultimo payload de cada habitacion y siempre se publica
+ * ese, por la conexion de la habitacion (MqttOutboundPool), asi el broker
+ * no puede quedarse con uno anterior. Si un envio falla se repite cada
+ * segundo, y al abrirse o recuperarse una conexion se vuelven a publicar
+ * todos: el broker puede haber perdido los retenidos o no haber
+ * confirmado los ultimos.
+ */
+@Component
+public class RoomStatePublisher {
+
+    public static final String TOPIC_SUFFIX = "/state/current";
+    private static final int QOS = 1;
+
+    private final MqttOutboundPool outboundPool;
+    private final DeviceMetrics metrics;
+    // ultimo payload por habitacion y habitaciones cuyo ultimo envio fallo
+    private final Map<String, byte[]> latest = new ConcurrentHashMap<>();
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+
+    public RoomStatePublisher(MqttOutboundPool outboundPool, DeviceMetrics metrics) {
+        this.outboundPool = outboundPool;
+        this.metrics = metrics;
+        outboundPool.onConnected(this::republishAll);
+    }
+
+    public synchronized CompletableFuture<Void> publish(RoomState state) {
+        latest.put(state.name(), payload(state));
+        return send(state.name());
+    }
+
+    // payload vacio: el broker borra el retenido de una habitacion eliminada
+    public synchronized CompletableFuture<Void> clear(String room) {
+        latest.put(room, new byte[0]);
+        return send(room);
+    }
+
+    // habitacion cambiada por otro nodo: su retenido ya no es cosa de este
+    public synchronized void forget(String room) {
+        latest.remove(room);
+        failed.remove(room);
+    }
+
+    @Scheduled(fixedDelay = 1000)
+    public synchronized void retryFailed() {
+        for (String room : List.copyOf(failed)) {
+            failed.remove(room);
+            send(room);
+        }
+    }
+
+    public synchronized void republishAll() {
+        failed.clear();
+        latest.keySet().forEach(this::send);
+    }
+
+    public static String topic(String room) {
+        return room + TOPIC_SUFFIX;
+    }
+
+    static byte[] payload(RoomState state) {
+        return String.format("{\"light\":\"%s\",\"alarm\":\"%s\"}",
+                             state.lightOn() ? "ON" : "OFF", state.detectOn() ? "ON" : "OFF")
+            .getBytes(StandardCharsets.UTF_8);
+    }
+
+    // siempre con el lock: el orden de llegada al pool es el de latest
+    private CompletableFuture<Void> send(String room) {
+        byte[] payload = latest.get(room);
+        if (payload == null) {
+            return CompletableFuture.completedFuture(null); // olvidada mientras esperaba el reintento
+        }
+        return outboundPool.publish(topic(room), payload, QOS, true)
+            .whenComplete((ok, error) -> {
+                if (error != null) {
+                    System.err.println("No se pudo publicar el estado de " + room + ": " + error.getMessage());
+                    metrics.count("mqtt.state.published", "outcome", "error");
+                    // se reintenta con el payload que sea el ultimo entonces
+                    failed.add(room);
+                } else {
+                    metrics.count("mqtt.state.published", "outcome", "ok");
+                    if (payload.length == 0) {
+                        latest.remove(room, payload); // retenido borrado: no hay nada que volver a publicar
+                    }
+                }
+            });
+    }
+}
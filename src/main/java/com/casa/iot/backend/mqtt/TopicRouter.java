@@ -0,0 +1,209 @@
+package com.casa.iot.backend.mqtt;
+
+import java.util.Arrays;
+
+/**
+ * Tabla de rutas MQTT en forma de trie por segmentos.
+ *
+ * Las rutas se registran al arrancar con filtros MQTT ("+/lig/confirmation",
+ * "rfid/event", "+/sou/#") y cada mensaje se despacha recorriendo el topic
+ * sin partirlo: no se crean arrays ni substrings por mensaje. El segmento que
+ * casa con el primer "+" se entrega como habitacion, siempre la misma
+ * instancia de String para la misma habitacion.
+ */
+public class TopicRouter<P> {
+
+    @FunctionalInterface
+    public interface Route<P> {
+        void handle(String room, P payload);
+    }
+
+    private final Node<P> root = new Node<>();
+    private final RoomKeys roomKeys = new RoomKeys();
+
+    public TopicRouter<P> register(String filter, Route<P> route) {
+        Node<P> node = root;
+        String[] segments = filter.split("/", -1);
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if ("#".equals(segment)) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("'#' solo puede ir al final: " + filter);
+                }
+                if (node.multi == null) {
+                    node.multi = new Node<>();
+                }
+                node = node.multi;
+            } else if ("+".equals(segment)) {
+                if (node.single == null) {
+                    node.single = new Node<>();
+                }
+                node = node.single;
+            } else {
+                node = node.child(segment);
+            }
+        }
+        if (node.route != null) {
+            throw new IllegalStateException("Ruta MQTT duplicada: " + filter);
+        }
+        node.route = route;
+        return this;
+    }
+
+    /**
+     * Despacha el mensaje a la ruta mas especifica. Los segmentos literales
+     * tienen prioridad sobre "+" y este sobre "#".
+     *
+     * @return false si ninguna ruta casa con el topic
+     */
+    public boolean dispatch(String topic, P payload) {
+        if (topic.isEmpty() || topic.charAt(0) == '$') {
+            return false; // los topics de sistema no casan con comodines
+        }
+        return match(root, topic, 0, -1, -1, payload);
+    }
+
+    private boolean match(Node<P> node, String topic, int start, int roomStart, int roomEnd, P payload) {
+        int length = topic.length();
+        if (start > length) {
+            // topic consumido: "a/#" tambien casa con "a"
+            if (node.route != null) {
+                return deliver(node.route, topic, roomStart, roomEnd, payload);
+            }
+            if (node.multi != null && node.multi.route != null) {
+                return deliver(node.multi.route, topic, roomStart, roomEnd, payload);
+            }
+            return false;
+        }
+
+        int end = topic.indexOf('/', start);
+        if (end < 0) {
+            end = length;
+        }
+        int segmentLength = end - start;
+
+        String[] literals = node.literals;
+        for (int i = 0; i < literals.length; i++) {
+            String literal = literals[i];
+            if (literal.length() == segmentLength && topic.regionMatches(start, literal, 0, segmentLength)
+                    && match(node.children[i], topic, end + 1, roomStart, roomEnd, payload)) {
+                return true;
+            }
+        }
+
+        if (node.single != null) {
+            boolean capture = roomStart < 0;
+            if (match(node.single, topic, end + 1, capture ? start : roomStart, capture ? end : roomEnd, payload)) {
+                return true;
+            }
+        }
+
+        if (node.multi != null && node.multi.route != null) {
+            return deliver(node.multi.route, topic, roomStart, roomEnd, payload);
+        }
+        return false;
+    }
+
+    private boolean deliver(Route<P> route, String topic, int roomStart, int roomEnd, P payload) {
+        String room = roomStart < 0 ? null : roomKeys.intern(topic, roomStart, roomEnd);
+        route.handle(room, payload);
+        return true;
+    }
+
+    private static final class Node<P> {
+        private String[] literals = new String[0];
+        @SuppressWarnings("unchecked")
+        private Node<P>[] children = new Node[0];
+        private Node<P> single;
+        private Node<P> multi;
+        private Route<P> route;
+
+        private Node<P> child(String segment) {
+            for (int i = 0; i < literals.length; i++) {
+                if (literals[i].equals(segment)) {
+                    return children[i];
+                }
+            }
+            Node<P> child = new Node<>();
+            literals = Arrays.copyOf(literals, literals.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            literals[literals.length - 1] = segment;
+            children[children.length - 1] = child;
+            return child;
+        }
+    }
+
+    /**
+     * Tabla de habitaciones conocidas. Busca por rango de caracteres del topic,
+     * asi que una habitacion ya vista no genera basura. Crece hasta MAX_KEYS;
+     * a partir de ahi se devuelve una copia sin guardarla.
+     */
+    static final class RoomKeys {
+        private static final int MAX_KEYS = 4096;
+
+        private volatile String[] table = new String[64];
+        private int size;
+
+        String intern(String topic, int start, int end) {
+            int hash = hash(topic, start, end);
+            String found = find(table, topic, start, end, hash);
+            return found != null ? found : insert(topic.substring(start, end), hash);
+        }
+
+        private synchronized String insert(String key, int hash) {
+            String[] current = table;
+            String found = find(current, key, 0, key.length(), hash);
+            if (found != null) {
+                return found; // otro hilo se adelanto
+            }
+            if (size >= MAX_KEYS) {
+                return key;
+            }
+            if ((size + 1) * 2 > current.length) {
+                String[] bigger = new String[current.length * 2];
+                for (String existing : current) {
+                    if (existing != null) {
+                        put(bigger, existing, hash(existing, 0, existing.length()));
+                    }
+                }
+                put(bigger, key, hash);
+                table = bigger;
+            } else {
+                put(current, key, hash);
+            }
+            size++;
+            return key;
+        }
+
+        private static String find(String[] keys, String topic, int start, int end, int hash) {
+            int mask = keys.length - 1;
+            int length = end - start;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                String key = keys[i];
+                if (key == null) {
+                    return null;
+                }
+                if (key.length() == length && topic.regionMatches(start, key, 0, length)) {
+                    return key;
+                }
+            }
+        }
+
+        private static void put(String[] keys, String key, int hash) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+        }
+
+        private static int hash(String value, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + value.charAt(i);
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.casa.iot.backend.mqtt.message;
+
+// {"event":"ALARM_CHANGED","state":"ON","timestamp":"..."}: cambio manual en el dispositivo
+public record AlarmChanged(boolean on, String timestamp) implements SensorEvent {
+
+    public String state() {
+        return on ? "ON" : "OFF";
+    }
+}
@@ -0,0 +1,13 @@
+package com.casa.iot.backend.mqtt.message;
+
+// {room}/mov/confirmation: mismo formato que la confirmacion de luz
+public record AlarmConfirmation(boolean success, boolean on, String error, String commandId) implements DeviceMessage {
+
+    public AlarmConfirmation(boolean success, boolean on, String error) {
+        this(success, on, error, null);
+    }
+
+    public String state() {
+        return on ? "ON" : "OFF";
+    }
+}
@@ -0,0 +1,6 @@
+package com.casa.iot.backend.mqtt.message;
+
+// mensajes ya decodificados que llegan desde los dispositivos
+public sealed interface DeviceMessage
+        permits LightConfirmation, AlarmConfirmation, SensorEvent, RfidDetected, RfidRegister, StateSnapshot {
+}
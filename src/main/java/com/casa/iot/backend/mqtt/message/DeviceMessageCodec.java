@@ -0,0 +1,264 @@
+package com.casa.iot.backend.mqtt.message;
+
+import java.io.IOException;
+
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Decodifica los payloads de los dispositivos directamente desde los bytes
+ * recibidos por MQTT, con el parser en streaming de Jackson: no se crea el
+ * String del payload ni un arbol JSON intermedio. Los valores conocidos
+ * (status, state, event) se comparan sobre el buffer del parser; solo se
+ * crean Strings para los datos que se guardan (cardId, timestamp, error, cid).
+ *
+ * Los metodos devuelven null si el mensaje no trae los campos necesarios y
+ * lanzan IOException si el payload no es un objeto JSON valido.
+ *
+ * El mismo codigo lee MessagePack (topics acabados en /msgpack) cambiando la
+ * factoria del parser: los mensajes son los mismos mapas, en binario.
+ *
+ * parse() recorre el payload una vez y deja los campos en Fields; al
+ * recibir se hace una sola vez por mensaje (ver MqttConfig.ingestGate) y la
+ * cola, el deduplicado y las rutas trabajan sobre esos campos.
+ */
+public class DeviceMessageCodec {
+
+    @FunctionalInterface
+    public interface Decoder<M> {
+        M decode(Fields fields);
+    }
+
+    // sufijo de los topics con payload MessagePack: "salon/lig/confirmation/msgpack"
+    public static final String MSGPACK_SUFFIX = "/msgpack";
+
+    private static final int UNKNOWN = 0;
+    private static final int SUCCESS = 1;
+    private static final int ERROR = 2;
+    private static final int ON = 1;
+    private static final int OFF = 2;
+
+    private enum EventType { MOVEMENT_DETECTED, ALARM_CHANGED, RFID_DETECTED, RFID_REGISTER, RFID_REGISTER_CANCEL }
+
+    private static final EventType[] EVENT_TYPES = EventType.values();
+    // JsonFactory se puede compartir entre hilos
+    private static final DeviceMessageCodec JSON = new DeviceMessageCodec();
+    private static final DeviceMessageCodec MSGPACK = msgpack();
+
+    private final JsonFactory factory;
+
+    public DeviceMessageCodec() {
+        this(new JsonFactory());
+    }
+
+    public DeviceMessageCodec(JsonFactory factory) {
+        this.factory = factory;
+    }
+
+    public static DeviceMessageCodec msgpack() {
+        return new DeviceMessageCodec(new MessagePackFactory());
+    }
+
+    // codec compartido segun el sufijo del topic
+    public static DeviceMessageCodec forTopic(String topic) {
+        return isMsgPack(topic) ? MSGPACK : JSON;
+    }
+
+    public static boolean isMsgPack(String topic) {
+        return topic.endsWith(MSGPACK_SUFFIX);
+    }
+
+    // topic sin el sufijo de formato
+    public static String baseTopic(String topic) {
+        return isMsgPack(topic) ? topic.substring(0, topic.length() - MSGPACK_SUFFIX.length()) : topic;
+    }
+
+    public LightConfirmation lightConfirmation(byte[] payload) throws IOException {
+        return lightConfirmation(parse(payload));
+    }
+
+    public LightConfirmation lightConfirmation(Fields fields) {
+        if (!fields.isValidConfirmation()) {
+            return null;
+        }
+        return new LightConfirmation(fields.status == SUCCESS, fields.state == ON, fields.error, fields.commandId);
+    }
+
+    public AlarmConfirmation alarmConfirmation(byte[] payload) throws IOException {
+        return alarmConfirmation(parse(payload));
+    }
+
+    public AlarmConfirmation alarmConfirmation(Fields fields) {
+        if (!fields.isValidConfirmation()) {
+            return null;
+        }
+        return new AlarmConfirmation(fields.status == SUCCESS, fields.state == ON, fields.error, fields.commandId);
+    }
+
+    public SensorEvent sensorEvent(byte[] payload) throws IOException {
+        return sensorEvent(parse(payload));
+    }
+
+    public SensorEvent sensorEvent(Fields fields) {
+        if (fields.event == EventType.MOVEMENT_DETECTED) {
+            return new MovementEvent(fields.timestamp);
+        }
+        if (fields.event == EventType.ALARM_CHANGED && fields.state != UNKNOWN) {
+            return new AlarmChanged(fields.state == ON, fields.timestamp);
+        }
+        return null;
+    }
+
+    public StateSnapshot stateSnapshot(byte[] payload) throws IOException {
+        return stateSnapshot(parse(payload));
+    }
+
+    public StateSnapshot stateSnapshot(Fields fields) {
+        if (fields.light == UNKNOWN && fields.alarm == UNKNOWN) {
+            return null;
+        }
+        return new StateSnapshot(onOff(fields.light), onOff(fields.alarm));
+    }
+
+    // identificador opcional que pone el dispositivo ("msgId"); null si no lo trae o el payload no es valido
+    public String messageId(byte[] payload) {
+        try {
+            return parse(payload).messageId();
+        } catch (IOException e) {
+            return null; // el payload invalido se rechaza despues al decodificarlo
+        }
+    }
+
+    public RfidDetected rfidDetected(byte[] payload) throws IOException {
+        return rfidDetected(parse(payload));
+    }
+
+    public RfidDetected rfidDetected(Fields fields) {
+        if (fields.event != EventType.RFID_DETECTED || fields.cardId == null) {
+            return null;
+        }
+        return new RfidDetected(fields.cardId);
+    }
+
+    public RfidRegister rfidRegister(byte[] payload) throws IOException {
+        return rfidRegister(parse(payload));
+    }
+
+    public RfidRegister rfidRegister(Fields fields) {
+        if (fields.event == EventType.RFID_REGISTER_CANCEL) {
+            return new RfidRegister(null, true);
+        }
+        if (fields.event != EventType.RFID_REGISTER || fields.cardId == null) {
+            return null;
+        }
+        return new RfidRegister(fields.cardId, false);
+    }
+
+    // recorre los campos de primer nivel una sola vez; los objetos anidados se saltan
+    public Fields parse(byte[] payload) throws IOException {
+        Fields fields = new Fields();
+        try (JsonParser parser = factory.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Se esperaba un objeto");
+            }
+            String name;
+            while ((name = parser.nextFieldName()) != null) {
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                    continue;
+                }
+                if (value == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                switch (name) {
+                    case "status" -> fields.status = textEquals(parser, "SUCCESS") ? SUCCESS
+                            : textEquals(parser, "ERROR") ? ERROR : UNKNOWN;
+                    case "state" -> fields.state = onOff(parser);
+                    case "event" -> fields.event = eventType(parser);
+                    case "error" -> fields.error = parser.getValueAsString();
+                    case "timestamp" -> fields.timestamp = parser.getValueAsString();
+                    case "cardId" -> fields.cardId = parser.getValueAsString();
+                    case "cid" -> fields.commandId = parser.getValueAsString();
+                    case "light" -> fields.light = onOff(parser);
+                    case "alarm" -> fields.alarm = onOff(parser);
+                    case "msgId" -> fields.messageId = parser.getValueAsString();
+                    default -> { }
+                }
+            }
+            if (parser.currentToken() != JsonToken.END_OBJECT) {
+                throw new IOException("Objeto incompleto");
+            }
+        }
+        return fields;
+    }
+
+    private static int onOff(JsonParser parser) throws IOException {
+        return textEquals(parser, "ON") ? ON : textEquals(parser, "OFF") ? OFF : UNKNOWN;
+    }
+
+    private static Boolean onOff(int state) {
+        return state == UNKNOWN ? null : state == ON;
+    }
+
+    private static EventType eventType(JsonParser parser) throws IOException {
+        for (EventType type : EVENT_TYPES) {
+            if (textEquals(parser, type.name())) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    private static boolean textEquals(JsonParser parser, String expected) throws IOException {
+        if (parser.currentToken() != JsonToken.VALUE_STRING) {
+            return false;
+        }
+        int length = parser.getTextLength();
+        if (length != expected.length()) {
+            return false;
+        }
+        char[] text = parser.getTextCharacters();
+        int offset = parser.getTextOffset();
+        for (int i = 0; i < length; i++) {
+            if (text[offset + i] != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // campos de primer nivel de un payload ya leido
+    public static final class Fields {
+        private int status = UNKNOWN;
+        private int state = UNKNOWN;
+        private EventType event;
+        private String error;
+        private String timestamp;
+        private String cardId;
+        private String commandId;
+        private int light = UNKNOWN;
+        private int alarm = UNKNOWN;
+        private String messageId;
+
+        private Fields() {
+        }
+
+        // los MOVEMENT_DETECTED son los unicos mensajes que se pueden descartar con carga alta
+        public boolean isMovementDetected() {
+            return event == EventType.MOVEMENT_DETECTED;
+        }
+
+        public String messageId() {
+            return messageId;
+        }
+
+        // una confirmacion correcta tiene que decir el estado final
+        private boolean isValidConfirmation() {
+            return status == ERROR || (status == SUCCESS && state != UNKNOWN);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.casa.iot.backend.mqtt.message;
+
+// {room}/lig/confirmation: {"status":"SUCCESS","state":"ON"} o {"status":"ERROR","error":"..."}
+// commandId: "cid" del comando confirmado, si la placa lo devuelve
+public record LightConfirmation(boolean success, boolean on, String error, String commandId) implements DeviceMessage {
+
+    public LightConfirmation(boolean success, boolean on, String error) {
+        this(success, on, error, null);
+    }
+
+    public String state() {
+        return on ? "ON" : "OFF";
+    }
+}
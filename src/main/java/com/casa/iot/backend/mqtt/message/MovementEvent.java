@@ -0,0 +1,5 @@
+package com.casa.iot.backend.mqtt.message;
+
+// {"event":"MOVEMENT_DETECTED","timestamp":"..."}; timestamp puede ser null
+public record MovementEvent(String timestamp) implements SensorEvent {
+}
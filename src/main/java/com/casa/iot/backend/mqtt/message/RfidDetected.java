@@ -0,0 +1,5 @@
+package com.casa.iot.backend.mqtt.message;
+
+// rfid/event: {"event":"RFID_DETECTED","cardId":"..."}
+public record RfidDetected(String cardId) implements DeviceMessage {
+}
@@ -0,0 +1,5 @@
+package com.casa.iot.backend.mqtt.message;
+
+// rfid/register: RFID_REGISTER con cardId, o RFID_REGISTER_CANCEL (cancelled = true, sin cardId)
+public record RfidRegister(String cardId, boolean cancelled) implements DeviceMessage {
+}
@@ -0,0 +1,5 @@
+package com.casa.iot.backend.mqtt.message;
+
+// eventos publicados en {room}/mov/event
+public sealed interface SensorEvent extends DeviceMessage permits MovementEvent, AlarmChanged {
+}
@@ -0,0 +1,5 @@
+package com.casa.iot.backend.mqtt.message;
+
+// {room}/state: {"light":"ON","alarm":"OFF"}; null = el dispositivo no informa de ese subsistema
+public record StateSnapshot(Boolean lightOn, Boolean alarmOn) implements DeviceMessage {
+}
@@ -2,19 +2,33 @@ package com.casa.iot.backend.repository;
 
 import java.util.List;
 
+import org.hibernate.jpa.HibernateHints;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 
 import com.casa.iot.backend.model.RoomSchedule;
 
+import jakarta.persistence.QueryHint;
+
+// las consultas van a la cache de consultas (region room-schedule-queries); cualquier
+// escritura de horarios por JPA las invalida
 public interface RoomScheduleRepository extends JpaRepository<RoomSchedule, Long> {
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"),
+                 @QueryHint(name = HibernateHints.HINT_CACHE_REGION, value = "room-schedule-queries")})
     List<RoomSchedule> findByRoom_Name(String roomName);
 
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"),
+                 @QueryHint(name = HibernateHints.HINT_CACHE_REGION, value = "room-schedule-queries")})
     @Query("SELECT s FROM RoomSchedule s WHERE FUNCTION('HOUR', s.time) = ?1 AND FUNCTION('MINUTE', s.time) = ?2")
     List<RoomSchedule> findByTimeHourAndTimeMinute(int hour, int minute);
 
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"),
+                 @QueryHint(name = HibernateHints.HINT_CACHE_REGION, value = "room-schedule-queries")})
     List<RoomSchedule> findByScheduleType(String scheduleType);
     
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"),
+                 @QueryHint(name = HibernateHints.HINT_CACHE_REGION, value = "room-schedule-queries")})
     @Query("SELECT s FROM RoomSchedule s WHERE s.scheduleType = ?1 AND FUNCTION('HOUR', s.time) = ?2 AND FUNCTION('MINUTE', s.time) = ?3")
     List<RoomSchedule> findByScheduleTypeAndTimeHourAndTimeMinute(String scheduleType, int hour, int minute);
-}
\ No newline at end of file
+}
@@ -12,16 +12,22 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.casa.iot.backend.config.AsyncConfig;
 import com.casa.iot.backend.model.Event;
+import com.casa.iot.backend.mqtt.DeviceMetrics;
 import com.casa.iot.backend.repository.EventRepository;
 
+import io.micrometer.core.instrument.Timer;
+
 @Service
 public class EventLogService {
     
     private final EventRepository eventRepository;
+    private final DeviceMetrics deviceMetrics;
     
-    public EventLogService(EventRepository eventRepository) {
+    public EventLogService(EventRepository eventRepository, DeviceMetrics deviceMetrics) {
         this.eventRepository = eventRepository;
+        this.deviceMetrics = deviceMetrics;
     }
     
     // loging asincrono
@@ -29,7 +35,7 @@ public class EventLogService {
     public CompletableFuture<Void> logUserAction(String action, String roomName, String userId, String details) {
         try {
             Event event = Event.userAction(action, roomName, userId, details);
-            eventRepository.save(event);
+            save(event);
             System.out.println("USER ACTION: " + userId + " - " + action + " en " + roomName);
         } catch (Exception e) {
             System.err.println("Error logging user action: " + e.getMessage());
@@ -41,7 +47,7 @@ public class EventLogService {
     public CompletableFuture<Void> logSystemAction(String action, String roomName, String details, String source) {
         try {
             Event event = Event.systemAction(action, roomName, details, source);
-            eventRepository.save(event);
+            save(event);
             System.out.println("SYSTEM ACTION: " + action + " en " + roomName + " (" + source + ")");
         } catch (Exception e) {
             System.err.println("Error logging system action: " + e.getMessage());
@@ -49,11 +55,12 @@ public class EventLogService {
         return CompletableFuture.completedFuture(null);
     }
     
-    @Async
+    // lo unico que se descarta si el registro va atrasado (ver AsyncConfig)
+    @Async(AsyncConfig.MOVEMENT_EXECUTOR)
     public CompletableFuture<Void> logMovementDetected(String roomName, String sensorDetails) {
         try {
             Event event = Event.movementDetected(roomName, sensorDetails);
-            eventRepository.save(event);
+            save(event);
             System.out.println("MOVEMENT: Detectado en " + roomName);
         } catch (Exception e) {
             System.err.println("Error logging movement: " + e.getMessage());
@@ -65,7 +72,7 @@ public class EventLogService {
     public CompletableFuture<Void> logScheduleExecution(String action, String roomName, String scheduleId) {
         try {
             Event event = Event.scheduleExecuted(action, roomName, scheduleId);
-            eventRepository.save(event);
+            save(event);
             System.out.println("SCHEDULE: " + action + " en " + roomName + " (ID: " + scheduleId + ")");
         } catch (Exception e) {
             System.err.println("Error logging schedule execution: " + e.getMessage());
@@ -80,7 +87,7 @@ public class EventLogService {
                                          userAgent != null ? userAgent : "unknown", 
                                          LocalDateTime.now());
             Event event = Event.loginAttempt(username, success, ipAddress, details);
-            eventRepository.save(event);
+            save(event);
             
             if (success) {
                 System.out.println("LOGIN SUCCESS: " + username + " desde " + ipAddress);
@@ -92,6 +99,18 @@ public class EventLogService {
         }
     }
     
+    // mide cada escritura en eventlog.write, por tipo de evento
+    private void save(Event event) {
+        Timer.Sample sample = deviceMetrics.start();
+        String outcome = "error";
+        try {
+            eventRepository.save(event);
+            outcome = "saved";
+        } finally {
+            deviceMetrics.stop(sample, "eventlog.write", "type", event.getEventType(), "outcome", outcome);
+        }
+    }
+    
     // Métodos de consulta
     public List<Event> getRecentEvents(int hours) {
         LocalDateTime since = LocalDateTime.now().minusHours(hours);
@@ -150,7 +169,7 @@ public class EventLogService {
     public CompletableFuture<Void> logVacationModeActivated(String userId, String details) {
         try {
             Event event = Event.userAction("VACATION_MODE_ACTIVATED", null, userId, details);
-            eventRepository.save(event);
+            save(event);
             System.out.println("VACATION MODE: Activado por " + userId);
         } catch (Exception e) {
             System.err.println("Error logging vacation mode activation: " + e.getMessage());
@@ -162,7 +181,7 @@ public class EventLogService {
     public CompletableFuture<Void> logVacationModeDeactivated(String userId, String details) {
         try {
             Event event = Event.userAction("VACATION_MODE_DEACTIVATED", null, userId, details);
-            eventRepository.save(event);
+            save(event);
             System.out.println("VACATION MODE: Desactivado por " + userId);
         } catch (Exception e) {
             System.err.println("Error logging vacation mode deactivation: " + e.getMessage());
@@ -2,47 +2,41 @@ package com.casa.iot.backend.service;
 
 import org.springframework.stereotype.Service;
 
-import com.casa.iot.backend.model.Room;
-import com.casa.iot.backend.mqtt.MqttGateway;
-import com.casa.iot.backend.repository.RoomRepository;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.casa.iot.backend.mqtt.DeviceCommandSender;
+import com.casa.iot.backend.mqtt.PendingCommand;
+import com.casa.iot.backend.mqtt.message.LightConfirmation;
 
 @Service
 public class LightService {
 
-    private final RoomRepository roomRepository;
-    private final MqttGateway mqttGateway;
+    private final RoomStateStore stateStore;
+    private final DeviceCommandSender commandSender;
 
-    public LightService(RoomRepository repo, MqttGateway gateway) {
-        this.roomRepository = repo;
-        this.mqttGateway = gateway;
+    public LightService(RoomStateStore stateStore, DeviceCommandSender commandSender) {
+        this.stateStore = stateStore;
+        this.commandSender = commandSender;
     }
 
-    public void sendLightCommand(String roomName, boolean lightOn) {
+    // el id del comando vuelve en la confirmacion; el futuro dice como termino
+    public PendingCommand sendLightCommand(String roomName, boolean lightOn) {
         String topic = roomName + "/lig/command";
-        String payload = String.format("{\"command\":\"SET_LIGHT\",\"state\":\"%s\"}", lightOn ? "ON" : "OFF");
-        mqttGateway.sendToMqtt(payload, topic);
+        return commandSender.sendLatest(topic, "command", "SET_LIGHT", "state", lightOn ? "ON" : "OFF");
     }
 
-    // una vez recibimos respuesta positiva, actualizamos BD
-    public void handleConfirmation(String room, String payload) {
+    // una vez recibimos respuesta positiva, actualizamos el estado (la BD se escribe por lotes)
+    public void handleConfirmation(String room, LightConfirmation confirmation) {
         try {
-            // parsing {"status":"SUCCESS","state":"ON"}
-            JsonObject json = JsonParser.parseString(payload).getAsJsonObject();
-            String status = json.get("status").getAsString();
-            String state = json.get("state").getAsString();
-            
-            if ("SUCCESS".equals(status)) {
-                // bd stuf
-                Room roomEntity = roomRepository.findById(room).orElse(new Room(room));
-                roomEntity.setLightOn("ON".equals(state));
-                roomRepository.save(roomEntity);
-                
-                System.out.println("Luz actualizada en BD: " + room + " -> " + state);
+            boolean changed = confirmation.success() && stateStore.update(room, state -> state.withLight(confirmation.on()));
+            // despues de aplicar el estado, para que quien espera con ?await ya lea el nuevo
+            commandSender.confirmed(room + "/lig/command", confirmation.commandId(), confirmation.success());
+            if (confirmation.success()) {
+                if (changed) {
+                    System.out.println("Luz actualizada: " + room + " -> " + confirmation.state());
+                } else {
+                    System.out.println("Luz de " + room + " ya estaba en " + confirmation.state());
+                }
             } else {
-                System.err.println("Error del dispositivo IoT en " + room + ": " + 
-                                 json.get("error").getAsString());
+                System.err.println("Error del dispositivo IoT en " + room + ": " + confirmation.error());
             }
         } catch (Exception e) {
             System.err.println("Error al procesar confirmación: " + e.getMessage());
@@ -0,0 +1,147 @@
+package com.casa.iot.backend.service;
+
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.casa.iot.backend.config.MovementProperties;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Agrupa las detecciones de movimiento de cada habitacion en episodios. La
+ * primera deteccion abre el episodio (y se notifica desde MovementService);
+ * las siguientes dentro de la ventana solo suman al contador, sin tocar la
+ * BD ni Firebase. Cuando pasa la ventana sin detecciones el episodio se
+ * cierra y se guarda un unico evento con el numero de detecciones y la
+ * primera y ultima marca de tiempo.
+ */
+@Component
+public class MovementCoalescer {
+
+    private final MovementProperties properties;
+    private final EventLogService eventLogService;
+    private final Clock clock;
+    private final ConcurrentHashMap<String, Episode> episodes = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MovementCoalescer(MovementProperties properties, EventLogService eventLogService) {
+        this(properties, eventLogService, Clock.systemDefaultZone());
+    }
+
+    public MovementCoalescer(MovementProperties properties, EventLogService eventLogService, Clock clock) {
+        this.properties = properties;
+        this.eventLogService = eventLogService;
+        this.clock = clock;
+    }
+
+    // suma la deteccion al episodio abierto de la habitacion; false si no hay ninguno
+    public boolean extend(String room, String timestamp) {
+        long now = clock.millis();
+        boolean[] extended = new boolean[1];
+        episodes.computeIfPresent(room, (key, episode) -> {
+            if (episode.isExpired(now)) {
+                return episode; // lo cierra el barrido
+            }
+            episode.add(timestamp(timestamp), now);
+            extended[0] = true;
+            return episode;
+        });
+        return extended[0];
+    }
+
+    // abre un episodio nuevo; si quedaba uno caducado se cierra antes
+    public void open(String room, String timestamp) {
+        long now = clock.millis();
+        Episode episode = new Episode(timestamp(timestamp), now, properties.windowFor(room).toMillis());
+        Episode previous = episodes.put(room, episode);
+        if (previous != null) {
+            log(room, previous);
+        }
+    }
+
+    // cierra el episodio de la habitacion sin esperar a la ventana (p.ej. al cambiar la alarma)
+    public void close(String room) {
+        Episode episode = episodes.remove(room);
+        if (episode != null) {
+            log(room, episode);
+        }
+    }
+
+    @Scheduled(fixedDelay = 1000)
+    public void closeExpired() {
+        long now = clock.millis();
+        List<String> rooms = new ArrayList<>(episodes.keySet());
+        for (String room : rooms) {
+            Episode[] closed = new Episode[1];
+            episodes.computeIfPresent(room, (key, episode) -> {
+                if (!episode.isExpired(now)) {
+                    return episode;
+                }
+                closed[0] = episode;
+                return null;
+            });
+            if (closed[0] != null) {
+                log(room, closed[0]);
+            }
+        }
+    }
+
+    // al parar la aplicacion no se pierden los episodios abiertos
+    @PreDestroy
+    public void closeAll() {
+        for (String room : new ArrayList<>(episodes.keySet())) {
+            close(room);
+        }
+    }
+
+    public int openEpisodes() {
+        return episodes.size();
+    }
+
+    private void log(String room, Episode episode) {
+        String details;
+        synchronized (episode) {
+            details = String.format(
+                "{\"firstTimestamp\":\"%s\",\"lastTimestamp\":\"%s\",\"count\":%d,\"sensorType\":\"PIR\",\"sensorActive\":true}",
+                episode.firstTimestamp, episode.lastTimestamp, episode.count);
+        }
+        eventLogService.logMovementDetected(room, details);
+        System.out.println("Episodio de movimiento cerrado en " + room + ": " + details);
+    }
+
+    private String timestamp(String timestamp) {
+        return timestamp != null ? timestamp : LocalDateTime.now(clock).toString();
+    }
+
+    private static final class Episode {
+        private final String firstTimestamp;
+        private final long windowMillis;
+        private String lastTimestamp;
+        private long lastSeen;
+        private int count = 1;
+
+        private Episode(String timestamp, long now, long windowMillis) {
+            this.firstTimestamp = timestamp;
+            this.lastTimestamp = timestamp;
+            this.lastSeen = now;
+            this.windowMillis = windowMillis;
+        }
+
+        private synchronized void add(String timestamp, long now) {
+            lastTimestamp = timestamp;
+            lastSeen = now;
+            count++;
+        }
+
+        private synchronized boolean isExpired(long now) {
+            return now - lastSeen >= windowMillis;
+        }
+    }
+}
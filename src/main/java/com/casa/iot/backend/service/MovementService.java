@@ -1,44 +1,66 @@
 package com.casa.iot.backend.service;
 
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
 import org.springframework.stereotype.Service;
 
-import com.casa.iot.backend.model.Room;
-import com.casa.iot.backend.mqtt.MqttGateway;
-import com.casa.iot.backend.repository.RoomRepository;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.casa.iot.backend.model.RoomState;
+import com.casa.iot.backend.mqtt.DeviceCommand;
+import com.casa.iot.backend.mqtt.DeviceCommandSender;
+import com.casa.iot.backend.mqtt.PendingCommand;
+import com.casa.iot.backend.mqtt.message.AlarmChanged;
+import com.casa.iot.backend.mqtt.message.AlarmConfirmation;
+import com.casa.iot.backend.mqtt.message.MovementEvent;
+import com.casa.iot.backend.mqtt.message.SensorEvent;
 
 @Service
 public class MovementService {
-    private final MqttGateway mqttGateway;
-    private final RoomRepository roomRepository;
+    private final DeviceCommandSender commandSender;
+    private final RoomStateStore stateStore;
     private final NotificationService notificationService;
     private final EventLogService eventLogService;
+    private final MovementCoalescer movementCoalescer;
 
-    public MovementService(RoomRepository repo, MqttGateway gateway, 
-                          NotificationService notificationService, EventLogService eventLogService) {
-        this.roomRepository = repo;
-        this.mqttGateway = gateway;
+    public MovementService(RoomStateStore stateStore, DeviceCommandSender commandSender, 
+                          NotificationService notificationService, EventLogService eventLogService,
+                          MovementCoalescer movementCoalescer) {
+        this.stateStore = stateStore;
+        this.commandSender = commandSender;
         this.notificationService = notificationService;
         this.eventLogService = eventLogService;
+        this.movementCoalescer = movementCoalescer;
     }
 
-    public void sendAlarmCommand(String roomName, boolean alarmOn) {
+    public PendingCommand sendAlarmCommand(String roomName, boolean alarmOn) {
         String topic = roomName + "/mov/command";
-        String payload = String.format("{\"command\":\"SET_ALARM\",\"state\":\"%s\"}", alarmOn ? "ON" : "OFF");
-        mqttGateway.sendToMqtt(payload, topic);
+        return commandSender.sendLatest(topic, "command", "SET_ALARM", "state", alarmOn ? "ON" : "OFF");
+    }
+
+    // misma orden para varias habitaciones en un solo lote (o un broadcast si esta activo)
+    public CompletableFuture<Void> sendAlarmCommandToAll(Collection<String> roomNames, boolean alarmOn) {
+        String[] fields = {"command", "SET_ALARM", "state", alarmOn ? "ON" : "OFF"};
+        if (commandSender.isBroadcastEnabled()) {
+            return commandSender.broadcast("mov", fields);
+        }
+        return commandSender.sendAll(roomNames.stream()
+            .map(roomName -> new DeviceCommand(roomName + "/mov/command", fields))
+            .toList());
     }
 
-    public void handleConfirmation(String room, String payload) {
+    public void handleConfirmation(String room, AlarmConfirmation confirmation) {
         try {
-            JsonObject json = JsonParser.parseString(payload).getAsJsonObject();
-            String status = json.get("status").getAsString();
-            String state = json.get("state").getAsString();
-            
-            if ("SUCCESS".equals(status)) {
-                Room roomEntity = roomRepository.findById(room).orElse(new Room(room));
-                roomEntity.setDetectOn("ON".equals(state));
-                roomRepository.save(roomEntity);
+            boolean changed = confirmation.success() && stateStore.update(room, current -> current.withAlarm(confirmation.on()));
+            // despues de aplicar el estado, para que quien espera con ?await ya lea el nuevo
+            commandSender.confirmed(room + "/mov/command", confirmation.commandId(), confirmation.success());
+            if (confirmation.success()) {
+                String state = confirmation.state();
+                if (!changed) {
+                    // confirmacion repetida: nada que registrar
+                    System.out.println("Sensor de " + room + " ya estaba en " + state);
+                    return;
+                }
+                movementCoalescer.close(room);
                 
                 // logging
                 String action = "ON".equals(state) ? "SENSOR_ON" : "SENSOR_OFF";
@@ -46,32 +68,31 @@ public class MovementService {
                                               state, java.time.LocalDateTime.now());
                 eventLogService.logSystemAction(action, room, details, "DEVICE_CONFIRMATION");
                 
-                System.out.println("Sensor actualizado en BD: " + room + " -> " + state);
+                System.out.println("Sensor actualizado: " + room + " -> " + state);
             } else {
-                System.err.println("Error del sensor IoT en " + room + ": " + 
-                                 json.get("error").getAsString());
+                System.err.println("Error del sensor IoT en " + room + ": " + confirmation.error());
             }
         } catch (Exception e) {
             System.err.println("Error al procesar confirmacion del sensor: " + e.getMessage());
         }
     }
 
-    public void handle(String room, String payload) {
+    public void handle(String room, SensorEvent event) {
         try {
-            System.out.println("Movimiento recibido del sensor en " + room + ": " + payload);
-            JsonObject json = JsonParser.parseString(payload).getAsJsonObject();
-            String event = json.get("event").getAsString();
+            System.out.println("Evento recibido del sensor en " + room + ": " + event);
             
             // notificacion
             //TODO: Ejecutar acciones automáticas (encender luz, etc.)
-            if ("MOVEMENT_DETECTED".equals(event)) {
-                Room roomEntity = roomRepository.findById(room).orElse(null);
+            if (event instanceof MovementEvent movement) {
+                // dentro de un episodio abierto solo se cuenta la deteccion
+                if (movementCoalescer.extend(room, movement.timestamp())) {
+                    return;
+                }
+                RoomState roomState = stateStore.get(room);
                 
-                if (roomEntity != null && roomEntity.isDetectOn()) {
-                    // logging
-                    String details = String.format("{\"timestamp\":\"%s\",\"sensorType\":\"PIR\",\"sensorActive\":true}", 
-                                                  json.has("timestamp") ? json.get("timestamp").getAsString() : java.time.LocalDateTime.now());
-                    eventLogService.logMovementDetected(room, details);
+                if (roomState != null && roomState.detectOn()) {
+                    // el evento se guarda al cerrar el episodio
+                    movementCoalescer.open(room, movement.timestamp());
                     
                     System.out.println("Movimiento detectado en " + room + " - Enviando notificacion");
                     notificationService.sendMovementAlert(room);
@@ -79,16 +100,18 @@ public class MovementService {
                     System.out.println("Movimiento detectado en " + room + " - Sensor desactivado, no se envia notificacion");
                 }
                 
-            } else if ("ALARM_CHANGED".equals(event)) {
-                String state = json.get("state").getAsString();
-                Room roomEntity = roomRepository.findById(room).orElse(new Room(room));
-                roomEntity.setDetectOn("ON".equals(state));
-                roomRepository.save(roomEntity);
+            } else if (event instanceof AlarmChanged changed) {
+                String state = changed.state();
+                if (!stateStore.update(room, current -> current.withAlarm(changed.on()))) {
+                    System.out.println("Sensor de " + room + " ya estaba en " + state);
+                    return;
+                }
+                movementCoalescer.close(room);
                 
                 // logging
                 String action = "ON".equals(state) ? "SENSOR_ON" : "SENSOR_OFF";
                 String details = String.format("{\"state\":\"%s\",\"source\":\"MANUAL\",\"timestamp\":\"%s\"}", 
-                                              state, json.has("timestamp") ? json.get("timestamp").getAsString() : java.time.LocalDateTime.now());
+                                              state, changed.timestamp() != null ? changed.timestamp() : java.time.LocalDateTime.now());
                 eventLogService.logSystemAction(action, room, details, "MANUAL");
                 
                 System.out.println("Sensor cambiado manualmente: " + room + " -> " + state);
@@ -2,11 +2,12 @@ package com.casa.iot.backend.service;
 
 import org.springframework.stereotype.Service;
 
-import com.casa.iot.backend.mqtt.MqttGateway;
+import com.casa.iot.backend.model.Room;
+import com.casa.iot.backend.mqtt.DeviceCommandSender;
+import com.casa.iot.backend.mqtt.message.RfidDetected;
+import com.casa.iot.backend.mqtt.message.RfidRegister;
 import com.casa.iot.backend.repository.RoomRepository;
 import com.casa.iot.backend.repository.UserRepository;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
 @Service
 public class RFIDService {
@@ -15,36 +16,32 @@ public class RFIDService {
     private final UserRepository userRepository;
     private final EventLogService eventLogService;
     private final VacationModeService vacationModeService;
-    private final MqttGateway mqttGateway;
-    private String pendingRegistrationUser = null;
+    private final DeviceCommandSender commandSender;
+    // se escribe desde la API REST y se lee desde el hilo MQTT
+    private volatile String pendingRegistrationUser = null;
 
-    public RFIDService(MovementService movementService, RoomRepository roomRepository, EventLogService eventLogService, VacationModeService vacationModeService, UserRepository userRepository, MqttGateway mqttGateway) {
+    public RFIDService(MovementService movementService, RoomRepository roomRepository, EventLogService eventLogService, VacationModeService vacationModeService, UserRepository userRepository, DeviceCommandSender commandSender) {
         this.movementService = movementService;
         this.roomRepository = roomRepository;
         this.eventLogService = eventLogService;
         this.vacationModeService = vacationModeService;
         this.userRepository = userRepository;
-        this.mqttGateway = mqttGateway;
+        this.commandSender = commandSender;
     }
 
-    public void handle(String payload) {
+    public void handle(RfidDetected detected) {
         try {
-            JsonObject json = JsonParser.parseString(payload).getAsJsonObject();
-            String event = json.get("event").getAsString();
-
-            if ("RFID_DETECTED".equals(event)) {
-                String cardId = json.get("cardId").getAsString();
-                // Verificar si la tarjeta está registrada para algún usuario
-                var userOpt = userRepository.findByRfidUid(cardId);
-                if (userOpt.isPresent()) {
-                    System.out.println("Tarjeta RFID detectada: " + cardId + " (usuario: " + userOpt.get().getUsername() + ")");
-                    disableAllMovementSensors(cardId);
-                    if (vacationModeService.isVacationModeActive()) {
-                        vacationModeService.deactivateVacationMode();
-                    }
-                } else {
-                    System.out.println("Tarjeta RFID detectada: " + cardId + " (NO registrada para ningún usuario)");
+            String cardId = detected.cardId();
+            // Verificar si la tarjeta está registrada para algún usuario
+            var userOpt = userRepository.findByRfidUid(cardId);
+            if (userOpt.isPresent()) {
+                System.out.println("Tarjeta RFID detectada: " + cardId + " (usuario: " + userOpt.get().getUsername() + ")");
+                disableAllMovementSensors(cardId);
+                if (vacationModeService.isVacationModeActive()) {
+                    vacationModeService.deactivateVacationMode();
                 }
+            } else {
+                System.out.println("Tarjeta RFID detectada: " + cardId + " (NO registrada para ningún usuario)");
             }
         } catch (Exception e) {
             System.err.println("Error procesando evento RFID: " + e.getMessage());
@@ -54,24 +51,19 @@ public class RFIDService {
     public void startRfidRegistration(String username) {
         pendingRegistrationUser = username;
         removeRfidFromUser(username); 
-        String payload = "{\"command\":\"START\"}";
-        mqttGateway.sendToMqtt(payload, "rfid/command");
+        commandSender.send("rfid/command", "command", "START");
         System.out.println("Comando rfid/command enviado para iniciar registro RFID para usuario: " + username);
     }
 
     public void cancelRfidRegistration(String username) {
         pendingRegistrationUser = null;
-        String payload = "{\"command\":\"CANCEL\"}";
-        mqttGateway.sendToMqtt(payload, "rfid/command");
+        commandSender.send("rfid/command", "command", "CANCEL");
     }
 
-    public void handleRegister(String payload) {
+    public void handleRegister(RfidRegister register) {
         try {
-            JsonObject json = JsonParser.parseString(payload).getAsJsonObject();
-            String event = json.get("event").getAsString();
-
-            if ("RFID_REGISTER".equals(event)) {
-                String cardId = json.get("cardId").getAsString();
+            if (!register.cancelled()) {
+                String cardId = register.cardId();
                 System.out.println("Tarjeta RFID detectada para registro: " + cardId + ", usuario pendiente: " + pendingRegistrationUser);
                 if (pendingRegistrationUser != null) {
                     var userOpt = userRepository.findByUsername(pendingRegistrationUser);
@@ -87,7 +79,7 @@ public class RFIDService {
                 } else {
                     System.err.println("No hay usuario pendiente de registro RFID.");
                 }
-            } else if ("RFID_REGISTER_CANCEL".equals(event)) {
+            } else {
                 System.out.println("Registro RFID cancelado por el dispositivo IoT.");
                 pendingRegistrationUser = null;
              
@@ -98,9 +90,7 @@ public class RFIDService {
     }
 
     private void disableAllMovementSensors(String cardId) {
-        roomRepository.findAll().forEach(roomEntity -> {
-            movementService.sendAlarmCommand(roomEntity.getName(), false);
-        });
+        movementService.sendAlarmCommandToAll(roomRepository.findAll().stream().map(Room::getName).toList(), false);
 
         // logging
         String details = String.format("{\"cardId\":\"%s\",\"action\":\"DISABLE_ALL_SENSORS\",\"timestamp\":\"%s\"}",
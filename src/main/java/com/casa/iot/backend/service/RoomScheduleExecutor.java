@@ -1,6 +1,8 @@
 package com.casa.iot.backend.service;
 
 import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.springframework.scheduling.annotation.Scheduled;
@@ -11,11 +13,15 @@ import com.casa.iot.backend.model.RoomSchedule;
 
 @Component
 public class RoomScheduleExecutor {
+    private static final int MAX_CATCH_UP_MINUTES = 5;
+
     private final RoomScheduleService scheduleService;
     private final LightService lightService;
     private final MovementService movementService;
     private final RoomService roomService;
     private final EventLogService eventLogService;
+    // ultimo minuto revisado, para no perder los puntuales si una ejecucion se retrasa
+    private LocalTime lastRun;
 
     public RoomScheduleExecutor(RoomScheduleService scheduleService, LightService lightService, 
                                MovementService movementService, RoomService roomService, 
@@ -32,13 +38,11 @@ public class RoomScheduleExecutor {
     public void executeSchedules() {
         LocalTime now = LocalTime.now().withSecond(0).withNano(0);
 
-        // horarios puntuales
-        List<RoomSchedule> punctual = scheduleService.getPunctualSchedulesForTime(now);
-        for (RoomSchedule schedule : punctual) {
-            if (schedule.getTime() != null && schedule.getTime().getHour() == now.getHour() && schedule.getTime().getMinute() == now.getMinute()) {
-                execute(schedule);
-            }
+        // horarios puntuales, incluidos los de minutos que se saltaron (pausa larga, scheduler ocupado)
+        for (LocalTime minute : minutesSinceLastRun(now)) {
+            executePunctualSchedules(minute);
         }
+        lastRun = now;
 
         // horarios de intervalo
         List<RoomSchedule> intervalSchedules = scheduleService.getAllIntervalSchedules();
@@ -47,6 +51,29 @@ public class RoomScheduleExecutor {
         }
     }
 
+    private void executePunctualSchedules(LocalTime minute) {
+        List<RoomSchedule> punctual = scheduleService.getPunctualSchedulesForTime(minute);
+        for (RoomSchedule schedule : punctual) {
+            if (schedule.getTime() != null && schedule.getTime().getHour() == minute.getHour() && schedule.getTime().getMinute() == minute.getMinute()) {
+                execute(schedule);
+            }
+        }
+    }
+
+    // minutos pendientes desde la ultima ejecucion hasta ahora (como mucho MAX_CATCH_UP_MINUTES)
+    private List<LocalTime> minutesSinceLastRun(LocalTime now) {
+        if (lastRun == null) {
+            return List.of(now);
+        }
+        long missed = Math.floorMod(ChronoUnit.MINUTES.between(lastRun, now), 24 * 60);
+        missed = Math.min(missed, MAX_CATCH_UP_MINUTES);
+        List<LocalTime> minutes = new ArrayList<>();
+        for (long i = missed - 1; i >= 0; i--) {
+            minutes.add(now.minusMinutes(i));
+        }
+        return minutes;
+    }
+
     // Ver si estamos en el intervalo y si es necesario cambiar el estado del hardware
     private void executeIntervalSchedule(RoomSchedule schedule, LocalTime now) {
         LocalTime startTime = schedule.getStartTime();
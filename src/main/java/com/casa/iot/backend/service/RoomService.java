@@ -1,10 +1,13 @@
 package com.casa.iot.backend.service;
 
+import java.util.Comparator;
 import java.util.List;
 
 import org.springframework.stereotype.Service;
 
 import com.casa.iot.backend.model.Room;
+import com.casa.iot.backend.model.RoomState;
+import com.casa.iot.backend.mqtt.DevicePresence;
 import com.casa.iot.backend.mqtt.MqttGateway;
 import com.casa.iot.backend.repository.RoomRepository;
 
@@ -13,28 +16,67 @@ public class RoomService {
 
     private final RoomRepository roomRepository;
     // private final MqttGateway mqttGateway; // to send messages to iOT
+    private final RoomStateStore stateStore;
+    private final DevicePresence presence;
 
-    public RoomService(RoomRepository repo, MqttGateway gateway) {
+    public RoomService(RoomRepository repo, MqttGateway gateway, RoomStateStore stateStore,
+                       DevicePresence presence) {
         this.roomRepository = repo;
         // this.mqttGateway = gateway;
+        this.stateStore = stateStore;
+        this.presence = presence;
     }
 
+    // el estado sale de memoria (RoomStateStore), no de la BD
     public List<Room> getAllRooms() {
-        return roomRepository.findAll();
+        return stateStore.all().stream()
+            .sorted(Comparator.comparing(RoomState::name))
+            .map(this::toRoom)
+            .toList();
     }
 
     public Room getRoomByName(String name) {
+        RoomState state = stateStore.get(name);
+        return state == null ? null : toRoom(state);
+    }
+
+    // la Room de BD, con su version: la que se puede enlazar desde otra entidad (getRoomByName es una copia)
+    public Room getStoredRoom(String name) {
         return roomRepository.findById(name).orElse(null);
     }
 
+    public boolean isDeviceOnline(String roomName) {
+        return presence.isOnline(roomName);
+    }
+
+    private Room toRoom(RoomState state) {
+        Room room = state.toRoom();
+        room.setOnline(presence.isOnline(state.name()));
+        return room;
+    }
+
+    // crear y borrar se escribe en BD en el momento
     public Room createRoom(String name) {
-        return roomRepository.findById(name).orElseGet(() -> roomRepository.save(new Room(name)));
+        RoomState existing = stateStore.get(name);
+        if (existing != null) {
+            return toRoom(existing);
+        }
+        Room room = roomRepository.save(new Room(name));
+        stateStore.put(RoomState.of(room));
+        return room;
     }
 
     public void removeRoom(String roomName) {
-        Room room = roomRepository.findById(roomName).orElse(null);
-        if (room != null) {
-            roomRepository.delete(room);
+        RoomState state = stateStore.get(roomName);
+        if (state != null) {
+            // fuera del store antes de borrar, para que un lote pendiente no vuelva a insertarla
+            stateStore.remove(roomName);
+            try {
+                roomRepository.deleteById(roomName);
+            } catch (RuntimeException e) {
+                stateStore.put(state);
+                throw e;
+            }
             // mqttGateway.sendToMqtt("", roomName + "/remove");
         }
     }
@@ -0,0 +1,59 @@
+package com.casa.iot.backend.service;
+
+import org.springframework.stereotype.Service;
+
+import com.casa.iot.backend.model.RoomState;
+import com.casa.iot.backend.mqtt.message.StateSnapshot;
+
+/**
+ * Aplica el estado completo que publica un dispositivo en {room}/state (al
+ * arrancar o reconectar). Todos los subsistemas se actualizan de una vez
+ * en RoomStateStore, y solo si algo ha cambiado.
+ */
+@Service
+public class RoomStateService {
+
+    private final RoomStateStore stateStore;
+    private final EventLogService eventLogService;
+    private final MovementCoalescer movementCoalescer;
+
+    public RoomStateService(RoomStateStore stateStore, EventLogService eventLogService,
+                            MovementCoalescer movementCoalescer) {
+        this.stateStore = stateStore;
+        this.eventLogService = eventLogService;
+        this.movementCoalescer = movementCoalescer;
+    }
+
+    public void applySnapshot(String room, StateSnapshot snapshot) {
+        try {
+            RoomState current = stateStore.get(room);
+            boolean created = current == null;
+            if (created) {
+                current = new RoomState(room, false, false);
+            }
+
+            boolean lightChanged = snapshot.lightOn() != null && snapshot.lightOn() != current.lightOn();
+            boolean alarmChanged = snapshot.alarmOn() != null && snapshot.alarmOn() != current.detectOn();
+            if (!created && !lightChanged && !alarmChanged) {
+                System.out.println("Estado de " + room + " sin cambios");
+                return;
+            }
+
+            stateStore.update(room, state -> new RoomState(room,
+                lightChanged ? snapshot.lightOn() : state.lightOn(),
+                alarmChanged ? snapshot.alarmOn() : state.detectOn()));
+            RoomState updated = stateStore.get(room);
+            if (alarmChanged) {
+                movementCoalescer.close(room);
+                String state = snapshot.alarmOn() ? "ON" : "OFF";
+                String details = String.format("{\"state\":\"%s\",\"source\":\"DEVICE_STATE\",\"timestamp\":\"%s\"}",
+                                               state, java.time.LocalDateTime.now());
+                eventLogService.logSystemAction("ON".equals(state) ? "SENSOR_ON" : "SENSOR_OFF", room, details, "DEVICE_STATE");
+            }
+            System.out.println("Estado de " + room + " actualizado: luz " + updated.lightOn()
+                               + ", alarma " + updated.detectOn());
+        } catch (Exception e) {
+            System.err.println("Error al aplicar estado de " + room + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.casa.iot.backend.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.casa.iot.backend.model.Room;
+import com.casa.iot.backend.model.RoomState;
+import com.casa.iot.backend.mqtt.BrokerReady;
+import com.casa.iot.backend.mqtt.MqttProperties;
+import com.casa.iot.backend.mqtt.RoomStatePublisher;
+import com.casa.iot.backend.repository.RoomRepository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.Cache;
+import jakarta.persistence.EntityManagerFactory;
+
+/**
+ * Estado de las habitaciones (luz y alarma) en memoria: es lo que leen y
+ * cambian los servicios al procesar mensajes, sin ir a la BD. Se carga al
+ * arrancar y cada cambio se publica enseguida como estado retenido.
+ *
+ * La tabla room se actualiza en segundo plano: las habitaciones cambiadas
+ * se marcan como pendientes y cada room-state.flush-interval-ms se escriben
+ * en un solo lote JDBC con su ultimo estado, asi diez confirmaciones
+ * seguidas de una habitacion son una sola fila. Al parar se escribe lo
+ * que quede. Si el lote falla las habitaciones siguen pendientes.
+ *
+ * Crear y borrar habitaciones sigue siendo inmediato (RoomService).
+ * Los lotes no pasan por Hibernate: tras cada uno se sacan de la cache de
+ * segundo nivel las Room escritas, para que JPA no lea una version vieja.
+ *
+ * Con varios nodos (mqtt.broker.shared-group) cada uno solo recibe los
+ * mensajes de parte de las habitaciones, y lo que escriben los demas no
+ * pasa por esta memoria. Cada room-state.refresh-interval-ms se leen las
+ * versiones de la tabla y las filas cuya version ha cambiado (y que aqui no
+ * tienen cambios sin escribir) sustituyen al estado en memoria y salen de
+ * la cache de segundo nivel. Ese estado no se publica: el retenido es del
+ * nodo que lo cambio. Por lo mismo, en cluster no se republica todo al
+ * arrancar, lo que hay en BD puede ser mas viejo que el retenido.
+ */
+@Component
+public class RoomStateStore {
+
+    // una sentencia por habitacion: inserta si no existe y solo toca (y sube la version de) las que cambian;
+    // MySQL asigna en orden, por eso version va antes que los valores
+    private static final String SELECT_VERSIONS = "SELECT name, light_on, detect_on, version FROM room";
+
+    private static final String UPSERT = "INSERT INTO room (name, light_on, detect_on, version) VALUES (?, ?, ?, 0) "
+        + "ON DUPLICATE KEY UPDATE "
+        + "version = CASE WHEN light_on <> VALUES(light_on) OR detect_on <> VALUES(detect_on) THEN version + 1 ELSE version END, "
+        + "light_on = VALUES(light_on), detect_on = VALUES(detect_on)";
+
+    private final RoomRepository roomRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final Cache entityCache;
+    private final RoomStatePublisher statePublisher;
+    private final boolean clustered;
+    private final ConcurrentHashMap<String, RoomState> states = new ConcurrentHashMap<>();
+    // version de cada fila en la ultima lectura (solo en cluster)
+    private final Map<String, Long> versions = new HashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final Object flushLock = new Object();
+    private final Timer flushTimer;
+    private final Counter flushedRows;
+
+    public RoomStateStore(RoomRepository roomRepository, JdbcTemplate jdbcTemplate,
+                          EntityManagerFactory entityManagerFactory, RoomStatePublisher statePublisher,
+                          MqttProperties mqttProperties, MeterRegistry meterRegistry) {
+        this.roomRepository = roomRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.entityCache = entityManagerFactory.getCache();
+        this.statePublisher = statePublisher;
+        this.clustered = mqttProperties.isClustered();
+        this.flushTimer = Timer.builder("room.state.flush")
+            .description("Escritura en BD de un lote de habitaciones cambiadas")
+            .register(meterRegistry);
+        this.flushedRows = Counter.builder("room.state.flushed")
+            .description("Filas de room escritas por los lotes")
+            .register(meterRegistry);
+        Gauge.builder("room.state.dirty", dirty, Set::size)
+            .description("Habitaciones con cambios aun no escritos en BD")
+            .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void load() {
+        roomRepository.findAll().forEach(room -> states.put(room.getName(), RoomState.of(room)));
+        System.out.println("Estado de " + states.size() + " habitaciones cargado en memoria");
+    }
+
+    // null si la habitacion no existe; si no estaba en memoria se busca una vez en BD
+    public RoomState get(String name) {
+        RoomState state = states.get(name);
+        if (state != null) {
+            return state;
+        }
+        return roomRepository.findById(name)
+            .map(room -> states.computeIfAbsent(name, key -> RoomState.of(room)))
+            .orElse(null);
+    }
+
+    public Collection<RoomState> all() {
+        return states.values();
+    }
+
+    /**
+     * Aplica el cambio al estado actual (o al de una habitacion nueva, todo
+     * apagado). Si el estado cambia se publica y queda pendiente de escribir.
+     *
+     * @return false si el estado ya era ese (confirmacion repetida)
+     */
+    public boolean update(String name, UnaryOperator<RoomState> change) {
+        get(name); // la carga de BD si no estaba en memoria
+        RoomState[] before = new RoomState[1];
+        RoomState after = states.compute(name, (key, current) -> {
+            before[0] = current;
+            RoomState changed = change.apply(current != null ? current : new RoomState(key, false, false));
+            if (!changed.equals(current)) {
+                dirty.add(key); // dentro del compute: refresh() no puede pisarlo antes de marcarlo
+            }
+            return changed;
+        });
+        if (after.equals(before[0])) {
+            return false;
+        }
+        statePublisher.publish(after);
+        return true;
+    }
+
+    // habitacion recien guardada en BD: no hay nada pendiente
+    public void put(RoomState state) {
+        states.put(state.name(), state);
+        statePublisher.publish(state);
+    }
+
+    public void remove(String name) {
+        synchronized (flushLock) {
+            states.remove(name);
+            dirty.remove(name);
+        }
+        statePublisher.clear(name);
+    }
+
+    public boolean isDirty(String name) {
+        return dirty.contains(name);
+    }
+
+    @Scheduled(fixedDelayString = "${room-state.flush-interval-ms:1000}")
+    public void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        synchronized (flushLock) {
+            List<RoomState> batch = new ArrayList<>(dirty.size());
+            Iterator<String> names = dirty.iterator();
+            while (names.hasNext()) {
+                String name = names.next();
+                names.remove();
+                // espera a un update() en curso de la habitacion, que la marca antes de guardar el estado
+                RoomState state = states.computeIfPresent(name, (key, current) -> current);
+                if (state != null) {
+                    batch.add(state);
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            long started = System.nanoTime();
+            try {
+                jdbcTemplate.batchUpdate(UPSERT, batch, batch.size(), (statement, state) -> {
+                    statement.setString(1, state.name());
+                    statement.setBoolean(2, state.lightOn());
+                    statement.setBoolean(3, state.detectOn());
+                });
+                flushedRows.increment(batch.size());
+                batch.forEach(state -> entityCache.evict(Room.class, state.name()));
+            } catch (DataAccessException e) {
+                // un cambio posterior ya pudo volver a marcarla; se escribe el ultimo estado
+                batch.forEach(state -> dirty.add(state.name()));
+                System.err.println("Error guardando el estado de " + batch.size() + " habitaciones: " + e.getMessage());
+            } finally {
+                flushTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flush();
+        if (!dirty.isEmpty()) {
+            System.err.println("Quedan " + dirty.size() + " habitaciones sin guardar al parar");
+        }
+    }
+
+    // cambios de otros nodos: filas con otra version y sin cambios pendientes aqui
+    @Scheduled(fixedDelayString = "${room-state.refresh-interval-ms:2000}")
+    public void refresh() {
+        if (!clustered) {
+            return;
+        }
+        synchronized (flushLock) {
+            Set<String> present = new HashSet<>();
+            try {
+                jdbcTemplate.query(SELECT_VERSIONS, row -> {
+                    String name = row.getString("name");
+                    long version = row.getLong("version");
+                    present.add(name);
+                    Long known = versions.put(name, version);
+                    if (known != null && known == version) {
+                        return;
+                    }
+                    RoomState stored = new RoomState(name, row.getBoolean("light_on"), row.getBoolean("detect_on"));
+                    adopt(name, stored);
+                });
+            } catch (DataAccessException e) {
+                System.err.println("Error leyendo el estado de las habitaciones: " + e.getMessage());
+                return;
+            }
+            // borradas por otro nodo
+            Iterator<String> known = versions.keySet().iterator();
+            while (known.hasNext()) {
+                String name = known.next();
+                if (!present.contains(name)) {
+                    known.remove();
+                    adopt(name, null);
+                }
+            }
+        }
+    }
+
+    private void adopt(String name, RoomState stored) {
+        boolean[] replaced = new boolean[1];
+        states.compute(name, (key, current) -> {
+            if (dirty.contains(key) || Objects.equals(current, stored)) {
+                return current; // lo de aqui es mas nuevo y se escribira, o ya es eso
+            }
+            replaced[0] = true;
+            return stored;
+        });
+        if (replaced[0]) {
+            entityCache.evict(Room.class, name);
+            // el retenido lo publico el nodo que hizo el cambio: aqui ya no se republica
+            statePublisher.forget(name);
+        }
+    }
+
+    // al arrancar se retiene el estado de todas las habitaciones (en cluster ya lo mantienen los otros nodos)
+    @EventListener(BrokerReady.class)
+    public void publishAll() {
+        if (clustered) {
+            return;
+        }
+        states.values().forEach(statePublisher::publish);
+        System.out.println("Estado retenido publicado para " + states.size() + " habitaciones");
+    }
+}
@@ -32,11 +32,8 @@ public class VacationModeService {
     
     public void activateVacationMode() {
         vacationModeActive.set(true);
-        roomNamesCache = roomRepository.findAll()
-                                       .stream()
-                                       .map(Room::getName)
-                                       .collect(Collectors.toList());
-        activateAllMotionSensors();
+        roomNamesCache = roomNames();
+        movementService.sendAlarmCommandToAll(roomNamesCache, true);
         // logging
         String details = String.format("{\"method\":\"SYSTEM\",\"timestamp\":\"%s\",\"sensors\":\"ALL_ACTIVATED\"}", 
                                        java.time.LocalDateTime.now());
@@ -48,10 +45,7 @@ public class VacationModeService {
         roomNamesCache.clear();  // limpiar cache
 
         // apagar sensores
-        List<Room> rooms = roomRepository.findAll();
-        for (Room room : rooms) {
-            movementService.sendAlarmCommand(room.getName(), false);
-        }
+        movementService.sendAlarmCommandToAll(roomNames(), false);
         // logging
         String details = String.format("{\"method\":\"SYSTEM\",\"timestamp\":\"%s\"}", 
                                        java.time.LocalDateTime.now());
@@ -62,11 +56,8 @@ public class VacationModeService {
         return vacationModeActive.get();
     }
     
-    private void activateAllMotionSensors() {
-        List<Room> rooms = roomRepository.findAll();
-        for (Room room : rooms) {
-            movementService.sendAlarmCommand(room.getName(), true);
-        }
+    private List<String> roomNames() {
+        return roomRepository.findAll().stream().map(Room::getName).collect(Collectors.toList());
     }
     
     @Scheduled(fixedRate = 60000)
@@ -0,0 +1,75 @@
+package com.casa.iot.backend;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import com.casa.iot.backend.config.AsyncConfig;
+import com.casa.iot.backend.config.BlockingCallLimiter;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class AsyncConfigTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private AsyncConfig config;
+
+    @BeforeEach
+    void setUp() {
+        config = new AsyncConfig(new MockEnvironment(), new BlockingCallLimiter(10), registry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+    }
+
+    @Test
+    void movementWritesAreDroppedRightAwayWhenFull() {
+        Executor movements = config.movementEventExecutor();
+        long started = System.nanoTime();
+        for (int i = 0; i < 210; i++) {
+            movements.execute(this::blockUntilReleased);
+        }
+
+        // 4 hilos + 200 en cola; el resto se descarta sin esperar
+        assertEquals(6.0, registry.get("async.rejected").counter().count());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 1000);
+        ((ThreadPoolTaskExecutor) movements).shutdown();
+    }
+
+    @Test
+    void otherEventWritesAreNeverDropped() throws InterruptedException {
+        Executor events = config.getAsyncExecutor();
+        AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 500; i++) {
+            events.execute(() -> {
+                blockUntilReleased();
+                done.incrementAndGet();
+            });
+        }
+        release.countDown();
+
+        ((ThreadPoolTaskExecutor) events).shutdown(); // espera a la cola
+        assertEquals(500, done.get());
+        assertEquals(0.0, registry.get("async.rejected").counter().count());
+    }
+
+    private void blockUntilReleased() {
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.casa.iot.backend;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import com.casa.iot.backend.config.BlockingCallLimiter;
+
+class BlockingCallLimiterTest {
+
+    @Test
+    void neverRunsMoreTasksThanPermits() throws InterruptedException {
+        BlockingCallLimiter limiter = new BlockingCallLimiter(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(50);
+
+        for (int i = 0; i < 50; i++) {
+            Thread.ofVirtual().start(() -> {
+                limiter.run(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                });
+                // despues de run(): el permiso ya se ha devuelto
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 2);
+        assertEquals(2, limiter.available());
+    }
+
+    @Test
+    void permitIsReleasedWhenTaskFails() {
+        BlockingCallLimiter limiter = new BlockingCallLimiter(1);
+        try {
+            limiter.run(() -> { throw new IllegalStateException("fallo"); });
+        } catch (IllegalStateException expected) {
+            // se propaga al llamador
+        }
+        assertEquals(1, limiter.available());
+    }
+}
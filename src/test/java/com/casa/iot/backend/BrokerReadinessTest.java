@@ -0,0 +1,99 @@
+package com.casa.iot.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.Lifecycle;
+import org.springframework.integration.core.MessageProducer;
+
+import com.casa.iot.backend.mqtt.BrokerReadiness;
+import com.casa.iot.backend.mqtt.BrokerReady;
+import com.casa.iot.backend.mqtt.MqttProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class BrokerReadinessTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MqttProperties properties = new MqttProperties();
+    private final ApplicationEventPublisher events = mock(ApplicationEventPublisher.class);
+    private MessageProducer inbound;
+
+    @BeforeEach
+    void setUp() {
+        properties.setHost("127.0.0.1");
+        properties.setReadinessInitialBackoff(Duration.ofMillis(10));
+        properties.setReadinessMaxBackoff(Duration.ofMillis(100));
+        inbound = mock(MessageProducer.class, withSettings().extraInterfaces(Lifecycle.class));
+    }
+
+    @Test
+    void startsInboundAdapterWhenBrokerIsListening() throws IOException {
+        try (ServerSocket broker = new ServerSocket(0)) {
+            properties.setPort(broker.getLocalPort());
+            BrokerReadiness readiness = new BrokerReadiness(properties, inbound, events, meterRegistry);
+
+            readiness.start();
+
+            verify((Lifecycle) inbound, timeout(2000)).start();
+            verify(events, timeout(2000)).publishEvent(any(BrokerReady.class));
+            assertTrue(readiness.isReady());
+            assertEquals(1, meterRegistry.get("mqtt.broker.readiness").timer().count());
+            assertEquals(1.0, meterRegistry.get("mqtt.broker.ready").gauge().value());
+            readiness.stop();
+        }
+    }
+
+    @Test
+    void keepsProbingUntilBrokerStarts() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        properties.setPort(port);
+        BrokerReadiness readiness = new BrokerReadiness(properties, inbound, events, meterRegistry);
+
+        readiness.start();
+        Thread.sleep(200);
+        verify((Lifecycle) inbound, never()).start();
+        assertFalse(readiness.isReady());
+
+        try (ServerSocket broker = new ServerSocket(port)) {
+            verify((Lifecycle) inbound, timeout(2000)).start();
+            assertTrue(readiness.isReady());
+        }
+        readiness.stop();
+    }
+
+    @Test
+    void stopBeforeBrokerIsReachableDoesNotStartAdapter() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        properties.setPort(port);
+        BrokerReadiness readiness = new BrokerReadiness(properties, inbound, events, meterRegistry);
+
+        readiness.start();
+        readiness.stop();
+        Thread.sleep(100);
+
+        assertFalse(readiness.isRunning());
+        verify((Lifecycle) inbound, never()).start();
+        verify(events, never()).publishEvent(any(BrokerReady.class));
+    }
+}
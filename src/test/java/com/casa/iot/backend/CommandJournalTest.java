@@ -0,0 +1,225 @@
+package com.casa.iot.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.casa.iot.backend.mqtt.CommandJournal;
+import com.casa.iot.backend.mqtt.DeviceMetrics;
+import com.casa.iot.backend.mqtt.MqttCommandPublisher;
+import com.casa.iot.backend.mqtt.MqttOutboundPool;
+import com.casa.iot.backend.mqtt.MqttProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class CommandJournalTest {
+
+    @TempDir
+    Path dir;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MqttProperties properties = new MqttProperties();
+    private final List<String> published = new ArrayList<>();
+    private Instant now = Instant.parse("2024-01-20T15:30:00Z");
+    private boolean brokerUp = true;
+    private MqttOutboundPool outboundPool;
+    private Clock clock;
+
+    @BeforeEach
+    void setUp() {
+        properties.setJournalPath(dir.resolve("outbound.journal").toString());
+        properties.setJournalSize(4096);
+        properties.setJournalRetryInterval(Duration.ofSeconds(5));
+        properties.setJournalExpiry(Duration.ofMinutes(2));
+        outboundPool = mock(MqttOutboundPool.class);
+        when(outboundPool.publish(anyString(), any(byte[].class), anyInt())).thenAnswer(invocation -> {
+            if (!brokerUp) {
+                return CompletableFuture.failedFuture(new IllegalStateException("broker caido"));
+            }
+            published.add(invocation.getArgument(0) + " " + new String((byte[]) invocation.getArgument(1), StandardCharsets.UTF_8));
+            return CompletableFuture.completedFuture(null);
+        });
+        clock = new Clock() {
+            @Override
+            public ZoneId getZone() {
+                return ZoneId.of("UTC");
+            }
+
+            @Override
+            public Clock withZone(ZoneId zone) {
+                return this;
+            }
+
+            @Override
+            public Instant instant() {
+                return now;
+            }
+        };
+    }
+
+    private CommandJournal open() {
+        CommandJournal journal = new CommandJournal(outboundPool, properties, meterRegistry, clock);
+        journal.open();
+        return journal;
+    }
+
+    @Test
+    void deliveredMessagesAreNotReplayed() {
+        CommandJournal journal = open();
+
+        journal.publish("salon/lig/command", bytes("ON"));
+        now = now.plusSeconds(10);
+        journal.replay();
+
+        assertEquals(List.of("salon/lig/command ON"), published);
+        assertEquals(0, journal.getPending());
+        journal.close();
+    }
+
+    @Test
+    void failedMessagesAreReplayedInOrderWhenBrokerReturns() {
+        CommandJournal journal = open();
+        brokerUp = false;
+        journal.publish("salon/lig/command", bytes("ON"));
+        journal.publish("cocina/mov/command", bytes("OFF"));
+        assertEquals(2, journal.getPending());
+
+        brokerUp = true;
+        now = now.plusSeconds(5);
+        journal.replay();
+
+        assertEquals(List.of("salon/lig/command ON", "cocina/mov/command OFF"), published);
+        assertEquals(0, journal.getPending());
+        assertEquals(2.0, meterRegistry.get("mqtt.journal.replayed").counter().count());
+        journal.close();
+    }
+
+    @Test
+    void batchCommandsAreJournaledOnePerTopic() {
+        CommandJournal journal = open();
+        MqttCommandPublisher publisher = new MqttCommandPublisher(journal, new DeviceMetrics(meterRegistry, 20));
+        brokerUp = false;
+
+        CompletableFuture<Void> batch = publisher.publishAll(List.of(
+            new MqttCommandPublisher.Outgoing("salon/mov/command", bytes("OFF")),
+            new MqttCommandPublisher.Outgoing("cocina/mov/command", bytes("OFF"))));
+
+        // anotados: el lote no falla y se entrega al volver el broker
+        assertFalse(batch.isCompletedExceptionally());
+        assertEquals(2, journal.getPending());
+        brokerUp = true;
+        now = now.plusSeconds(5);
+        journal.replay();
+
+        assertEquals(List.of("salon/mov/command OFF", "cocina/mov/command OFF"), published);
+        journal.close();
+    }
+
+    @Test
+    void newerMessageReplacesPendingOnesForTheSameTopic() {
+        CommandJournal journal = open();
+        brokerUp = false;
+        journal.publish("salon/lig/command", bytes("ON"));
+        journal.publish("cocina/mov/command", bytes("OFF"));
+        journal.publish("salon/lig/command", bytes("OFF"));
+        // reenvio de CommandSlots: mismo comando otra vez
+        journal.publish("salon/lig/command", bytes("OFF"));
+        assertEquals(2, journal.getPending());
+
+        brokerUp = true;
+        now = now.plusSeconds(5);
+        journal.replay();
+
+        assertEquals(List.of("cocina/mov/command OFF", "salon/lig/command OFF"), published);
+        assertEquals(2.0, meterRegistry.get("mqtt.journal.superseded").counter().count());
+        journal.close();
+    }
+
+    @Test
+    void pendingMessagesSurviveRestart() {
+        brokerUp = false;
+        CommandJournal first = open();
+        first.publish("rfid/command", bytes("OPEN"));
+        first.close();
+
+        brokerUp = true;
+        CommandJournal second = open();
+        assertEquals(1, second.getPending());
+        second.replay();
+
+        assertEquals(List.of("rfid/command OPEN"), published);
+        assertEquals(0, second.getPending());
+        second.close();
+    }
+
+    @Test
+    void staleMessagesExpireInsteadOfReplaying() {
+        CommandJournal journal = open();
+        brokerUp = false;
+        journal.publish("salon/lig/command", bytes("ON"));
+
+        brokerUp = true;
+        now = now.plus(Duration.ofMinutes(3));
+        journal.replay();
+
+        assertTrue(published.isEmpty());
+        assertEquals(0, journal.getPending());
+        assertEquals(1.0, meterRegistry.get("mqtt.journal.expired").counter().count());
+        journal.close();
+    }
+
+    @Test
+    void compactsWhenFullKeepingPendingMessages() {
+        CommandJournal journal = open();
+        brokerUp = false;
+        journal.publish("salon/lig/command", bytes("PENDIENTE"));
+        brokerUp = true;
+        // unos 50 bytes por registro: 4 KB se llenan varias veces
+        for (int i = 0; i < 200; i++) {
+            journal.publish("cocina/lig/command", bytes("N" + i));
+        }
+        assertEquals(1, journal.getPending());
+        journal.close();
+
+        CommandJournal reopened = open();
+        assertEquals(1, reopened.getPending());
+        published.clear();
+        reopened.replay();
+        assertEquals(List.of("salon/lig/command PENDIENTE"), published);
+        reopened.close();
+    }
+
+    @Test
+    void withoutPathPublishesDirectly() {
+        properties.setJournalPath(null);
+        CommandJournal journal = open();
+
+        journal.publish("salon/lig/command", bytes("ON"));
+
+        assertEquals(List.of("salon/lig/command ON"), published);
+        assertEquals(0, journal.getPending());
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
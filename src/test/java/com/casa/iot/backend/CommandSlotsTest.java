@@ -0,0 +1,240 @@
+package com.casa.iot.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.casa.iot.backend.mqtt.CommandSlots;
+import com.casa.iot.backend.mqtt.DeviceMetrics;
+import com.casa.iot.backend.mqtt.MqttProperties;
+import com.casa.iot.backend.mqtt.PendingCommand;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class CommandSlotsTest {
+
+    private static final String TOPIC = "salon/lig/command";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<String> sent = new ArrayList<>();
+    private Instant now = Instant.parse("2024-01-20T15:30:00Z");
+    private CommandSlots slots;
+
+    @BeforeEach
+    void setUp() {
+        Clock clock = new Clock() {
+            @Override
+            public ZoneId getZone() {
+                return ZoneId.of("UTC");
+            }
+
+            @Override
+            public Clock withZone(ZoneId zone) {
+                return this;
+            }
+
+            @Override
+            public Instant instant() {
+                return now;
+            }
+        };
+        MqttProperties properties = new MqttProperties();
+        properties.setCommandInflightTimeout(Duration.ofSeconds(3));
+        properties.setCommandMaxRetries(2);
+        slots = new CommandSlots(properties, new DeviceMetrics(meterRegistry, 20), clock);
+    }
+
+    @Test
+    void firstCommandIsSentImmediately() {
+        slots.offer(TOPIC, "c1", () -> sent.add("ON"));
+        assertEquals(List.of("ON"), sent);
+        assertEquals("c1", slots.inFlight(TOPIC));
+    }
+
+    @Test
+    void onlyLatestPendingCommandIsSentAfterConfirmation() {
+        slots.offer(TOPIC, "c1", () -> sent.add("ON"));
+        slots.offer(TOPIC, "c2", () -> sent.add("OFF"));
+        slots.offer(TOPIC, "c3", () -> sent.add("ON2"));
+        slots.offer(TOPIC, "c4", () -> sent.add("OFF2"));
+        assertEquals(List.of("ON"), sent);
+
+        assertTrue(slots.release(TOPIC, "c1", true));
+
+        assertEquals(List.of("ON", "OFF2"), sent);
+        assertEquals("c4", slots.inFlight(TOPIC));
+        assertEquals(2.0, meterRegistry.get("mqtt.command.superseded").tag("subsystem", "lig").counter().count());
+    }
+
+    @Test
+    void batchCommandReplacesInFlightAndPendingOnes() {
+        CompletableFuture<PendingCommand.Outcome> on = slots.offer(TOPIC, "c1", () -> sent.add("ON"));
+        CompletableFuture<PendingCommand.Outcome> pending = slots.offer(TOPIC, "c2", () -> sent.add("ON2"));
+
+        // desarmado por RFID: sale en el lote de quien llama
+        assertTrue(slots.supersede(TOPIC, "b1", () -> sent.add("OFF")));
+
+        assertEquals(PendingCommand.Outcome.SUPERSEDED, on.join());
+        assertEquals(PendingCommand.Outcome.SUPERSEDED, pending.join());
+        assertEquals("b1", slots.inFlight(TOPIC));
+        assertFalse(slots.hasPending(TOPIC));
+        assertEquals(List.of("ON"), sent);
+
+        // una confirmacion sin cid es la del lote, y no sale nada detras
+        assertTrue(slots.release(TOPIC, null, true));
+        assertEquals(List.of("ON"), sent);
+    }
+
+    @Test
+    void batchCommandIsRetriedInsteadOfTheOneItReplaced() {
+        slots.offer(TOPIC, "c1", () -> sent.add("ON"));
+        slots.supersede(TOPIC, "b1", () -> sent.add("OFF"));
+
+        now = now.plusSeconds(3);
+        slots.retryExpired();
+
+        assertEquals(List.of("ON", "OFF"), sent);
+    }
+
+    @Test
+    void broadcastClearsSlotsOfItsSubsystem() {
+        CompletableFuture<PendingCommand.Outcome> alarm = slots.offer("salon/mov/command", "c1", () -> sent.add("ON"));
+        slots.offer(TOPIC, "c2", () -> sent.add("luz"));
+
+        slots.clear("mov");
+        now = now.plusSeconds(3);
+        slots.retryExpired();
+
+        assertEquals(PendingCommand.Outcome.SUPERSEDED, alarm.join());
+        assertNull(slots.inFlight("salon/mov/command"));
+        assertEquals("c2", slots.inFlight(TOPIC));
+        assertEquals(List.of("ON", "luz", "luz"), sent);
+    }
+
+    @Test
+    void topicsDoNotShareSlots() {
+        slots.offer(TOPIC, "c1", () -> sent.add("salon"));
+        slots.offer("cocina/lig/command", "c2", () -> sent.add("cocina"));
+        slots.offer("salon/mov/command", "c3", () -> sent.add("alarma"));
+        assertEquals(List.of("salon", "cocina", "alarma"), sent);
+    }
+
+    @Test
+    void confirmationRecordsRoundTripPerRoomAndSubsystem() {
+        slots.offer(TOPIC, "c1", () -> sent.add("ON"));
+        now = now.plusMillis(250);
+
+        slots.release(TOPIC, "c1", true);
+
+        Timer rtt = meterRegistry.get("mqtt.command.rtt").tag("subsystem", "lig").tag("room", "salon").timer();
+        assertEquals(1, rtt.count());
+        assertEquals(250.0, rtt.totalTime(TimeUnit.MILLISECONDS));
+        assertNull(slots.inFlight(TOPIC));
+    }
+
+    @Test
+    void lateConfirmationOfOtherCommandIsIgnored() {
+        slots.offer(TOPIC, "c1", () -> sent.add("ON"));
+
+        assertFalse(slots.release(TOPIC, "c0", true));
+        assertEquals("c1", slots.inFlight(TOPIC));
+
+        // las placas sin cid confirman el comando en vuelo
+        assertTrue(slots.release(TOPIC, null, true));
+        assertNull(slots.inFlight(TOPIC));
+    }
+
+    @Test
+    void unconfirmedCommandIsRetriedWithBackoffThenExpires() {
+        slots.offer(TOPIC, "c1", () -> sent.add("ON"));
+
+        now = now.plusSeconds(3);
+        slots.retryExpired();
+        assertEquals(List.of("ON", "ON"), sent);
+
+        now = now.plusSeconds(3);
+        slots.retryExpired();
+        assertEquals(2, sent.size()); // la segunda espera es el doble
+
+        now = now.plusSeconds(3);
+        slots.retryExpired();
+        assertEquals(3, sent.size());
+
+        now = now.plusSeconds(12);
+        slots.retryExpired();
+        assertEquals(3, sent.size());
+        assertNull(slots.inFlight(TOPIC));
+        assertEquals(2.0, meterRegistry.get("mqtt.command.retries").counter().count());
+        assertEquals(1.0, meterRegistry.get("mqtt.command.expired").counter().count());
+    }
+
+    @Test
+    void newerPendingCommandReplacesRetry() {
+        slots.offer(TOPIC, "c1", () -> sent.add("ON"));
+        slots.offer(TOPIC, "c2", () -> sent.add("OFF"));
+
+        now = now.plusSeconds(3);
+        slots.retryExpired();
+
+        assertEquals(List.of("ON", "OFF"), sent);
+        assertEquals("c2", slots.inFlight(TOPIC));
+        assertFalse(slots.hasPending(TOPIC));
+    }
+
+    @Test
+    void outcomeCompletesWithConfirmationOrReplacement() {
+        CompletableFuture<PendingCommand.Outcome> first = slots.offer(TOPIC, "c1", () -> sent.add("ON"));
+        CompletableFuture<PendingCommand.Outcome> second = slots.offer(TOPIC, "c2", () -> sent.add("OFF"));
+        CompletableFuture<PendingCommand.Outcome> third = slots.offer(TOPIC, "c3", () -> sent.add("ON"));
+        assertFalse(first.isDone());
+        assertEquals(PendingCommand.Outcome.SUPERSEDED, second.getNow(null));
+
+        slots.release(TOPIC, "c1", true);
+        assertEquals(PendingCommand.Outcome.CONFIRMED, first.getNow(null));
+
+        slots.release(TOPIC, "c3", false);
+        assertEquals(PendingCommand.Outcome.FAILED, third.getNow(null));
+    }
+
+    @Test
+    void outcomeIsExpiredWhenRetriesRunOut() {
+        CompletableFuture<PendingCommand.Outcome> outcome = slots.offer(TOPIC, "c1", () -> sent.add("ON"));
+        for (int i = 0; i < 4; i++) {
+            now = now.plusSeconds(12);
+            slots.retryExpired();
+        }
+        assertEquals(PendingCommand.Outcome.EXPIRED, outcome.getNow(null));
+    }
+
+    @Test
+    void failedSendDoesNotBlockTheSlot() {
+        assertThrows(IllegalStateException.class, () -> slots.offer(TOPIC, "c1", () -> {
+            throw new IllegalStateException("broker caido");
+        }));
+        slots.offer(TOPIC, "c2", () -> sent.add("ON"));
+        assertEquals(List.of("ON"), sent);
+    }
+
+    @Test
+    void publishesOutsideTheSlotLock() {
+        // otro hilo (confirmacion MQTT) puede consultar el hueco mientras se publica
+        slots.offer(TOPIC, "c1", () -> sent.add(CompletableFuture.supplyAsync(() -> slots.inFlight(TOPIC))
+            .orTimeout(1, TimeUnit.SECONDS).join()));
+        assertEquals(List.of("c1"), sent);
+    }
+}
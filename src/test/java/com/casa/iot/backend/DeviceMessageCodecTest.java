@@ -0,0 +1,130 @@
+package com.casa.iot.backend;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import com.casa.iot.backend.mqtt.message.AlarmChanged;
+import com.casa.iot.backend.mqtt.message.AlarmConfirmation;
+import com.casa.iot.backend.mqtt.message.DeviceMessageCodec;
+import com.casa.iot.backend.mqtt.message.LightConfirmation;
+import com.casa.iot.backend.mqtt.message.MovementEvent;
+import com.casa.iot.backend.mqtt.message.RfidDetected;
+import com.casa.iot.backend.mqtt.message.RfidRegister;
+import com.casa.iot.backend.mqtt.message.StateSnapshot;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class DeviceMessageCodecTest {
+
+    private final DeviceMessageCodec codec = new DeviceMessageCodec();
+
+    private static byte[] json(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] msgpack(String... fields) throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < fields.length; i += 2) {
+            map.put(fields[i], fields[i + 1]);
+        }
+        return new ObjectMapper(new MessagePackFactory()).writeValueAsBytes(map);
+    }
+
+    @Test
+    void decodesSuccessfulLightConfirmation() throws IOException {
+        assertEquals(new LightConfirmation(true, true, null),
+            codec.lightConfirmation(json("{\"status\":\"SUCCESS\",\"state\":\"ON\"}")));
+    }
+
+    @Test
+    void confirmationCarriesCommandId() throws IOException {
+        assertEquals(new LightConfirmation(true, false, null, "k3x-7"),
+            codec.lightConfirmation(json("{\"cid\":\"k3x-7\",\"status\":\"SUCCESS\",\"state\":\"OFF\"}")));
+    }
+
+    @Test
+    void decodesDeviceError() throws IOException {
+        assertEquals(new AlarmConfirmation(false, false, "SENSOR_MALFUNCTION"),
+            codec.alarmConfirmation(json("{\"status\":\"ERROR\",\"error\":\"SENSOR_MALFUNCTION\"}")));
+    }
+
+    @Test
+    void successWithoutStateIsIgnored() throws IOException {
+        assertNull(codec.lightConfirmation(json("{\"status\":\"SUCCESS\"}")));
+    }
+
+    @Test
+    void decodesMovementAndAlarmEvents() throws IOException {
+        assertEquals(new MovementEvent("2024-01-20T15:30:00"),
+            codec.sensorEvent(json("{\"event\":\"MOVEMENT_DETECTED\",\"timestamp\":\"2024-01-20T15:30:00\"}")));
+        assertEquals(new AlarmChanged(false, null),
+            codec.sensorEvent(json("{\"event\":\"ALARM_CHANGED\",\"state\":\"OFF\",\"source\":\"MANUAL\"}")));
+        assertNull(codec.sensorEvent(json("{\"event\":\"LIGHT_CHANGED\",\"state\":\"ON\"}")));
+    }
+
+    @Test
+    void skipsUnknownAndNestedFields() throws IOException {
+        assertEquals(new MovementEvent(null),
+            codec.sensorEvent(json("{\"meta\":{\"state\":\"ON\",\"list\":[1,2]},\"event\":\"MOVEMENT_DETECTED\",\"rssi\":-60}")));
+    }
+
+    @Test
+    void decodesRfidMessages() throws IOException {
+        assertEquals(new RfidDetected("A1B2C3D4"),
+            codec.rfidDetected(json("{\"event\":\"RFID_DETECTED\",\"cardId\":\"A1B2C3D4\"}")));
+        assertEquals(new RfidRegister("A1B2C3D4", false),
+            codec.rfidRegister(json("{\"event\":\"RFID_REGISTER\",\"cardId\":\"A1B2C3D4\"}")));
+        assertEquals(new RfidRegister(null, true),
+            codec.rfidRegister(json("{\"event\":\"RFID_REGISTER_CANCEL\"}")));
+        assertNull(codec.rfidDetected(json("{\"event\":\"RFID_DETECTED\"}")));
+    }
+
+    @Test
+    void readsOptionalMessageId() {
+        assertEquals("42", codec.messageId(json("{\"status\":\"SUCCESS\",\"meta\":{\"msgId\":\"x\"},\"msgId\":42}")));
+        assertNull(codec.messageId(json("{\"status\":\"SUCCESS\",\"state\":\"ON\"}")));
+        assertNull(codec.messageId(json("not a json")));
+    }
+
+    @Test
+    void malformedPayloadThrows() {
+        assertThrows(IOException.class, () -> codec.lightConfirmation(json("not a json")));
+        assertThrows(IOException.class, () -> codec.lightConfirmation(json("[\"ON\"]")));
+        assertThrows(IOException.class, () -> codec.sensorEvent(json("{\"event\":\"MOVEMENT_DETECTED\"")));
+    }
+
+    @Test
+    void decodesMessagePackIntoSameMessages() throws IOException {
+        DeviceMessageCodec binary = DeviceMessageCodec.msgpack();
+        assertEquals(new LightConfirmation(true, false, null),
+            binary.lightConfirmation(msgpack("status", "SUCCESS", "state", "OFF")));
+        assertEquals(new MovementEvent("2024-01-20T15:30:00"),
+            binary.sensorEvent(msgpack("event", "MOVEMENT_DETECTED", "timestamp", "2024-01-20T15:30:00")));
+        assertEquals(new RfidDetected("A1B2C3D4"),
+            binary.rfidDetected(msgpack("event", "RFID_DETECTED", "cardId", "A1B2C3D4")));
+        assertEquals("9", binary.messageId(msgpack("msgId", "9", "status", "ERROR")));
+    }
+
+    @Test
+    void topicSuffixSelectsFormat() {
+        assertEquals(true, DeviceMessageCodec.isMsgPack("salon/lig/confirmation/msgpack"));
+        assertEquals("salon/lig/confirmation", DeviceMessageCodec.baseTopic("salon/lig/confirmation/msgpack"));
+        assertEquals("salon/lig/confirmation", DeviceMessageCodec.baseTopic("salon/lig/confirmation"));
+    }
+
+    @Test
+    void decodesStateSnapshot() throws IOException {
+        assertEquals(new StateSnapshot(true, false),
+            codec.stateSnapshot(json("{\"light\":\"ON\",\"alarm\":\"OFF\"}")));
+        assertEquals(new StateSnapshot(null, true),
+            codec.stateSnapshot(json("{\"alarm\":\"ON\",\"sound\":\"IDLE\"}")));
+        assertNull(codec.stateSnapshot(json("{\"sound\":\"IDLE\"}")));
+    }
+}
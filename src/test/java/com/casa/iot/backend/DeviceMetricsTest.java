@@ -0,0 +1,30 @@
+package com.casa.iot.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+import com.casa.iot.backend.mqtt.DeviceMetrics;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class DeviceMetricsTest {
+
+    @Test
+    void roomTagsAreLimited() {
+        DeviceMetrics metrics = new DeviceMetrics(new SimpleMeterRegistry(), 2);
+        assertEquals("salon", metrics.room("salon"));
+        assertEquals("kitchen", metrics.room("kitchen"));
+        assertEquals(DeviceMetrics.OTHER, metrics.room("garage"));
+        assertEquals("salon", metrics.room("salon"));
+    }
+
+    @Test
+    void topicsMapToBoundedTags() {
+        assertEquals("confirmation", DeviceMetrics.messageType("salon/lig/confirmation"));
+        assertEquals("event", DeviceMetrics.messageType("rfid/event"));
+        assertEquals(DeviceMetrics.OTHER, DeviceMetrics.messageType("salon/mov"));
+        assertEquals("mov", DeviceMetrics.subsystem("salon/mov/event"));
+        assertEquals("salon", DeviceMetrics.roomOf("salon/mov/event"));
+        assertEquals(null, DeviceMetrics.roomOf("rfid/event"));
+    }
+}
@@ -0,0 +1,145 @@
+package com.casa.iot.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.casa.iot.backend.mqtt.DeviceMetrics;
+import com.casa.iot.backend.mqtt.DevicePresence;
+import com.casa.iot.backend.mqtt.MqttProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class DevicePresenceTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private Instant now = Instant.parse("2024-01-20T15:30:00Z");
+    private DevicePresence presence;
+
+    @BeforeEach
+    void setUp() {
+        Clock clock = new Clock() {
+            @Override
+            public ZoneId getZone() {
+                return ZoneId.of("UTC");
+            }
+
+            @Override
+            public Clock withZone(ZoneId zone) {
+                return this;
+            }
+
+            @Override
+            public Instant instant() {
+                return now;
+            }
+        };
+        MqttProperties properties = new MqttProperties();
+        properties.setPresenceTimeout(Duration.ofSeconds(10));
+        properties.setPresenceEvictAfter(Duration.ofSeconds(30));
+        presence = new DevicePresence(properties, new DeviceMetrics(meterRegistry, 20), meterRegistry, clock);
+    }
+
+    private void elapse(int seconds) {
+        for (int i = 0; i < seconds; i++) {
+            now = now.plusSeconds(1);
+            presence.advance();
+        }
+    }
+
+    @Test
+    void deviceGoesOfflineAfterTimeoutWithoutMessages() {
+        presence.seen("salon");
+        assertTrue(presence.isOnline("salon"));
+
+        elapse(9);
+        assertTrue(presence.isOnline("salon"));
+
+        elapse(2);
+        assertFalse(presence.isOnline("salon"));
+        assertEquals(0.0, meterRegistry.get("device.online").tag("room", "salon").gauge().value());
+        assertEquals(1.0, meterRegistry.get("device.presence").tag("state", "offline").gauge().value());
+    }
+
+    @Test
+    void messagesKeepDeviceOnline() {
+        presence.seen("salon");
+        for (int i = 0; i < 5; i++) {
+            elapse(8);
+            presence.seen("salon");
+        }
+
+        assertTrue(presence.isOnline("salon"));
+        assertEquals(1.0, meterRegistry.get("device.presence").tag("state", "online").gauge().value());
+    }
+
+    @Test
+    void offlineDeviceComesBackOnNextMessage() {
+        presence.seen("salon");
+        elapse(12);
+        assertFalse(presence.isOnline("salon"));
+
+        presence.seen("salon");
+
+        assertTrue(presence.isOnline("salon"));
+        assertEquals(2.0, meterRegistry.get("device.presence.changes").tag("state", "online").counter().count());
+    }
+
+    @Test
+    void longPauseExpiresInOneTurn() {
+        presence.seen("salon");
+        presence.seen("cocina");
+
+        now = now.plus(Duration.ofHours(1));
+        presence.advance();
+
+        assertFalse(presence.isOnline("salon"));
+        assertFalse(presence.isOnline("cocina"));
+        assertEquals(0, presence.getOnlineCount());
+    }
+
+    @Test
+    void longOfflineDevicesAreForgotten() {
+        presence.seen("salon");
+        presence.seen("cocina");
+        elapse(11);
+        for (int i = 0; i < 6; i++) {
+            presence.seen("cocina"); // vuelve: no se olvida
+            elapse(5);
+        }
+
+        assertEquals(0.0, meterRegistry.get("device.presence").tag("state", "offline").gauge().value());
+        assertTrue(meterRegistry.find("device.online").tag("room", "salon").gauges().isEmpty());
+        assertTrue(presence.isOnline("cocina"));
+    }
+
+    @Test
+    void forgottenDeviceIsTrackedAgainOnNextMessage() {
+        presence.seen("salon");
+        elapse(45);
+
+        presence.seen("salon");
+
+        assertTrue(presence.isOnline("salon"));
+        assertEquals(1.0, meterRegistry.get("device.online").tag("room", "salon").gauge().value());
+    }
+
+    @Test
+    void ownCommandsAndRetainedStateDoNotCountAsDeviceMessages() {
+        assertEquals("salon", DevicePresence.deviceOf("salon/heartbeat"));
+        assertEquals("salon", DevicePresence.deviceOf("salon/mov/event/msgpack"));
+        assertEquals("rfid", DevicePresence.deviceOf("rfid/event"));
+        assertNull(DevicePresence.deviceOf("salon/lig/command"));
+        assertNull(DevicePresence.deviceOf("salon/state/current"));
+        assertNull(DevicePresence.deviceOf("all/mov/command"));
+    }
+}
@@ -0,0 +1,84 @@
+package com.casa.iot.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.casa.iot.backend.mqtt.EmbeddedMqttBroker;
+import com.casa.iot.backend.mqtt.MqttProperties;
+
+class EmbeddedMqttBrokerTest {
+
+    private MqttProperties properties;
+    private EmbeddedMqttBroker broker;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        properties = new MqttProperties();
+        properties.setMode("embedded");
+        properties.setPort(freePort());
+        properties.getEmbedded().setBindHost("127.0.0.1");
+        properties.getEmbedded().setMaxConnections(1);
+        broker = new EmbeddedMqttBroker(properties);
+        broker.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        broker.stop();
+    }
+
+    @Test
+    void deliversMessagesBetweenClients() throws Exception {
+        properties.getEmbedded().setMaxConnections(2);
+        MqttClient device = connect("esp32-salon");
+        MqttClient backend = connect("backend");
+        CountDownLatch received = new CountDownLatch(1);
+        backend.subscribe("+/lig/confirmation", 1, (topic, message) -> received.countDown());
+
+        device.publish("salon/lig/confirmation", "{\"status\":\"SUCCESS\",\"state\":\"ON\"}".getBytes(), 1, false);
+
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(2, broker.getConnectedClients());
+        device.disconnect();
+        backend.disconnect();
+    }
+
+    @Test
+    void clientsOverTheLimitCannotPublish() throws Exception {
+        MqttClient backend = connect("backend");
+        MqttClient extra = connect("extra");
+        CountDownLatch received = new CountDownLatch(1);
+        backend.subscribe("#", 1, (topic, message) -> received.countDown());
+
+        extra.publish("salon/mov/event", "{\"event\":\"MOVEMENT_DETECTED\"}".getBytes(), 0, false);
+
+        assertFalse(received.await(500, TimeUnit.MILLISECONDS));
+        assertEquals(1, broker.getConnectedClients());
+        backend.disconnect();
+    }
+
+    private MqttClient connect(String clientId) throws MqttException {
+        MqttClient client = new MqttClient(properties.getBrokerUrl(), clientId, new MemoryPersistence());
+        client.connect();
+        return client;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -15,9 +15,12 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.casa.iot.backend.model.Event;
+import com.casa.iot.backend.mqtt.DeviceMetrics;
 import com.casa.iot.backend.repository.EventRepository;
 import com.casa.iot.backend.service.EventLogService;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
 class EventLogServiceTest {
 
     private EventRepository eventRepository;
@@ -26,7 +29,7 @@ class EventLogServiceTest {
     @BeforeEach
     void setUp() {
         eventRepository = mock(EventRepository.class);
-        eventLogService = new EventLogService(eventRepository);
+        eventLogService = new EventLogService(eventRepository, new DeviceMetrics(new SimpleMeterRegistry(), 20));
     }
 
     @Test
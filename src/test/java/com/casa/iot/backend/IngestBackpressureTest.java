@@ -0,0 +1,115 @@
+package com.casa.iot.backend;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.integration.mqtt.support.MqttHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import com.casa.iot.backend.mqtt.IngestBackpressure;
+import com.casa.iot.backend.mqtt.MqttConfig;
+import com.casa.iot.backend.mqtt.MqttProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class IngestBackpressureTest {
+
+    private static final String MOVEMENT = "{\"event\":\"MOVEMENT_DETECTED\"}";
+    private static final String CONFIRMATION = "{\"status\":\"SUCCESS\",\"state\":\"ON\"}";
+
+    private SimpleMeterRegistry registry;
+    private IngestBackpressure backpressure;
+
+    @BeforeEach
+    void setUp() {
+        MqttProperties properties = new MqttProperties();
+        properties.setIngestCapacity(2);
+        registry = new SimpleMeterRegistry();
+        backpressure = new IngestBackpressure(properties, registry);
+    }
+
+    private static Message<byte[]> message(String topic, String payload) {
+        return MessageBuilder.withPayload(payload.getBytes(StandardCharsets.UTF_8))
+            .setHeader(MqttHeaders.RECEIVED_TOPIC, topic)
+            .build();
+    }
+
+    private double count(String name) {
+        return registry.get(name).counter().count();
+    }
+
+    @Test
+    void movementIsShedWhenFullButConfirmationsAreNot() {
+        assertNotNull(backpressure.admit(message("salon/mov/event", MOVEMENT)));
+        assertNotNull(backpressure.admit(message("kitchen/lig/confirmation", CONFIRMATION)));
+
+        assertNull(backpressure.admit(message("garage/mov/event", MOVEMENT)));
+        assertNotNull(backpressure.admit(message("garage/mov/confirmation", CONFIRMATION)));
+        assertNotNull(backpressure.admit(message("rfid/event", "{\"event\":\"RFID_DETECTED\",\"cardId\":\"A1\"}")));
+
+        assertEquals(4, count("mqtt.ingest.accepted"));
+        assertEquals(1, count("mqtt.ingest.dropped"));
+        assertEquals(4, backpressure.getPending());
+    }
+
+    @Test
+    void usesFieldsReadAtIngestInsteadOfParsingAgain() {
+        Message<?> decoded = MqttConfig.withFields(message("salon/mov/event", MOVEMENT));
+        // mismo mensaje con otro payload: si se volviera a leer no seria un movimiento
+        Message<byte[]> reused = MessageBuilder.withPayload("{}".getBytes(StandardCharsets.UTF_8))
+            .copyHeaders(decoded.getHeaders())
+            .build();
+        backpressure.admit(message("kitchen/lig/confirmation", CONFIRMATION));
+        backpressure.admit(message("kitchen/lig/confirmation", CONFIRMATION));
+
+        assertNull(backpressure.admit(reused));
+        assertEquals(1, count("mqtt.ingest.dropped"));
+    }
+
+    @Test
+    void movementForRoomAlreadyQueuedIsCoalesced() {
+        backpressure.admit(message("salon/mov/event", MOVEMENT));
+        backpressure.admit(message("salon/mov/event", MOVEMENT));
+
+        assertNull(backpressure.admit(message("salon/mov/event", MOVEMENT)));
+        assertEquals(1, count("mqtt.ingest.coalesced"));
+        assertEquals(0, count("mqtt.ingest.dropped"));
+    }
+
+    @Test
+    void alarmChangedIsNeverShed() {
+        backpressure.admit(message("salon/mov/event", MOVEMENT));
+        backpressure.admit(message("salon/mov/event", MOVEMENT));
+
+        assertNotNull(backpressure.admit(message("salon/mov/event", "{\"event\":\"ALARM_CHANGED\",\"state\":\"ON\"}")));
+    }
+
+    @Test
+    void handledMessagesFreeTheirSlot() {
+        Message<?> first = backpressure.admit(message("salon/mov/event", MOVEMENT));
+        Message<?> second = backpressure.admit(message("salon/mov/event", MOVEMENT));
+        backpressure.afterMessageHandled(first, null, null, null);
+        backpressure.afterMessageHandled(second, null, null, null);
+
+        assertEquals(0, backpressure.getPending());
+        assertNotNull(backpressure.admit(message("salon/mov/event", MOVEMENT)));
+    }
+
+    @Test
+    void roomCountersAreDroppedOnceTheirMovementsAreHandled() {
+        Message<?> first = backpressure.admit(message("salon/mov/event", MOVEMENT));
+        Message<?> second = backpressure.admit(message("kitchen/mov/event", MOVEMENT));
+        assertNull(backpressure.admit(message("garage/mov/event", MOVEMENT)));
+        assertEquals(2, backpressure.getTrackedRooms());
+
+        backpressure.afterMessageHandled(first, null, null, null);
+        backpressure.afterMessageHandled(second, null, null, null);
+
+        assertEquals(0, backpressure.getTrackedRooms());
+    }
+}
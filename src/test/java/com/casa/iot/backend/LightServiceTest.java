@@ -1,48 +1,84 @@
 package com.casa.iot.backend;
 
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.casa.iot.backend.model.Room;
+import com.casa.iot.backend.mqtt.CommandSlots;
+import com.casa.iot.backend.mqtt.DeviceCommandSender;
+import com.casa.iot.backend.mqtt.DeviceMetrics;
+import com.casa.iot.backend.mqtt.MqttCommandPublisher;
 import com.casa.iot.backend.mqtt.MqttGateway;
+import com.casa.iot.backend.mqtt.MqttProperties;
+import com.casa.iot.backend.mqtt.PayloadFormats;
+import com.casa.iot.backend.mqtt.RoomStatePublisher;
+import com.casa.iot.backend.mqtt.message.LightConfirmation;
 import com.casa.iot.backend.repository.RoomRepository;
 import com.casa.iot.backend.service.LightService;
+import com.casa.iot.backend.service.RoomStateStore;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManagerFactory;
 
 class LightServiceTest {
 
     private RoomRepository repo;
+    private RoomStateStore stateStore;
     private LightService svc;
     private MqttGateway mqttGateway;
+    private PayloadFormats formats;
 
     @BeforeEach
     void setUp() {
         repo = mock(RoomRepository.class);
         mqttGateway = mock(MqttGateway.class);
-        svc = new LightService(repo, mqttGateway);
+        formats = new PayloadFormats(new MqttProperties());
+        stateStore = new RoomStateStore(repo, mock(JdbcTemplate.class), mock(EntityManagerFactory.class),
+            mock(RoomStatePublisher.class), new MqttProperties(), new SimpleMeterRegistry());
+        svc = new LightService(stateStore, new DeviceCommandSender(mqttGateway, formats,
+            mock(MqttCommandPublisher.class), new CommandSlots(new MqttProperties(), new DeviceMetrics(new SimpleMeterRegistry(), 20)),
+            new MqttProperties()));
     }
 
     @Test
     void handleConfirmationSuccess() {
         Room room = new Room("kitchen");
         when(repo.findById("kitchen")).thenReturn(java.util.Optional.of(room));
-        svc.handleConfirmation("kitchen", "{\"status\":\"SUCCESS\",\"state\":\"ON\"}");
-        verify(repo).save(room);
-        assertTrue(room.isLightOn());
+        svc.handleConfirmation("kitchen", new LightConfirmation(true, true, null));
+        assertTrue(stateStore.get("kitchen").lightOn());
+        assertTrue(stateStore.isDirty("kitchen"));
+        verify(repo, never()).save(any());
     }
 
     @Test
     void handleConfirmationError() {
-        svc.handleConfirmation("kitchen", "{\"status\":\"ERROR\",\"error\":\"fail\"}");
-        // No save should be called
-        verify(repo, never()).save(any());
+        svc.handleConfirmation("kitchen", new LightConfirmation(false, false, "fail"));
+        // No state change should be recorded
+        assertFalse(stateStore.isDirty("kitchen"));
+    }
+
+    @Test
+    void outcomeCompletesAfterStateIsApplied() {
+        when(repo.findById("kitchen")).thenReturn(java.util.Optional.of(new Room("kitchen")));
+        AtomicBoolean seen = new AtomicBoolean();
+        svc.sendLightCommand("kitchen", true).outcome()
+            .thenRun(() -> seen.set(stateStore.get("kitchen").lightOn()));
+        svc.handleConfirmation("kitchen", new LightConfirmation(true, true, null));
+        assertTrue(seen.get());
     }
 
     @Test
@@ -50,4 +86,32 @@ class LightServiceTest {
         svc.sendLightCommand("kitchen", true);
         verify(mqttGateway).sendToMqtt(anyString(), eq("kitchen/lig/command"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void burstOfLightCommandsOnlySendsLatestAfterConfirmation() {
+        svc.sendLightCommand("kitchen", true);
+        svc.sendLightCommand("kitchen", false);
+        svc.sendLightCommand("kitchen", true);
+        svc.sendLightCommand("kitchen", false);
+        verify(mqttGateway).sendToMqtt(anyString(), eq("kitchen/lig/command"));
+
+        svc.handleConfirmation("kitchen", new LightConfirmation(true, true, null));
+
+        verify(mqttGateway).sendToMqtt(startsWith("{\"command\":\"SET_LIGHT\",\"state\":\"OFF\",\"cid\":"), eq("kitchen/lig/command"));
+        verify(mqttGateway, times(2)).sendToMqtt(anyString(), eq("kitchen/lig/command"));
+    }
+
+    @Test
+    void sendLightCommandUsesJsonByDefault() {
+        svc.sendLightCommand("kitchen", false);
+        verify(mqttGateway).sendToMqtt(startsWith("{\"command\":\"SET_LIGHT\",\"state\":\"OFF\",\"cid\":"), eq("kitchen/lig/command"));
+    }
+
+    @Test
+    void sendLightCommandAnswersInMessagePackToMessagePackDevices() {
+        formats.observe("kitchen/lig/confirmation/msgpack");
+        svc.sendLightCommand("kitchen", true);
+        verify(mqttGateway).sendToMqtt(any(byte[].class), eq("kitchen/lig/command/msgpack"));
+        verify(mqttGateway, never()).sendToMqtt(anyString(), anyString());
+    }
+}
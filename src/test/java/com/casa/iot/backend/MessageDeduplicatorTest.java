@@ -0,0 +1,94 @@
+package com.casa.iot.backend;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.integration.mqtt.support.MqttHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import com.casa.iot.backend.mqtt.MessageDeduplicator;
+import com.casa.iot.backend.mqtt.MqttProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class MessageDeduplicatorTest {
+
+    private static final String CONFIRMATION = "{\"status\":\"SUCCESS\",\"state\":\"ON\"}";
+
+    private Instant now = Instant.parse("2024-01-20T15:30:00Z");
+    private MessageDeduplicator deduplicator;
+
+    @BeforeEach
+    void setUp() {
+        MqttProperties properties = new MqttProperties();
+        properties.setDedupTtl(Duration.ofMinutes(5));
+        properties.setDedupMaxEntries(3);
+        Clock clock = new Clock() {
+            @Override
+            public ZoneId getZone() {
+                return ZoneId.of("UTC");
+            }
+
+            @Override
+            public Clock withZone(ZoneId zone) {
+                return this;
+            }
+
+            @Override
+            public Instant instant() {
+                return now;
+            }
+        };
+        deduplicator = new MessageDeduplicator(properties, new SimpleMeterRegistry(), clock);
+    }
+
+    private static Message<byte[]> message(String topic, String payload, boolean redelivered) {
+        return MessageBuilder.withPayload(payload.getBytes(StandardCharsets.UTF_8))
+            .setHeader(MqttHeaders.RECEIVED_TOPIC, topic)
+            .setHeader(MqttHeaders.DUPLICATE, redelivered)
+            .build();
+    }
+
+    @Test
+    void redeliveredMessageIsDropped() {
+        assertFalse(deduplicator.isDuplicate(message("salon/lig/confirmation", CONFIRMATION, false)));
+        assertTrue(deduplicator.isDuplicate(message("salon/lig/confirmation", CONFIRMATION, true)));
+    }
+
+    @Test
+    void identicalMessageWithoutDupFlagIsKept() {
+        assertFalse(deduplicator.isDuplicate(message("rfid/event", "{\"event\":\"RFID_DETECTED\",\"cardId\":\"A1\"}", false)));
+        assertFalse(deduplicator.isDuplicate(message("rfid/event", "{\"event\":\"RFID_DETECTED\",\"cardId\":\"A1\"}", false)));
+    }
+
+    @Test
+    void repeatedDeviceMessageIdIsDropped() {
+        assertFalse(deduplicator.isDuplicate(message("salon/lig/confirmation", "{\"msgId\":\"7\",\"status\":\"SUCCESS\",\"state\":\"ON\"}", false)));
+        assertTrue(deduplicator.isDuplicate(message("salon/lig/confirmation", "{\"msgId\":\"7\",\"status\":\"SUCCESS\",\"state\":\"ON\"}", false)));
+        assertFalse(deduplicator.isDuplicate(message("salon/lig/confirmation", "{\"msgId\":\"8\",\"status\":\"SUCCESS\",\"state\":\"ON\"}", false)));
+    }
+
+    @Test
+    void entriesExpireAfterTtl() {
+        deduplicator.isDuplicate(message("salon/lig/confirmation", CONFIRMATION, false));
+        now = now.plus(Duration.ofMinutes(6));
+        assertFalse(deduplicator.isDuplicate(message("salon/lig/confirmation", CONFIRMATION, true)));
+    }
+
+    @Test
+    void cacheIsBounded() {
+        for (int i = 0; i < 10; i++) {
+            deduplicator.isDuplicate(message("room" + i + "/mov/event", "{}", false));
+        }
+        assertEquals(3, deduplicator.size());
+    }
+}
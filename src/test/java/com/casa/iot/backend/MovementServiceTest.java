@@ -1,38 +1,105 @@
 package com.casa.iot.backend;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.casa.iot.backend.config.MovementProperties;
 import com.casa.iot.backend.model.Room;
+import com.casa.iot.backend.mqtt.CommandSlots;
+import com.casa.iot.backend.mqtt.DeviceCommandSender;
+import com.casa.iot.backend.mqtt.DeviceMetrics;
+import com.casa.iot.backend.mqtt.MqttCommandPublisher;
 import com.casa.iot.backend.mqtt.MqttGateway;
+import com.casa.iot.backend.mqtt.MqttProperties;
+import com.casa.iot.backend.mqtt.PayloadFormats;
+import com.casa.iot.backend.mqtt.PendingCommand;
+import com.casa.iot.backend.mqtt.RoomStatePublisher;
+import com.casa.iot.backend.mqtt.message.AlarmChanged;
+import com.casa.iot.backend.mqtt.message.AlarmConfirmation;
+import com.casa.iot.backend.mqtt.message.MovementEvent;
 import com.casa.iot.backend.repository.RoomRepository;
 import com.casa.iot.backend.service.EventLogService;
+import com.casa.iot.backend.service.MovementCoalescer;
 import com.casa.iot.backend.service.MovementService;
 import com.casa.iot.backend.service.NotificationService;
+import com.casa.iot.backend.service.RoomStateStore;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManagerFactory;
 
 class MovementServiceTest {
 
     private RoomRepository roomRepo;
+    private RoomStateStore stateStore;
     private MqttGateway mqttGateway;
     private NotificationService notificationService;
     private EventLogService eventLogService;
+    private MovementCoalescer coalescer;
+    private MqttCommandPublisher commandPublisher;
+    private MqttProperties mqttProperties;
     private MovementService svc;
+    private Instant now = Instant.parse("2024-01-20T15:30:00Z");
 
     @BeforeEach
     void setUp() {
         roomRepo = mock(RoomRepository.class);
+        stateStore = new RoomStateStore(roomRepo, mock(JdbcTemplate.class), mock(EntityManagerFactory.class),
+            mock(RoomStatePublisher.class), new MqttProperties(), new SimpleMeterRegistry());
         mqttGateway = mock(MqttGateway.class);
         notificationService = mock(NotificationService.class);
         eventLogService = mock(EventLogService.class);
-        svc = new MovementService(roomRepo, mqttGateway, notificationService, eventLogService);
+        Clock clock = new Clock() {
+            @Override
+            public ZoneId getZone() {
+                return ZoneId.of("UTC");
+            }
+
+            @Override
+            public Clock withZone(ZoneId zone) {
+                return this;
+            }
+
+            @Override
+            public Instant instant() {
+                return now;
+            }
+        };
+        MovementProperties properties = new MovementProperties();
+        properties.setCoalesceWindow(Duration.ofSeconds(30));
+        coalescer = new MovementCoalescer(properties, eventLogService, clock);
+        commandPublisher = mock(MqttCommandPublisher.class);
+        mqttProperties = new MqttProperties();
+        svc = movementService();
+    }
+
+    private MovementService movementService() {
+        DeviceCommandSender commandSender = new DeviceCommandSender(mqttGateway, new PayloadFormats(mqttProperties),
+            commandPublisher, new CommandSlots(mqttProperties, new DeviceMetrics(new SimpleMeterRegistry(), 20)), mqttProperties);
+        return new MovementService(stateStore, commandSender, notificationService, eventLogService, coalescer);
     }
 
     @Test
@@ -41,12 +108,68 @@ class MovementServiceTest {
         verify(mqttGateway).sendToMqtt(anyString(), eq("kitchen/mov/command"));
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    void sendAlarmCommandToAllPublishesOneBatch() {
+        ArgumentCaptor<List<MqttCommandPublisher.Outgoing>> batch = ArgumentCaptor.forClass(List.class);
+
+        svc.sendAlarmCommandToAll(List.of("kitchen", "salon"), false);
+
+        verify(commandPublisher).publishAll(batch.capture());
+        assertEquals(List.of("kitchen/mov/command", "salon/mov/command"),
+            batch.getValue().stream().map(MqttCommandPublisher.Outgoing::topic).toList());
+        // con cid, para que la confirmacion no libere otro comando del hueco
+        assertTrue(new String(batch.getValue().get(0).payload(), StandardCharsets.UTF_8)
+            .matches("\\{\"command\":\"SET_ALARM\",\"state\":\"OFF\",\"cid\":\"[^\"]+\"\\}"));
+        verify(mqttGateway, never()).sendToMqtt(anyString(), anyString());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void sendAlarmCommandToAllUsesBroadcastTopicWhenEnabled() {
+        mqttProperties.setBroadcastCommands(true);
+        svc = movementService();
+        ArgumentCaptor<List<MqttCommandPublisher.Outgoing>> batch = ArgumentCaptor.forClass(List.class);
+
+        svc.sendAlarmCommandToAll(List.of("kitchen", "salon"), true);
+
+        verify(commandPublisher).publishAll(batch.capture());
+        assertEquals(1, batch.getValue().size());
+        assertEquals("all/mov/command", batch.getValue().get(0).topic());
+    }
+
+    @Test
+    void pendingAlarmOnIsNotSentAfterDisarmingEveryRoom() {
+        when(roomRepo.findById("kitchen")).thenReturn(Optional.of(new Room("kitchen")));
+        when(commandPublisher.publishAll(anyList())).thenReturn(CompletableFuture.completedFuture(null));
+        svc.sendAlarmCommand("kitchen", true);
+        PendingCommand queued = svc.sendAlarmCommand("kitchen", true);
+
+        svc.sendAlarmCommandToAll(List.of("kitchen"), false);
+        // confirmacion sin cid: es la del desarmado
+        svc.handleConfirmation("kitchen", new AlarmConfirmation(true, false, null));
+
+        assertEquals(PendingCommand.Outcome.SUPERSEDED, queued.outcome().join());
+        verify(mqttGateway, times(1)).sendToMqtt(anyString(), eq("kitchen/mov/command"));
+    }
+
     @Test
     void handleConfirmationSuccessUpdatesRoom() {
         Room room = new Room("kitchen");
         when(roomRepo.findById("kitchen")).thenReturn(Optional.of(room));
-        svc.handleConfirmation("kitchen", "{\"status\":\"SUCCESS\",\"state\":\"ON\"}");
-        verify(roomRepo).save(room);
+        svc.handleConfirmation("kitchen", new AlarmConfirmation(true, true, null));
+        assertTrue(stateStore.get("kitchen").detectOn());
+        assertTrue(stateStore.isDirty("kitchen"));
+    }
+
+    @Test
+    void repeatedConfirmationIsNotLoggedAgain() {
+        when(roomRepo.findById("kitchen")).thenReturn(Optional.of(new Room("kitchen")));
+
+        svc.handleConfirmation("kitchen", new AlarmConfirmation(true, true, null));
+        svc.handleConfirmation("kitchen", new AlarmConfirmation(true, true, null));
+
+        verify(eventLogService, times(1)).logSystemAction(eq("SENSOR_ON"), eq("kitchen"), anyString(), eq("DEVICE_CONFIRMATION"));
     }
 
     @Test
@@ -54,15 +177,9 @@ class MovementServiceTest {
         Room room = new Room("kitchen");
         when(roomRepo.findById("kitchen")).thenReturn(Optional.of(room));
         assertDoesNotThrow(() -> 
-            svc.handleConfirmation("kitchen", "{\"status\":\"ERROR\",\"state\":\"OFF\",\"error\":\"fail\"}")
+            svc.handleConfirmation("kitchen", new AlarmConfirmation(false, false, "fail"))
         );
-        verify(roomRepo, org.mockito.Mockito.never()).save(room);
-    }
-
-    @Test
-    void handleConfirmationMalformedJsonDoesNotThrow() {
-        svc.handleConfirmation("kitchen", "not a json");
-        // test pasa sin o hay excepcion
+        assertFalse(stateStore.isDirty("kitchen"));
     }
 
     @Test
@@ -70,8 +187,7 @@ class MovementServiceTest {
         Room room = new Room("kitchen");
         room.setDetectOn(true);
         when(roomRepo.findById("kitchen")).thenReturn(Optional.of(room));
-        String payload = "{\"event\":\"MOVEMENT_DETECTED\"}";
-        svc.handle("kitchen", payload);
+        svc.handle("kitchen", new MovementEvent(null));
         verify(notificationService).sendMovementAlert("kitchen");
     }
 
@@ -80,8 +196,7 @@ class MovementServiceTest {
         Room room = new Room("kitchen");
         room.setDetectOn(false);
         when(roomRepo.findById("kitchen")).thenReturn(Optional.of(room));
-        String payload = "{\"event\":\"MOVEMENT_DETECTED\"}";
-        svc.handle("kitchen", payload);
+        svc.handle("kitchen", new MovementEvent(null));
         // No se debe llamar a sendMovementAlert
         verify(notificationService, org.mockito.Mockito.never()).sendMovementAlert("kitchen");
     }
@@ -90,22 +205,72 @@ class MovementServiceTest {
     void handleAlarmChangedUpdatesRoom() {
         Room room = new Room("kitchen");
         when(roomRepo.findById("kitchen")).thenReturn(Optional.of(room));
-        String payload = "{\"event\":\"ALARM_CHANGED\",\"state\":\"ON\"}";
-        svc.handle("kitchen", payload);
-        verify(roomRepo).save(room);
+        svc.handle("kitchen", new AlarmChanged(true, null));
+        assertTrue(stateStore.get("kitchen").detectOn());
+        assertTrue(stateStore.isDirty("kitchen"));
     }
 
     @Test
     void handleAlarmChangedCreatesRoomIfNotExists() {
         when(roomRepo.findById("kitchen")).thenReturn(Optional.empty());
-        String payload = "{\"event\":\"ALARM_CHANGED\",\"state\":\"OFF\"}";
-        svc.handle("kitchen", payload);
-        verify(roomRepo).save(org.mockito.ArgumentMatchers.any(Room.class));
+        svc.handle("kitchen", new AlarmChanged(false, null));
+        assertFalse(stateStore.get("kitchen").detectOn());
+        assertTrue(stateStore.isDirty("kitchen"));
+    }
+
+    @Test
+    void handleMovementForUnknownRoomDoesNotThrow() {
+        when(roomRepo.findById("garage")).thenReturn(Optional.empty());
+        assertDoesNotThrow(() -> svc.handle("garage", new MovementEvent("2024-01-20T15:30:00")));
+        verify(notificationService, org.mockito.Mockito.never()).sendMovementAlert("garage");
+    }
+
+    @Test
+    void repeatedMovementWithinWindowIsOneEpisode() {
+        Room room = new Room("kitchen");
+        room.setDetectOn(true);
+        when(roomRepo.findById("kitchen")).thenReturn(Optional.of(room));
+
+        svc.handle("kitchen", new MovementEvent("t1"));
+        now = now.plusSeconds(10);
+        svc.handle("kitchen", new MovementEvent("t2"));
+        now = now.plusSeconds(25);
+        svc.handle("kitchen", new MovementEvent("t3"));
+
+        verify(roomRepo, times(1)).findById("kitchen");
+        verify(notificationService, times(1)).sendMovementAlert("kitchen");
+        verify(eventLogService, never()).logMovementDetected(anyString(), anyString());
+
+        now = now.plusSeconds(30);
+        coalescer.closeExpired();
+        verify(eventLogService).logMovementDetected(eq("kitchen"),
+            contains("\"firstTimestamp\":\"t1\",\"lastTimestamp\":\"t3\",\"count\":3"));
     }
 
     @Test
-    void handleMalformedJsonDoesNotThrow() {
-        svc.handle("kitchen", "not a json");
-        // No excepción lanzada, test pasa si no hay crash
+    void movementAfterWindowStartsNewEpisode() {
+        Room room = new Room("kitchen");
+        room.setDetectOn(true);
+        when(roomRepo.findById("kitchen")).thenReturn(Optional.of(room));
+
+        svc.handle("kitchen", new MovementEvent("t1"));
+        now = now.plusSeconds(31);
+        svc.handle("kitchen", new MovementEvent("t2"));
+
+        verify(notificationService, times(2)).sendMovementAlert("kitchen");
+        verify(eventLogService).logMovementDetected(eq("kitchen"), contains("\"count\":1"));
+    }
+
+    @Test
+    void alarmChangeClosesOpenEpisode() {
+        Room room = new Room("kitchen");
+        room.setDetectOn(true);
+        when(roomRepo.findById("kitchen")).thenReturn(Optional.of(room));
+
+        svc.handle("kitchen", new MovementEvent("t1"));
+        svc.handle("kitchen", new AlarmChanged(false, null));
+
+        verify(eventLogService).logMovementDetected(eq("kitchen"), contains("\"count\":1"));
+        assertEquals(0, coalescer.openEpisodes());
     }
-}
\ No newline at end of file
+}
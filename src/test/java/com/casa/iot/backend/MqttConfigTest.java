@@ -0,0 +1,125 @@
+package com.casa.iot.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.integration.acks.SimpleAcknowledgment;
+import org.springframework.integration.mqtt.support.MqttHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.MessageHandlingException;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.casa.iot.backend.config.BlockingCallLimiter;
+import com.casa.iot.backend.mqtt.CommandJournal;
+import com.casa.iot.backend.mqtt.IngestOwnership;
+import com.casa.iot.backend.mqtt.MessageDeduplicator;
+import com.casa.iot.backend.mqtt.MqttConfig;
+import com.casa.iot.backend.mqtt.MqttEventHandler;
+import com.casa.iot.backend.mqtt.MqttProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class MqttConfigTest {
+
+    @Test
+    void roomKeyUsesFirstTopicSegment() {
+        var message = MessageBuilder.withPayload("{}")
+            .setHeader(MqttHeaders.RECEIVED_TOPIC, "salon/mov/event")
+            .build();
+        assertEquals("salon", MqttConfig.roomKey(message));
+    }
+
+    @Test
+    void roomKeyGroupsRfidTopicsTogether() {
+        var event = MessageBuilder.withPayload("{}")
+            .setHeader(MqttHeaders.RECEIVED_TOPIC, "rfid/event")
+            .build();
+        var register = MessageBuilder.withPayload("{}")
+            .setHeader(MqttHeaders.RECEIVED_TOPIC, "rfid/register")
+            .build();
+        assertEquals(MqttConfig.roomKey(event), MqttConfig.roomKey(register));
+    }
+
+    @Test
+    void roomKeyWithoutTopicDoesNotFail() {
+        var message = MessageBuilder.withPayload("{}").build();
+        assertEquals("", MqttConfig.roomKey(message));
+    }
+
+    @Test
+    void outboundThrowsWhenPublishFailsRightAway() {
+        CommandJournal journal = mock(CommandJournal.class);
+        when(journal.publish(anyString(), any(byte[].class))).thenReturn(
+            CompletableFuture.failedFuture(new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT)));
+        var message = MessageBuilder.withPayload("{}")
+            .setHeader(MqttHeaders.TOPIC, "salon/lig/command")
+            .build();
+
+        assertThrows(MessageHandlingException.class, () -> new MqttConfig().mqttOutbound(journal).handleMessage(message));
+    }
+
+    @Test
+    void inboundIsAcknowledgedOnlyAfterHandling() {
+        MqttEventHandler handler = mock(MqttEventHandler.class);
+        SimpleAcknowledgment ack = mock(SimpleAcknowledgment.class);
+
+        inboundHandler(handler).handleMessage(inbound("salon/mov/event", ack));
+
+        InOrder order = inOrder(handler, ack);
+        order.verify(handler).handleMessage(any(), any(), any());
+        order.verify(ack).acknowledge();
+    }
+
+    @Test
+    void failedAndDuplicateMessagesAreAcknowledgedToo() {
+        MqttEventHandler handler = mock(MqttEventHandler.class);
+        doThrow(new IllegalStateException("sin BD")).when(handler).handleMessage(any(), any(), any());
+        SimpleAcknowledgment ack = mock(SimpleAcknowledgment.class);
+        var inbound = inboundHandler(handler);
+        Message<?> message = MessageBuilder.fromMessage(inbound("salon/mov/event", ack))
+            .setHeader(MqttHeaders.DUPLICATE, true)
+            .build();
+
+        assertThrows(IllegalStateException.class, () -> inbound.handleMessage(message));
+        inbound.handleMessage(message); // reenvio del broker: se descarta
+
+        verify(ack, times(2)).acknowledge();
+        verify(handler).handleMessage(any(), any(), any());
+    }
+
+    private MessageHandler inboundHandler(MqttEventHandler handler) {
+        MqttProperties properties = new MqttProperties();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MqttConfig config = new MqttConfig();
+        ReflectionTestUtils.setField(config, "mqttProperties", properties);
+        ReflectionTestUtils.setField(config, "messageDeduplicator", new MessageDeduplicator(properties, registry));
+        ReflectionTestUtils.setField(config, "ingestOwnership", new IngestOwnership(properties, registry));
+        ReflectionTestUtils.setField(config, "blockingCallLimiter", new BlockingCallLimiter(1));
+        ReflectionTestUtils.setField(config, "environment", new MockEnvironment());
+        return config.handler(handler);
+    }
+
+    private Message<byte[]> inbound(String topic, SimpleAcknowledgment ack) {
+        return MessageBuilder.withPayload("{\"event\":\"MOVEMENT_DETECTED\"}".getBytes())
+            .setHeader(MqttHeaders.RECEIVED_TOPIC, topic)
+            .setHeader(IntegrationMessageHeaderAccessor.ACKNOWLEDGMENT_CALLBACK, ack)
+            .build();
+    }
+}
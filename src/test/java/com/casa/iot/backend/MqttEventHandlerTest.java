@@ -1,18 +1,37 @@
 package com.casa.iot.backend;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import static org.mockito.ArgumentMatchers.anyString;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 
+import com.casa.iot.backend.mqtt.DeviceMetrics;
+import com.casa.iot.backend.mqtt.DevicePresence;
 import com.casa.iot.backend.mqtt.MqttEventHandler;
+import com.casa.iot.backend.mqtt.MqttProperties;
+import com.casa.iot.backend.mqtt.PayloadFormats;
+import com.casa.iot.backend.mqtt.message.AlarmChanged;
+import com.casa.iot.backend.mqtt.message.AlarmConfirmation;
+import com.casa.iot.backend.mqtt.message.LightConfirmation;
+import com.casa.iot.backend.mqtt.message.MovementEvent;
+import com.casa.iot.backend.mqtt.message.RfidDetected;
+import com.casa.iot.backend.mqtt.message.RfidRegister;
+import com.casa.iot.backend.mqtt.message.StateSnapshot;
 import com.casa.iot.backend.service.LightService;
 import com.casa.iot.backend.service.MovementService;
 import com.casa.iot.backend.service.RFIDService;
+import com.casa.iot.backend.service.RoomStateService;
 import com.casa.iot.backend.service.SoundService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 class MqttEventHandlerTest {
 
@@ -20,6 +39,9 @@ class MqttEventHandlerTest {
     private MovementService movementService;
     private SoundService soundService;
     private RFIDService rfidService;
+    private RoomStateService roomStateService;
+    private SimpleMeterRegistry registry;
+    private DevicePresence presence;
     private MqttEventHandler handler;
 
     @BeforeEach
@@ -28,37 +50,41 @@ class MqttEventHandlerTest {
         movementService = mock(MovementService.class);
         soundService = mock(SoundService.class);
         rfidService = mock(RFIDService.class);
-        handler = new MqttEventHandler(lightService, movementService, soundService, rfidService);
+        roomStateService = mock(RoomStateService.class);
+        registry = new SimpleMeterRegistry();
+        presence = new DevicePresence(new MqttProperties(), new DeviceMetrics(registry, 20), registry);
+        handler = new MqttEventHandler(lightService, movementService, soundService, rfidService, roomStateService,
+            new DeviceMetrics(registry, 20), new PayloadFormats(new MqttProperties()), presence);
     }
 
     @Test
     void testHandleMessage_LightConfirmation() {
-        handler.handleMessage("kitchen/lig/confirmation", "{\"status\":\"SUCCESS\"}");
-        verify(lightService).handleConfirmation(eq("kitchen"), anyString());
+        handler.handleMessage("kitchen/lig/confirmation", "{\"status\":\"SUCCESS\",\"state\":\"ON\"}");
+        verify(lightService).handleConfirmation("kitchen", new LightConfirmation(true, true, null));
     }
 
     @Test
     void testHandleMessage_MovementEvent() {
         handler.handleMessage("salon/mov/event", "{\"event\":\"MOVEMENT_DETECTED\"}");
-        verify(movementService).handle(eq("salon"), anyString());
+        verify(movementService).handle("salon", new MovementEvent(null));
     }
 
     @Test
     void testHandleMessage_MovementConfirmation() {
-        handler.handleMessage("salon/mov/confirmation", "{\"status\":\"SUCCESS\"}");
-        verify(movementService).handleConfirmation(eq("salon"), anyString());
+        handler.handleMessage("salon/mov/confirmation", "{\"status\":\"SUCCESS\",\"state\":\"OFF\"}");
+        verify(movementService).handleConfirmation("salon", new AlarmConfirmation(true, false, null));
     }
 
     @Test
     void testHandleMessage_RFIDEvent() {
-        handler.handleMessage("rfid/event", "{\"event\":\"RFID_DETECTED\"}");
-        verify(rfidService).handle(anyString());
+        handler.handleMessage("rfid/event", "{\"event\":\"RFID_DETECTED\",\"cardId\":\"A1B2\"}");
+        verify(rfidService).handle(new RfidDetected("A1B2"));
     }
 
     @Test
     void testHandleMessage_RFIDRegister() {
-        handler.handleMessage("rfid/register", "{\"username\":\"test\"}");
-        verify(rfidService).handleRegister(anyString());
+        handler.handleMessage("rfid/register", "{\"event\":\"RFID_REGISTER\",\"cardId\":\"A1B2\"}");
+        verify(rfidService).handleRegister(new RfidRegister("A1B2", false));
     }
 
     @Test
@@ -75,7 +101,7 @@ class MqttEventHandlerTest {
     @Test
     void testHandleMessage_ShortTopic_Movement() {
         handler.handleMessage("salon/mov", "{\"event\":\"MOVEMENT_DETECTED\"}");
-        verify(movementService).handle(eq("salon"), anyString());
+        verify(movementService).handle(eq("salon"), any(MovementEvent.class));
     }
 
     @Test
@@ -83,4 +109,52 @@ class MqttEventHandlerTest {
         handler.handleMessage("kitchen/lig/command", "{\"cmd\":\"ON\"}");
         verifyNoInteractions(lightService, movementService, soundService, rfidService);
     }
-}
\ No newline at end of file
+
+    @Test
+    void testHandleMessage_AlarmChangedEvent() {
+        handler.handleMessage("salon/mov/event", "{\"event\":\"ALARM_CHANGED\",\"state\":\"ON\",\"timestamp\":\"t\"}");
+        verify(movementService).handle("salon", new AlarmChanged(true, "t"));
+    }
+
+    @Test
+    void testHandleMessage_MalformedPayloadIgnored() {
+        handler.handleMessage("kitchen/lig/confirmation", "not a json");
+        handler.handleMessage("rfid/register", "{\"username\":\"test\"}");
+        verifyNoInteractions(lightService, movementService, rfidService);
+    }
+
+    @Test
+    void testHandleMessage_RecordsPipelineMetrics() {
+        handler.handleMessage("kitchen/lig/confirmation", "{\"status\":\"SUCCESS\",\"state\":\"ON\"}");
+        handler.handleMessage("kitchen/lig/confirmation", "not a json");
+
+        assertEquals(2, registry.get("mqtt.handle").tags("subsystem", "lig", "type", "confirmation", "room", "kitchen").timer().count());
+        assertEquals(1, registry.get("device.service").tags("type", "LightConfirmation").timer().count());
+        assertEquals(1, registry.get("mqtt.rejected").tags("reason", "invalid").counter().count());
+    }
+
+    @Test
+    void testHandleMessage_MessagePackConfirmation() throws Exception {
+        byte[] payload = new ObjectMapper(new MessagePackFactory())
+            .writeValueAsBytes(java.util.Map.of("status", "SUCCESS", "state", "ON"));
+        handler.handleMessage("salon/lig/confirmation/msgpack", payload);
+        verify(lightService).handleConfirmation("salon", new LightConfirmation(true, true, null));
+    }
+
+    @Test
+    void testHandleMessage_StateSnapshot() {
+        handler.handleMessage("salon/state", "{\"light\":\"ON\",\"alarm\":\"OFF\",\"sound\":\"IDLE\"}");
+        verify(roomStateService).applySnapshot("salon", new StateSnapshot(true, false));
+        verifyNoInteractions(lightService, movementService);
+    }
+
+    @Test
+    void testHandleMessage_HeartbeatMarksDeviceOnline() {
+        handler.handleMessage("salon/heartbeat", "");
+        handler.handleMessage("cocina/lig/command", "{\"command\":\"SET_LIGHT\"}");
+
+        assertTrue(presence.isOnline("salon"));
+        assertFalse(presence.isOnline("cocina"));
+        verifyNoInteractions(lightService, movementService, roomStateService);
+    }
+}
@@ -0,0 +1,229 @@
+package com.casa.iot.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.integration.mqtt.core.MqttPahoClientFactory;
+
+import com.casa.iot.backend.mqtt.MqttOutboundPool;
+import com.casa.iot.backend.mqtt.MqttProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class MqttOutboundPoolTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MqttProperties properties = new MqttProperties();
+    private final Map<String, List<String>> published = new HashMap<>();
+    private final List<IMqttActionListener> unacked = new ArrayList<>();
+    private MqttPahoClientFactory clientFactory;
+
+    @BeforeEach
+    void setUp() throws MqttException {
+        clientFactory = mock(MqttPahoClientFactory.class);
+        when(clientFactory.getAsyncClientInstance(anyString(), anyString()))
+            .thenAnswer(invocation -> client(invocation.getArgument(1)));
+    }
+
+    @Test
+    void roomRoutingKeepsEachRoomOnOneConnection() {
+        properties.setOutboundConnections(4);
+        MqttOutboundPool pool = new MqttOutboundPool(clientFactory, properties, meterRegistry);
+
+        for (int i = 0; i < 5; i++) {
+            pool.publish("salon/lig/command", new byte[0], 0);
+            pool.publish("salon/mov/command", new byte[0], 0);
+        }
+
+        assertEquals(1, published.size());
+        assertEquals(10, published.values().iterator().next().size());
+    }
+
+    @Test
+    void roundRobinSpreadsAcrossConnections() {
+        properties.setOutboundConnections(2);
+        properties.setOutboundRouting("round-robin");
+        MqttOutboundPool pool = new MqttOutboundPool(clientFactory, properties, meterRegistry);
+
+        for (int i = 0; i < 4; i++) {
+            pool.publish("salon/lig/command", new byte[0], 0);
+        }
+
+        assertEquals(2, published.size());
+        published.values().forEach(topics -> assertEquals(2, topics.size()));
+    }
+
+    @Test
+    void retainedMessagesStayOnTheRoomConnectionWithRoundRobin() throws MqttException {
+        properties.setOutboundConnections(4);
+        properties.setOutboundRouting("round-robin");
+        List<String> clients = new ArrayList<>();
+        when(clientFactory.getAsyncClientInstance(anyString(), anyString())).thenAnswer(invocation -> {
+            String clientId = invocation.getArgument(1);
+            IMqttAsyncClient client = client(clientId);
+            when(client.publish(anyString(), any(byte[].class), anyInt(), eq(true), any(), any()))
+                .thenAnswer(publish -> {
+                    clients.add(clientId);
+                    return mock(IMqttDeliveryToken.class);
+                });
+            return client;
+        });
+        MqttOutboundPool pool = new MqttOutboundPool(clientFactory, properties, meterRegistry);
+
+        for (int i = 0; i < 4; i++) {
+            pool.publish("salon/state/current", new byte[0], 1, true);
+        }
+
+        assertEquals(4, clients.size());
+        assertEquals(1, clients.stream().distinct().count());
+    }
+
+    @Test
+    void fullWindowOverflowsToNextConnectionWithRoundRobin() {
+        properties.setOutboundConnections(2);
+        properties.setOutboundInflight(1);
+        properties.setOutboundRouting("round-robin");
+        MqttOutboundPool pool = new MqttOutboundPool(clientFactory, properties, meterRegistry);
+
+        pool.publish("salon/lig/command", new byte[0], 1);
+        pool.publish("salon/lig/command", new byte[0], 1);
+        unacked.get(1).onSuccess(null);
+        // le toca a la primera, que esta llena: sale por la segunda
+        CompletableFuture<Void> third = pool.publish("salon/lig/command", new byte[0], 1);
+        CompletableFuture<Void> fourth = pool.publish("salon/lig/command", new byte[0], 1);
+
+        assertFalse(third.isCompletedExceptionally());
+        assertEquals(3, published.values().stream().mapToInt(List::size).sum());
+        assertTrue(fourth.isCompletedExceptionally());
+        assertEquals(3.0, meterRegistry.get("mqtt.outbound.saturated").counters().stream()
+            .mapToDouble(counter -> counter.count()).sum());
+    }
+
+    @Test
+    void fullWindowFailsWithoutLeavingTheRoomConnection() {
+        properties.setOutboundConnections(2);
+        properties.setOutboundInflight(1);
+        MqttOutboundPool pool = new MqttOutboundPool(clientFactory, properties, meterRegistry);
+
+        pool.publish("salon/lig/command", new byte[0], 1);
+        CompletableFuture<Void> second = pool.publish("salon/lig/command", new byte[0], 1);
+
+        // el segundo no sale por la otra conexion: adelantaria al primero
+        assertEquals(1, published.size());
+        assertTrue(second.isCompletedExceptionally());
+        assertEquals(1.0, meterRegistry.get("mqtt.outbound.saturated").counters().stream()
+            .mapToDouble(counter -> counter.count()).sum());
+    }
+
+    @Test
+    void inflightIsReleasedOnAck() {
+        properties.setOutboundConnections(1);
+        MqttOutboundPool pool = new MqttOutboundPool(clientFactory, properties, meterRegistry);
+
+        CompletableFuture<Void> ack = pool.publish("salon/lig/command", new byte[0], 1);
+        assertEquals(1.0, meterRegistry.get("mqtt.outbound.inflight").gauge().value());
+        assertFalse(ack.isDone());
+
+        unacked.get(0).onSuccess(null);
+
+        assertTrue(ack.isDone());
+        assertEquals(0.0, meterRegistry.get("mqtt.outbound.inflight").gauge().value());
+    }
+
+    @Test
+    void disconnectedConnectionFailsRightAwayAndConnectsInBackground() throws MqttException {
+        properties.setOutboundConnections(1);
+        IMqttAsyncClient client = mock(IMqttAsyncClient.class);
+        List<IMqttActionListener> connects = new ArrayList<>();
+        when(client.connect(any(MqttConnectOptions.class), any(), any())).thenAnswer(invocation -> {
+            connects.add(invocation.getArgument(2));
+            return mock(IMqttToken.class);
+        });
+        when(clientFactory.getAsyncClientInstance(anyString(), anyString())).thenReturn(client);
+        MqttOutboundPool pool = new MqttOutboundPool(clientFactory, properties, meterRegistry);
+
+        CompletableFuture<Void> first = pool.publish("salon/lig/command", new byte[0], 1);
+        CompletableFuture<Void> second = pool.publish("salon/lig/command", new byte[0], 1);
+
+        // no se espera a la conexion ni se lanza otro connect mientras sigue el primero
+        assertTrue(first.isCompletedExceptionally());
+        assertTrue(second.isCompletedExceptionally());
+        assertEquals(1, connects.size());
+        assertEquals(0.0, meterRegistry.get("mqtt.outbound.inflight").gauge().value());
+    }
+
+    @Test
+    void connectionLostAfterConnectingIsLeftToPahoReconnect() throws MqttException {
+        properties.setOutboundConnections(1);
+        IMqttAsyncClient client = mock(IMqttAsyncClient.class);
+        List<IMqttActionListener> connects = new ArrayList<>();
+        when(client.connect(any(MqttConnectOptions.class), any(), any())).thenAnswer(invocation -> {
+            connects.add(invocation.getArgument(2));
+            return mock(IMqttToken.class);
+        });
+        when(clientFactory.getAsyncClientInstance(anyString(), anyString())).thenReturn(client);
+        MqttOutboundPool pool = new MqttOutboundPool(clientFactory, properties, meterRegistry);
+
+        pool.connect();
+        connects.get(0).onSuccess(null);
+        // Paho ha perdido la conexion y esta reconectando
+        CompletableFuture<Void> sent = pool.publish("salon/lig/command", new byte[0], 1);
+
+        assertTrue(sent.isCompletedExceptionally());
+        verify(client, times(1)).connect(any(MqttConnectOptions.class), any(), any());
+    }
+
+    @Test
+    void failedFirstConnectIsRetriedOnNextPublish() throws MqttException {
+        properties.setOutboundConnections(1);
+        IMqttAsyncClient client = mock(IMqttAsyncClient.class);
+        List<IMqttActionListener> connects = new ArrayList<>();
+        when(client.connect(any(MqttConnectOptions.class), any(), any())).thenAnswer(invocation -> {
+            connects.add(invocation.getArgument(2));
+            return mock(IMqttToken.class);
+        });
+        when(clientFactory.getAsyncClientInstance(anyString(), anyString())).thenReturn(client);
+        MqttOutboundPool pool = new MqttOutboundPool(clientFactory, properties, meterRegistry);
+
+        pool.connect();
+        connects.get(0).onFailure(null, new MqttException(MqttException.REASON_CODE_BROKER_UNAVAILABLE));
+        pool.publish("salon/lig/command", new byte[0], 1);
+
+        assertEquals(2, connects.size());
+    }
+
+    private IMqttAsyncClient client(String clientId) throws MqttException {
+        IMqttAsyncClient client = mock(IMqttAsyncClient.class);
+        when(client.isConnected()).thenReturn(true);
+        when(client.publish(anyString(), any(byte[].class), anyInt(), eq(false), any(), any()))
+            .thenAnswer(invocation -> {
+                published.computeIfAbsent(clientId, key -> new ArrayList<>()).add(invocation.getArgument(0));
+                unacked.add(invocation.getArgument(5));
+                return mock(IMqttDeliveryToken.class);
+            });
+        return client;
+    }
+}
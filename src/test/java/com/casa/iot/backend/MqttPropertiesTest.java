@@ -0,0 +1,109 @@
+package com.casa.iot.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import com.casa.iot.backend.mqtt.MqttProperties;
+
+class MqttPropertiesTest {
+
+    private final MqttProperties properties = new MqttProperties();
+
+    @Test
+    void defaultSubscriptionsDoNotReceiveOwnCommands() {
+        for (MqttProperties.Subscription subscription : properties.getSubscriptions()) {
+            assertFalse(subscription.getTopic().contains("command"), subscription.getTopic());
+            assertFalse(subscription.getTopic().equals("#"));
+        }
+    }
+
+    @Test
+    void defaultSubscriptionsUseValidQos() {
+        for (MqttProperties.Subscription subscription : properties.getSubscriptions()) {
+            assertTrue(subscription.getQos() >= 0 && subscription.getQos() <= 2, subscription.getTopic());
+        }
+    }
+
+    @Test
+    void movementEventsUseLowerQosThanConfirmations() {
+        int movement = qosOf("+/mov/event/#");
+        int confirmation = qosOf("+/lig/confirmation/#");
+        assertTrue(movement < confirmation);
+        assertEquals(2, confirmation);
+    }
+
+    @Test
+    void legacyMovementTopicIsSubscribed() {
+        // MqttEventHandler sigue atendiendo "{room}/mov" (formato antiguo)
+        assertEquals(0, qosOf("+/mov"));
+    }
+
+    @Test
+    void withoutSharedGroupTopicsAndClientIdsAreUnchanged() {
+        MqttProperties.Subscription subscription = new MqttProperties.Subscription("+/mov/event", 0);
+        assertEquals("+/mov/event", properties.subscriptionFilter(subscription));
+        assertEquals("spring-backend-in", properties.getInboundClientId());
+    }
+
+    @Test
+    void sharedGroupPrefixesSharedSubscriptionsOnly() {
+        properties.setSharedGroup("backend");
+        properties.setNodeId("node1");
+        assertEquals("$share/backend/+/mov/event",
+            properties.subscriptionFilter(new MqttProperties.Subscription("+/mov/event", 0)));
+        assertEquals("rfid/register",
+            properties.subscriptionFilter(new MqttProperties.Subscription("rfid/register", 1, false)));
+    }
+
+    @Test
+    void confirmationsReachEveryNode() {
+        properties.setSharedGroup("backend");
+        properties.setNodeId("node1");
+        for (MqttProperties.Subscription subscription : properties.getSubscriptions()) {
+            if (subscription.getTopic().contains("/confirmation")) {
+                assertEquals(subscription.getTopic(), properties.subscriptionFilter(subscription));
+            }
+        }
+    }
+
+    @Test
+    void clusteredNodesUseDistinctClientIds() {
+        MqttProperties other = new MqttProperties();
+        properties.setSharedGroup("backend");
+        properties.setNodeId("node1");
+        other.setSharedGroup("backend");
+        other.setNodeId("node2");
+        assertFalse(properties.getInboundClientId().equals(other.getInboundClientId()));
+        assertFalse(properties.getOutboundClientId().equals(other.getOutboundClientId()));
+        // mismo client id tras reiniciar: la sesion persistente es la misma
+        assertEquals("spring-backend-node1-in", properties.getInboundClientId());
+    }
+
+    @Test
+    void sharedGroupRequiresExplicitNodeId() {
+        properties.setSharedGroup("backend");
+        assertThrows(IllegalStateException.class, properties::validate);
+        properties.setNodeId("node1");
+        properties.validate();
+    }
+
+    @Test
+    void embeddedModeConnectsOverLoopback() {
+        properties.setHost("192.168.1.50");
+        assertEquals("tcp://192.168.1.50:1883", properties.getBrokerUrl());
+        properties.setMode("embedded");
+        assertTrue(properties.isEmbedded());
+        assertEquals("tcp://127.0.0.1:1883", properties.getBrokerUrl());
+    }
+
+    private int qosOf(String topic) {
+        return properties.getSubscriptions().stream()
+            .filter(s -> s.getTopic().equals(topic))
+            .findFirst()
+            .orElseThrow()
+            .getQos();
+    }
+}
@@ -10,14 +10,21 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
-import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.casa.iot.backend.model.User;
+import com.casa.iot.backend.mqtt.CommandSlots;
+import com.casa.iot.backend.mqtt.DeviceCommandSender;
+import com.casa.iot.backend.mqtt.DeviceMetrics;
+import com.casa.iot.backend.mqtt.MqttCommandPublisher;
 import com.casa.iot.backend.mqtt.MqttGateway;
+import com.casa.iot.backend.mqtt.MqttProperties;
+import com.casa.iot.backend.mqtt.PayloadFormats;
+import com.casa.iot.backend.mqtt.message.RfidDetected;
+import com.casa.iot.backend.mqtt.message.RfidRegister;
 import com.casa.iot.backend.repository.RoomRepository;
 import com.casa.iot.backend.repository.UserRepository;
 import com.casa.iot.backend.service.EventLogService;
@@ -25,6 +32,8 @@ import com.casa.iot.backend.service.MovementService;
 import com.casa.iot.backend.service.RFIDService;
 import com.casa.iot.backend.service.VacationModeService;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
 class RFIDServiceTest {
 
     private MovementService movementService;
@@ -43,7 +52,10 @@ class RFIDServiceTest {
         eventLogService = mock(EventLogService.class);
         vacationModeService = mock(VacationModeService.class);
         mqttGateway = mock(MqttGateway.class);
-        svc = new RFIDService(movementService, roomRepo, eventLogService, vacationModeService, userRepo, mqttGateway);
+        svc = new RFIDService(movementService, roomRepo, eventLogService, vacationModeService, userRepo,
+            new DeviceCommandSender(mqttGateway, new PayloadFormats(new MqttProperties()),
+                mock(MqttCommandPublisher.class), new CommandSlots(new MqttProperties(), new DeviceMetrics(new SimpleMeterRegistry(), 20)),
+                new MqttProperties()));
     }
 
     @Test
@@ -58,7 +70,7 @@ class RFIDServiceTest {
         when(userRepo.findByUsername("user")).thenReturn(Optional.of(user));
         svc.startRfidRegistration("user");
         assertEquals(null, user.getRfidUid());
-        svc.handleRegister("{\"event\":\"RFID_REGISTER\",\"cardId\":\"1234\"}");
+        svc.handleRegister(new RfidRegister("1234", false));
         assertEquals("1234", user.getRfidUid());
     }
 
@@ -68,10 +80,10 @@ class RFIDServiceTest {
         when(userRepo.findByRfidUid("1234")).thenReturn(Optional.of(user));
         when(vacationModeService.isVacationModeActive()).thenReturn(true);
 
-        svc.handle("{\"event\":\"RFID_DETECTED\",\"cardId\":\"1234\"}");
+        svc.handle(new RfidDetected("1234"));
 
         verify(roomRepo, never()).findByName(any());
-        verify(movementService, atLeast(0)).sendAlarmCommand(anyString(), eq(false));
+        verify(movementService).sendAlarmCommandToAll(any(), eq(false));
         verify(vacationModeService).deactivateVacationMode();
     }
 
@@ -79,15 +91,22 @@ class RFIDServiceTest {
     void handleWithUnregisteredCardDoesNotDisableSensors() {
         when(userRepo.findByRfidUid("9999")).thenReturn(Optional.empty());
 
-        svc.handle("{\"event\":\"RFID_DETECTED\",\"cardId\":\"9999\"}");
+        svc.handle(new RfidDetected("9999"));
 
-        verify(movementService, never()).sendAlarmCommand(anyString(), anyBoolean());
+        verify(movementService, never()).sendAlarmCommandToAll(any(), anyBoolean());
         verify(vacationModeService, never()).deactivateVacationMode();
     }
 
     @Test
-    void handleWithMalformedJsonDoesNotThrow() {
-        assertDoesNotThrow(() -> svc.handle("not a json"));
+    void handleRegisterCancelClearsPendingUser() {
+        User user = new User("user", "pass", null);
+        when(userRepo.findByUsername("user")).thenReturn(Optional.of(user));
+        svc.startRfidRegistration("user");
+
+        assertDoesNotThrow(() -> svc.handleRegister(new RfidRegister(null, true)));
+        svc.handleRegister(new RfidRegister("1234", false));
+
+        assertEquals(null, user.getRfidUid());
     }
 
     @Test
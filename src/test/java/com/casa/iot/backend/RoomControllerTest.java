@@ -1,20 +1,30 @@
 package com.casa.iot.backend;
 
 import static org.hamcrest.Matchers.hasSize;
+
+import java.util.List;
+
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import com.casa.iot.backend.model.Room;
+import com.casa.iot.backend.model.RoomState;
+import com.casa.iot.backend.mqtt.message.LightConfirmation;
 import com.casa.iot.backend.repository.RoomRepository;
 import com.casa.iot.backend.repository.RoomScheduleRepository;
+import com.casa.iot.backend.service.RoomStateStore;
+import com.casa.iot.backend.service.LightService;
 
 @SpringBootTest
 @AutoConfigureMockMvc
@@ -29,11 +39,19 @@ class RoomControllerTest {
     @Autowired
     private RoomScheduleRepository scheduleRepo;
 
+    @Autowired
+    private RoomStateStore stateStore;
+
+    @Autowired
+    private LightService lightService;
+
     @BeforeEach
     void init() {
+        stateStore.flush(); // lo pendiente de otros tests, antes de borrar
+        List.copyOf(stateStore.all()).forEach(state -> stateStore.remove(state.name()));
         scheduleRepo.deleteAll(); // Borra primero los schedules
         roomRepo.deleteAll();
-        roomRepo.save(new Room("kitchen"));
+        stateStore.put(RoomState.of(roomRepo.save(new Room("kitchen"))));
     }
 
     @Test
@@ -41,7 +59,8 @@ class RoomControllerTest {
         mockMvc.perform(get("/rooms"))
                .andExpect(status().isOk())
                .andExpect(jsonPath("$", hasSize(1)))
-               .andExpect(jsonPath("$[0].name").value("kitchen"));
+               .andExpect(jsonPath("$[0].name").value("kitchen"))
+               .andExpect(jsonPath("$[0].online").value(false));
 
         mockMvc.perform(get("/rooms/kitchen"))
                .andExpect(status().isOk())
@@ -52,13 +71,36 @@ class RoomControllerTest {
     void lightAndAlarmEndpoints() throws Exception {
         mockMvc.perform(post("/rooms/kitchen/light").param("state","true"))
                .andExpect(status().isOk())
-               .andExpect(jsonPath("$.status").value("PENDING"));
+               .andExpect(jsonPath("$.status").value("PENDING"))
+               .andExpect(jsonPath("$.commandId").isNotEmpty())
+               .andExpect(jsonPath("$.deviceOnline").value(false));
 
         mockMvc.perform(post("/rooms/kitchen/alarm").param("state","false"))
                .andExpect(status().isOk())
                .andExpect(jsonPath("$.status").value("PENDING"));
     }
 
+    @Test
+    void lightEndpointWaitsForConfirmation() throws Exception {
+        MvcResult pending = mockMvc.perform(post("/rooms/kitchen/light").param("state", "true").param("await", "2s"))
+               .andExpect(request().asyncStarted())
+               .andReturn();
+
+        // la primera confirmacion puede ser de un comando anterior que seguia en vuelo
+        lightService.handleConfirmation("kitchen", new LightConfirmation(true, true, null));
+        lightService.handleConfirmation("kitchen", new LightConfirmation(true, true, null));
+
+        mockMvc.perform(asyncDispatch(pending))
+               .andExpect(status().isOk())
+               .andExpect(jsonPath("$.status").value("CONFIRMED"));
+    }
+
+    @Test
+    void zeroAwaitIsRejected() throws Exception {
+        mockMvc.perform(post("/rooms/kitchen/light").param("state", "true").param("await", "0"))
+               .andExpect(status().isBadRequest());
+    }
+
     @Test
     void removeRoomEndpoint() throws Exception {
         mockMvc.perform(post("/rooms/kitchen/remove"))
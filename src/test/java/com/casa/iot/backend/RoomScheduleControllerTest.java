@@ -1,6 +1,9 @@
 package com.casa.iot.backend;
 
 import static org.hamcrest.Matchers.hasSize;
+
+import java.util.List;
+
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,8 +17,10 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import com.casa.iot.backend.model.Room;
+import com.casa.iot.backend.model.RoomState;
 import com.casa.iot.backend.repository.RoomRepository;
 import com.casa.iot.backend.repository.RoomScheduleRepository;
+import com.casa.iot.backend.service.RoomStateStore;
 
 @SpringBootTest
 @AutoConfigureMockMvc
@@ -30,11 +35,16 @@ class RoomScheduleControllerTest {
     @Autowired
     private RoomScheduleRepository scheduleRepository;
 
+    @Autowired
+    private RoomStateStore stateStore;
+
     @BeforeEach
     void setup() {
+        stateStore.flush(); // lo pendiente de otros tests, antes de borrar
+        List.copyOf(stateStore.all()).forEach(state -> stateStore.remove(state.name()));
         scheduleRepository.deleteAll();
         roomRepository.deleteAll();
-        roomRepository.save(new Room("salon"));
+        stateStore.put(RoomState.of(roomRepository.save(new Room("salon"))));
     }
 
     @Test
@@ -1,9 +1,11 @@
 package com.casa.iot.backend;
 
 import java.util.List;
-import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.mockito.ArgumentMatchers.any;
@@ -13,57 +15,86 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.casa.iot.backend.model.Room;
+import com.casa.iot.backend.model.RoomState;
+import com.casa.iot.backend.mqtt.DevicePresence;
 import com.casa.iot.backend.mqtt.MqttGateway;
 import com.casa.iot.backend.repository.RoomRepository;
 import com.casa.iot.backend.service.RoomService;
+import com.casa.iot.backend.service.RoomStateStore;
 
 class RoomServiceTest {
 
     private RoomRepository repo;
     private MqttGateway gateway;
+    private RoomStateStore stateStore;
+    private DevicePresence presence;
     private RoomService svc;
 
     @BeforeEach
     void setUp() {
         repo = mock(RoomRepository.class);
         gateway = mock(MqttGateway.class);
-        svc = new RoomService(repo, gateway);
+        stateStore = mock(RoomStateStore.class);
+        presence = mock(DevicePresence.class);
+        svc = new RoomService(repo, gateway, stateStore, presence);
     }
 
     @Test
     void createRoomWhenNotExists() {
-        when(repo.findById("test")).thenReturn(Optional.empty());
         when(repo.save(any(Room.class))).thenAnswer(i -> i.getArgument(0));
 
         Room r = svc.createRoom("test");
         assertEquals("test", r.getName());
         verify(repo).save(r);
+        verify(stateStore).put(new RoomState("test", false, false));
     }
 
     @Test
     void createRoomWhenAlreadyExistsReturnsExisting() {
-        Room existing = new Room("test");
-        when(repo.findById("test")).thenReturn(Optional.of(existing));
+        when(stateStore.get("test")).thenReturn(new RoomState("test", true, false));
         Room r = svc.createRoom("test");
-        assertEquals(existing, r);
+        assertEquals("test", r.getName());
+        assertTrue(r.isLightOn());
         verify(repo, never()).save(any());
     }
 
     @Test
     void getRoomByNameWhenExists() {
-        Room existing = new Room("salon");
-        when(repo.findById("salon")).thenReturn(Optional.of(existing));
+        when(stateStore.get("salon")).thenReturn(new RoomState("salon", false, true));
 
-        assertEquals(existing, svc.getRoomByName("salon"));
+        Room room = svc.getRoomByName("salon");
+        assertEquals("salon", room.getName());
+        assertTrue(room.isDetectOn());
+        assertNull(svc.getRoomByName("cocina"));
     }
 
     @Test
     void getAllRoomsReturnsList() {
-        Room r1 = new Room("a");
-        Room r2 = new Room("b");
-        when(repo.findAll()).thenReturn(List.of(r1, r2));
+        when(stateStore.all()).thenReturn(List.of(new RoomState("b", false, false), new RoomState("a", false, false)));
         List<Room> rooms = svc.getAllRooms();
         assertEquals(2, rooms.size());
+        assertEquals("a", rooms.get(0).getName());
+    }
+
+    @Test
+    void getAllRoomsReportsDevicePresence() {
+        when(stateStore.all()).thenReturn(List.of(new RoomState("a", false, false), new RoomState("b", false, false)));
+        when(presence.isOnline("a")).thenReturn(true);
+
+        List<Room> rooms = svc.getAllRooms();
+
+        assertTrue(rooms.get(0).isOnline());
+        assertFalse(rooms.get(1).isOnline());
+    }
+
+    @Test
+    void removeRoomDropsStateAndRow() {
+        when(stateStore.get("salon")).thenReturn(new RoomState("salon", false, false));
+
+        svc.removeRoom("salon");
+
+        verify(stateStore).remove("salon");
+        verify(repo).deleteById("salon");
     }
 
-}
\ No newline at end of file
+}
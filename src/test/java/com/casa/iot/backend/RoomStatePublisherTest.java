@@ -0,0 +1,98 @@
+package com.casa.iot.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.casa.iot.backend.model.RoomState;
+import com.casa.iot.backend.mqtt.DeviceMetrics;
+import com.casa.iot.backend.mqtt.MqttOutboundPool;
+import com.casa.iot.backend.mqtt.RoomStatePublisher;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class RoomStatePublisherTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private MqttOutboundPool outboundPool;
+    private RoomStatePublisher publisher;
+
+    @BeforeEach
+    void setUp() {
+        outboundPool = mock(MqttOutboundPool.class);
+        when(outboundPool.publish(anyString(), any(byte[].class), anyInt(), anyBoolean()))
+            .thenReturn(CompletableFuture.completedFuture(null));
+        publisher = new RoomStatePublisher(outboundPool, new DeviceMetrics(meterRegistry, 20));
+    }
+
+    @Test
+    void stateIsPublishedRetained() {
+        publisher.publish(new RoomState("salon", true, false));
+
+        ArgumentCaptor<byte[]> payload = ArgumentCaptor.forClass(byte[].class);
+        verify(outboundPool).publish(eq("salon/state/current"), payload.capture(), eq(1), eq(true));
+        assertEquals("{\"light\":\"ON\",\"alarm\":\"OFF\"}", new String(payload.getValue(), StandardCharsets.UTF_8));
+        assertEquals(1.0, meterRegistry.get("mqtt.state.published").tag("outcome", "ok").counter().count());
+    }
+
+    @Test
+    void removedRoomClearsRetainedState() {
+        publisher.clear("salon");
+
+        verify(outboundPool).publish("salon/state/current", new byte[0], 1, true);
+    }
+
+    @Test
+    void failedPublishIsRetriedWithTheLatestState() {
+        when(outboundPool.publish(anyString(), any(byte[].class), anyInt(), anyBoolean()))
+            .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("sin conexion")))
+            .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("sin conexion")))
+            .thenReturn(CompletableFuture.completedFuture(null));
+        publisher.publish(new RoomState("salon", true, false));
+        publisher.publish(new RoomState("salon", false, false));
+
+        publisher.retryFailed();
+        publisher.retryFailed(); // ya entregado: nada que repetir
+
+        ArgumentCaptor<byte[]> payload = ArgumentCaptor.forClass(byte[].class);
+        verify(outboundPool, times(3)).publish(eq("salon/state/current"), payload.capture(), eq(1), eq(true));
+        assertEquals("{\"light\":\"OFF\",\"alarm\":\"OFF\"}", new String(payload.getValue(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void reconnectRepublishesEveryRoom() {
+        ArgumentCaptor<Runnable> onConnected = ArgumentCaptor.forClass(Runnable.class);
+        verify(outboundPool).onConnected(onConnected.capture());
+        publisher.publish(new RoomState("salon", true, false));
+        publisher.publish(new RoomState("cocina", false, true));
+
+        onConnected.getValue().run();
+
+        verify(outboundPool, times(2)).publish(eq("salon/state/current"), any(byte[].class), eq(1), eq(true));
+        verify(outboundPool, times(2)).publish(eq("cocina/state/current"), any(byte[].class), eq(1), eq(true));
+    }
+
+    @Test
+    void clearedRoomIsNotRepublished() {
+        publisher.publish(new RoomState("salon", true, false));
+        publisher.clear("salon");
+
+        publisher.republishAll();
+
+        verify(outboundPool, times(2)).publish(eq("salon/state/current"), any(byte[].class), eq(1), eq(true));
+    }
+}
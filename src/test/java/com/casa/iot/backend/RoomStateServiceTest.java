@@ -0,0 +1,104 @@
+package com.casa.iot.backend;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.casa.iot.backend.model.Room;
+import com.casa.iot.backend.model.RoomState;
+import com.casa.iot.backend.mqtt.MqttProperties;
+import com.casa.iot.backend.mqtt.RoomStatePublisher;
+import com.casa.iot.backend.mqtt.message.StateSnapshot;
+import com.casa.iot.backend.repository.RoomRepository;
+import com.casa.iot.backend.service.EventLogService;
+import com.casa.iot.backend.service.MovementCoalescer;
+import com.casa.iot.backend.service.RoomStateService;
+import com.casa.iot.backend.service.RoomStateStore;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManagerFactory;
+
+class RoomStateServiceTest {
+
+    private RoomRepository roomRepo;
+    private RoomStatePublisher statePublisher;
+    private RoomStateStore stateStore;
+    private EventLogService eventLogService;
+    private MovementCoalescer movementCoalescer;
+    private RoomStateService svc;
+
+    @BeforeEach
+    void setUp() {
+        roomRepo = mock(RoomRepository.class);
+        statePublisher = mock(RoomStatePublisher.class);
+        stateStore = new RoomStateStore(roomRepo, mock(JdbcTemplate.class), mock(EntityManagerFactory.class),
+            statePublisher, new MqttProperties(), new SimpleMeterRegistry());
+        eventLogService = mock(EventLogService.class);
+        movementCoalescer = mock(MovementCoalescer.class);
+        svc = new RoomStateService(stateStore, eventLogService, movementCoalescer);
+    }
+
+    @Test
+    void appliesAllChangedSubsystemsInOneUpdate() {
+        when(roomRepo.findById("salon")).thenReturn(Optional.of(new Room("salon")));
+
+        svc.applySnapshot("salon", new StateSnapshot(true, true));
+
+        RoomState state = stateStore.get("salon");
+        assertTrue(state.lightOn());
+        assertTrue(state.detectOn());
+        assertTrue(stateStore.isDirty("salon"));
+        verify(statePublisher).publish(state);
+        verify(eventLogService).logSystemAction(eq("SENSOR_ON"), eq("salon"), anyString(), eq("DEVICE_STATE"));
+        verify(movementCoalescer).close("salon");
+    }
+
+    @Test
+    void unchangedSnapshotIsNotSaved() {
+        Room room = new Room("salon");
+        room.setLightOn(true);
+        when(roomRepo.findById("salon")).thenReturn(Optional.of(room));
+
+        svc.applySnapshot("salon", new StateSnapshot(true, false));
+
+        assertFalse(stateStore.isDirty("salon"));
+        verify(statePublisher, never()).publish(any());
+        verify(eventLogService, never()).logSystemAction(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    void missingFieldsKeepCurrentState() {
+        Room room = new Room("salon");
+        room.setDetectOn(true);
+        when(roomRepo.findById("salon")).thenReturn(Optional.of(room));
+
+        svc.applySnapshot("salon", new StateSnapshot(true, null));
+
+        assertTrue(stateStore.get("salon").lightOn());
+        assertTrue(stateStore.get("salon").detectOn());
+        assertTrue(stateStore.isDirty("salon"));
+        verify(movementCoalescer, never()).close("salon");
+    }
+
+    @Test
+    void unknownRoomIsCreated() {
+        when(roomRepo.findById("garage")).thenReturn(Optional.empty());
+
+        svc.applySnapshot("garage", new StateSnapshot(false, false));
+
+        assertNotNull(stateStore.get("garage"));
+        assertTrue(stateStore.isDirty("garage"));
+    }
+}
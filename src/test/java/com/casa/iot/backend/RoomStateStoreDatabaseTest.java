@@ -0,0 +1,105 @@
+package com.casa.iot.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.casa.iot.backend.model.Room;
+import com.casa.iot.backend.mqtt.MqttProperties;
+import com.casa.iot.backend.mqtt.RoomStatePublisher;
+import com.casa.iot.backend.repository.RoomRepository;
+import com.casa.iot.backend.service.RoomStateStore;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManagerFactory;
+
+// el UPSERT de RoomStateStore contra una BD de verdad (H2 en modo MySQL) y con la cache de segundo nivel activa
+@DataJpaTest(properties = {
+    "spring.datasource.url=jdbc:h2:mem:rooms;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1",
+    "spring.datasource.driver-class-name=org.h2.Driver",
+    "spring.datasource.username=sa",
+    "spring.datasource.password=",
+    "spring.jpa.hibernate.ddl-auto=create-drop"
+})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+// cada llamada al repositorio en su propia sesion, como en la aplicacion: asi se lee de la cache L2
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class RoomStateStoreDatabaseTest {
+
+    @Autowired
+    private RoomRepository roomRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private RoomStateStore store;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate.update("DELETE FROM room");
+        entityManagerFactory.getCache().evictAll();
+        roomRepository.save(new Room("salon"));
+        store = new RoomStateStore(roomRepository, jdbcTemplate, entityManagerFactory,
+            mock(RoomStatePublisher.class), new MqttProperties(), new SimpleMeterRegistry());
+        store.load();
+    }
+
+    private long version(String name) {
+        return jdbcTemplate.queryForObject("SELECT version FROM room WHERE name = ?", Long.class, name);
+    }
+
+    @Test
+    void versionGoesUpOnlyWhenStateChanges() {
+        long initial = version("salon");
+
+        store.update("salon", state -> state.withLight(true));
+        store.flush();
+        assertEquals(initial + 1, version("salon"));
+
+        // encendida y apagada antes del lote: la fila ya tiene ese estado
+        store.update("salon", state -> state.withAlarm(true));
+        store.update("salon", state -> state.withAlarm(false));
+        store.flush();
+        assertEquals(initial + 1, version("salon"));
+    }
+
+    @Test
+    void newRoomIsInsertedWithFirstVersion() {
+        store.update("cocina", state -> state.withAlarm(true));
+        store.flush();
+
+        assertEquals(0L, version("cocina"));
+        assertTrue(roomRepository.findById("cocina").orElseThrow().isDetectOn());
+    }
+
+    @Test
+    void jpaReadsAfterFlushSeeTheNewRow() {
+        // la Room queda en la cache de segundo nivel
+        assertFalse(roomRepository.findById("salon").orElseThrow().isLightOn());
+        assertTrue(entityManagerFactory.getCache().contains(Room.class, "salon"));
+
+        store.update("salon", state -> state.withLight(true));
+        store.flush();
+
+        Room room = roomRepository.findById("salon").orElseThrow();
+        assertTrue(room.isLightOn());
+        // con la version del lote: un save con la Room vieja de la cache fallaria
+        long flushed = version("salon");
+        room.setDetectOn(true);
+        roomRepository.save(room);
+        assertEquals(flushed + 1, version("salon"));
+    }
+}
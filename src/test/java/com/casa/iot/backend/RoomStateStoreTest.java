@@ -0,0 +1,238 @@
+package com.casa.iot.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.ResultSet;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import com.casa.iot.backend.model.Room;
+import com.casa.iot.backend.model.RoomState;
+import com.casa.iot.backend.mqtt.MqttProperties;
+import com.casa.iot.backend.mqtt.RoomStatePublisher;
+import com.casa.iot.backend.repository.RoomRepository;
+import com.casa.iot.backend.service.RoomStateStore;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.Cache;
+import jakarta.persistence.EntityManagerFactory;
+
+class RoomStateStoreTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private RoomRepository roomRepo;
+    private JdbcTemplate jdbcTemplate;
+    private RoomStatePublisher statePublisher;
+    private Cache entityCache;
+    private RoomStateStore store;
+
+    @BeforeEach
+    void setUp() {
+        roomRepo = mock(RoomRepository.class);
+        jdbcTemplate = mock(JdbcTemplate.class);
+        statePublisher = mock(RoomStatePublisher.class);
+        entityCache = mock(Cache.class);
+        Room salon = new Room("salon");
+        salon.setLightOn(true);
+        when(roomRepo.findAll()).thenReturn(List.of(salon, new Room("cocina")));
+        store = store(new MqttProperties());
+    }
+
+    private RoomStateStore store(MqttProperties properties) {
+        EntityManagerFactory entityManagerFactory = mock(EntityManagerFactory.class);
+        when(entityManagerFactory.getCache()).thenReturn(entityCache);
+        RoomStateStore created = new RoomStateStore(roomRepo, jdbcTemplate, entityManagerFactory, statePublisher, properties, meterRegistry);
+        created.load();
+        return created;
+    }
+
+    private RoomStateStore clusteredStore() {
+        MqttProperties properties = new MqttProperties();
+        properties.setSharedGroup("backend");
+        properties.setNodeId("a");
+        return store(properties);
+    }
+
+    // filas de la tabla room tal como las ve refresh(): name, light_on, detect_on, version
+    private void tableHas(Object[]... rows) {
+        doAnswer(invocation -> {
+            RowCallbackHandler handler = invocation.getArgument(1);
+            for (Object[] row : rows) {
+                ResultSet resultSet = mock(ResultSet.class);
+                when(resultSet.getString("name")).thenReturn((String) row[0]);
+                when(resultSet.getBoolean("light_on")).thenReturn((Boolean) row[1]);
+                when(resultSet.getBoolean("detect_on")).thenReturn((Boolean) row[2]);
+                when(resultSet.getLong("version")).thenReturn((Long) row[3]);
+                handler.processRow(resultSet);
+            }
+            return null;
+        }).when(jdbcTemplate).query(anyString(), any(RowCallbackHandler.class));
+    }
+
+    @Test
+    void loadsEveryRoomAtStartup() {
+        assertEquals(2, store.all().size());
+        assertTrue(store.get("salon").lightOn());
+        assertFalse(store.isDirty("salon"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void repeatedChangesAreOneRowInOneBatch() {
+        store.update("salon", state -> state.withLight(false));
+        store.update("salon", state -> state.withLight(true));
+        store.update("salon", state -> state.withAlarm(true));
+        store.update("cocina", state -> state.withLight(true));
+
+        store.flush();
+
+        ArgumentCaptor<Collection<RoomState>> batch = ArgumentCaptor.forClass(Collection.class);
+        verify(jdbcTemplate).batchUpdate(anyString(), batch.capture(), eq(2), any(ParameterizedPreparedStatementSetter.class));
+        assertTrue(batch.getValue().contains(new RoomState("salon", true, true)));
+        assertTrue(batch.getValue().contains(new RoomState("cocina", true, false)));
+        assertFalse(store.isDirty("salon"));
+        assertEquals(2.0, meterRegistry.get("room.state.flushed").counter().count());
+        // el lote no pasa por Hibernate: las Room cacheadas estan viejas
+        verify(entityCache).evict(Room.class, "salon");
+        verify(entityCache).evict(Room.class, "cocina");
+        verify(roomRepo, never()).save(any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void unchangedStateIsNotWrittenNorPublished() {
+        assertFalse(store.update("salon", state -> state.withLight(true)));
+
+        store.flush();
+
+        assertFalse(store.isDirty("salon"));
+        verify(statePublisher, never()).publish(any());
+        verify(jdbcTemplate, never()).batchUpdate(anyString(), any(Collection.class), anyInt(), any(ParameterizedPreparedStatementSetter.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void failedBatchKeepsRoomsPending() {
+        when(jdbcTemplate.batchUpdate(anyString(), any(Collection.class), anyInt(), any(ParameterizedPreparedStatementSetter.class)))
+            .thenThrow(new DataAccessResourceFailureException("BD caida"))
+            .thenReturn(new int[0][]);
+        store.update("cocina", state -> state.withAlarm(true));
+
+        store.flush();
+        assertTrue(store.isDirty("cocina"));
+        verify(entityCache, never()).evict(Room.class, "cocina");
+
+        store.flush();
+        assertFalse(store.isDirty("cocina"));
+        verify(jdbcTemplate, times(2)).batchUpdate(anyString(), any(Collection.class), anyInt(), any(ParameterizedPreparedStatementSetter.class));
+    }
+
+    @Test
+    void changesArePublishedBeforeTheyAreWritten() {
+        assertTrue(store.update("cocina", state -> state.withLight(true)));
+
+        verify(statePublisher).publish(new RoomState("cocina", true, false));
+        assertTrue(store.isDirty("cocina"));
+    }
+
+    @Test
+    void removedRoomIsNotWrittenAgain() {
+        store.update("cocina", state -> state.withLight(true));
+
+        store.remove("cocina");
+        store.flush();
+
+        assertNull(store.get("cocina"));
+        assertFalse(store.isDirty("cocina"));
+        verify(statePublisher).clear("cocina");
+    }
+
+    @Test
+    void publishAllRetainsEveryRoom() {
+        store.publishAll();
+
+        verify(statePublisher).publish(new RoomState("salon", true, false));
+        verify(statePublisher).publish(new RoomState("cocina", false, false));
+    }
+
+    @Test
+    void clusteredStoreAdoptsRowsChangedByOtherNodes() {
+        store = clusteredStore();
+        tableHas(new Object[] {"salon", true, false, 3L}, new Object[] {"cocina", false, false, 0L});
+        store.refresh();
+        // otro nodo enciende la cocina
+        tableHas(new Object[] {"salon", true, false, 3L}, new Object[] {"cocina", true, false, 1L});
+
+        store.refresh();
+
+        assertTrue(store.get("cocina").lightOn());
+        verify(entityCache).evict(Room.class, "cocina");
+        // el retenido es del otro nodo
+        verify(statePublisher).forget("cocina");
+        verify(statePublisher, never()).publish(any());
+    }
+
+    @Test
+    void clusteredRefreshKeepsLocalChangesNotYetWritten() {
+        store = clusteredStore();
+        tableHas(new Object[] {"salon", true, false, 3L}, new Object[] {"cocina", false, false, 0L});
+        store.refresh();
+        store.update("salon", state -> state.withLight(false));
+        tableHas(new Object[] {"salon", true, true, 4L}, new Object[] {"cocina", false, false, 0L});
+
+        store.refresh();
+
+        assertFalse(store.get("salon").lightOn());
+        assertTrue(store.isDirty("salon"));
+    }
+
+    @Test
+    void clusteredRefreshDropsRoomsDeletedElsewhere() {
+        store = clusteredStore();
+        tableHas(new Object[] {"salon", true, false, 3L}, new Object[] {"cocina", false, false, 0L});
+        store.refresh();
+        tableHas(new Object[] {"salon", true, false, 3L});
+
+        store.refresh();
+
+        assertEquals(1, store.all().size());
+        verify(statePublisher).forget("cocina");
+    }
+
+    @Test
+    void clusteredStoreDoesNotRepublishDatabaseStateAtStartup() {
+        store = clusteredStore();
+
+        store.publishAll();
+
+        verify(statePublisher, never()).publish(any());
+    }
+
+    @Test
+    void singleNodeNeverReadsTheTableAgain() {
+        store.refresh();
+
+        verify(jdbcTemplate, never()).query(anyString(), any(RowCallbackHandler.class));
+    }
+}
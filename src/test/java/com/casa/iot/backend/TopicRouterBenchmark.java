@@ -0,0 +1,90 @@
+package com.casa.iot.backend;
+
+import java.lang.management.ManagementFactory;
+
+import com.casa.iot.backend.mqtt.TopicRouter;
+
+/**
+ * Comparativa simple entre el enrutado antiguo (split + switch) y TopicRouter.
+ * No es un test: se ejecuta a mano desde el IDE o con
+ * java -cp target/classes:target/test-classes com.casa.iot.backend.TopicRouterBenchmark
+ */
+public class TopicRouterBenchmark {
+
+    private static final String[] TOPICS = {
+        "salon/mov/event", "kitchen/lig/confirmation", "salon/mov/confirmation",
+        "rfid/event", "bedroom/lig/command", "rfid/register", "garage/mov/event"
+    };
+    private static final int ITERATIONS = 5_000_000;
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        TopicRouter<String> router = new TopicRouter<>();
+        router.register("+/lig/confirmation", (room, payload) -> sink += room.length());
+        router.register("+/mov/confirmation", (room, payload) -> sink += room.length());
+        router.register("+/mov/event", (room, payload) -> sink += room.length());
+        router.register("+/mov", (room, payload) -> sink += room.length());
+        router.register("rfid/event", (room, payload) -> sink++);
+        router.register("rfid/register", (room, payload) -> sink++);
+        router.register("+/+/command", (room, payload) -> sink--);
+
+        for (int round = 0; round < 5; round++) {
+            measure(round, "split", () -> splitDispatch());
+            measure(round, "trie ", () -> trieDispatch(router));
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    // tiempo y bytes reservados por mensaje en el hilo actual
+    private static void measure(int round, String name, Runnable run) {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long bytes = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        run.run();
+        long elapsed = System.nanoTime() - start;
+        bytes = threads.getThreadAllocatedBytes(threadId) - bytes;
+        System.out.printf("ronda %d %s: %.1f ns/msg, %.1f bytes/msg%n", round, name,
+            (double) elapsed / ITERATIONS, (double) bytes / ITERATIONS);
+    }
+
+    private static void trieDispatch(TopicRouter<String> router) {
+        for (int i = 0; i < ITERATIONS; i++) {
+            router.dispatch(TOPICS[i % TOPICS.length], "{}");
+        }
+    }
+
+    // copia del enrutado anterior de MqttEventHandler
+    private static void splitDispatch() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            String[] parts = TOPICS[i % TOPICS.length].split("/");
+            String room = parts[0];
+            if (room.equals("rfid")) {
+                switch (parts[1]) {
+                    case "event", "register" -> sink++;
+                    default -> { }
+                }
+                continue;
+            }
+            if (parts.length < 3) {
+                if (parts.length >= 2) sink += room.length();
+                continue;
+            }
+            if ("command".equals(parts[2])) {
+                sink--;
+                continue;
+            }
+            switch (parts[1]) {
+                case "lig":
+                    if ("confirmation".equals(parts[2])) sink += room.length();
+                    break;
+                case "mov":
+                    if ("confirmation".equals(parts[2]) || "event".equals(parts[2])) sink += room.length();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.casa.iot.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.casa.iot.backend.mqtt.TopicRouter;
+
+class TopicRouterTest {
+
+    private TopicRouter<String> router;
+    private List<String> calls;
+
+    @BeforeEach
+    void setUp() {
+        router = new TopicRouter<>();
+        calls = new ArrayList<>();
+    }
+
+    @Test
+    void singleLevelWildcardCapturesRoom() {
+        router.register("+/lig/confirmation", (room, payload) -> calls.add(room + ":" + payload));
+
+        assertTrue(router.dispatch("kitchen/lig/confirmation", "ON"));
+        assertEquals(List.of("kitchen:ON"), calls);
+    }
+
+    @Test
+    void literalRouteWinsOverWildcard() {
+        router.register("rfid/event", (room, payload) -> calls.add("rfid"));
+        router.register("+/event", (room, payload) -> calls.add("room " + room));
+
+        router.dispatch("rfid/event", "{}");
+        router.dispatch("salon/event", "{}");
+
+        assertEquals(List.of("rfid", "room salon"), calls);
+    }
+
+    @Test
+    void literalRouteWithoutWildcardHasNoRoom() {
+        router.register("rfid/event", (room, payload) -> assertNull(room));
+        assertTrue(router.dispatch("rfid/event", "{}"));
+    }
+
+    @Test
+    void backtracksToWildcardWhenLiteralBranchFails() {
+        router.register("rfid/event", (room, payload) -> calls.add("rfid"));
+        router.register("+/+/command", (room, payload) -> calls.add("command " + room));
+
+        assertTrue(router.dispatch("rfid/lig/command", "{}"));
+        assertEquals(List.of("command rfid"), calls);
+    }
+
+    @Test
+    void multiLevelWildcardMatchesChildrenAndParent() {
+        router.register("+/sou/#", (room, payload) -> calls.add(room));
+
+        assertTrue(router.dispatch("salon/sou/event/extra", "{}"));
+        assertTrue(router.dispatch("salon/sou", "{}"));
+        assertEquals(List.of("salon", "salon"), calls);
+    }
+
+    @Test
+    void unknownTopicIsNotDispatched() {
+        router.register("+/lig/confirmation", (room, payload) -> calls.add(room));
+
+        assertFalse(router.dispatch("kitchen/lig", "{}"));
+        assertFalse(router.dispatch("kitchen/lig/confirmation/extra", "{}"));
+        assertFalse(router.dispatch("$SYS/broker/uptime", "{}"));
+        assertTrue(calls.isEmpty());
+    }
+
+    @Test
+    void sameRoomIsAlwaysSameInstance() {
+        List<String> rooms = new ArrayList<>();
+        router.register("+/mov/event", (room, payload) -> rooms.add(room));
+
+        router.dispatch(new String("salon/mov/event"), "{}");
+        router.dispatch(new String("salon/mov/event"), "{}");
+
+        assertSame(rooms.get(0), rooms.get(1));
+    }
+
+    @Test
+    void manyRoomsKeepTheirOwnKeys() {
+        List<String> rooms = new ArrayList<>();
+        router.register("+/mov/event", (room, payload) -> rooms.add(room));
+
+        for (int i = 0; i < 200; i++) {
+            router.dispatch("room" + i + "/mov/event", "{}");
+        }
+        for (int i = 0; i < 200; i++) {
+            assertEquals("room" + i, rooms.get(i));
+        }
+    }
+
+    @Test
+    void duplicateRouteIsRejected() {
+        router.register("+/mov/event", (room, payload) -> { });
+        assertThrows(IllegalStateException.class, () -> router.register("+/mov/event", (room, payload) -> { }));
+    }
+}
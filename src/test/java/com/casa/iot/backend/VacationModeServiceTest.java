@@ -42,8 +42,7 @@ class VacationModeServiceTest {
         svc.activateVacationMode();
 
         assertTrue(svc.isVacationModeActive());
-        verify(movementService).sendAlarmCommand("A", true);
-        verify(movementService).sendAlarmCommand("B", true);
+        verify(movementService).sendAlarmCommandToAll(List.of("A", "B"), true);
     }
 
     @Test
@@ -53,5 +52,6 @@ class VacationModeServiceTest {
 
         svc.deactivateVacationMode();
         assertFalse(svc.isVacationModeActive());
+        verify(movementService).sendAlarmCommandToAll(List.of(), false);
     }
 }
\ No newline at end of file